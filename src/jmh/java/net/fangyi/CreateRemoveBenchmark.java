@@ -0,0 +1,39 @@
+package net.fangyi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在已有 {@code width} 个文件的目录中创建再删除一个文件，目录大小在整个测量过程中不变。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateRemoveBenchmark {
+    @Param({"10", "1000", "100000"})
+    int width;
+
+    FileSystem fs;
+
+    @Setup
+    public void setUp() {
+        fs = TreeShapes.newFileSystem();
+        TreeShapes.fill(fs, "/bench", width);
+    }
+
+    @Benchmark
+    public void createAndRemoveFile() {
+        fs.create("/bench/new", false, "root", "root");
+        fs.remove("/bench/new", false);
+    }
+
+    @Benchmark
+    public void createAndRemoveDirectory() {
+        fs.create("/bench/new", true, "root", "root");
+        fs.removeDirectory("/bench/new");
+    }
+}
@@ -0,0 +1,46 @@
+package net.fangyi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对有 {@code entries} 个文件的当前目录执行 {@link FileSystem#listDirectory}，输出被丢弃，
+ * 测到的是遍历子节点表和格式化每一行的代价；{@code page} 从目录中间取一页 {@link #PAGE} 项，代价应与目录大小无关。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListDirectoryBenchmark {
+    @Param({"10", "1000", "100000"})
+    int entries;
+
+    @Param({"false", "true"})
+    boolean longFormat;
+
+    static final int PAGE = 100;
+
+    FileSystem fs;
+    String middle;
+
+    @Setup
+    public void setUp() {
+        fs = TreeShapes.newFileSystem();
+        TreeShapes.fill(fs, "/bench", entries);
+        fs.changeDirectory("/bench");
+        middle = fs.getCurrent().getChildren(null, entries / 2).getLast().getName();
+    }
+
+    @Benchmark
+    public void list() {
+        fs.listDirectory(longFormat);
+    }
+
+    @Benchmark
+    public void page() {
+        fs.listDirectory(".", longFormat, middle, PAGE);
+    }
+}
@@ -0,0 +1,533 @@
+package net.fangyi;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多会话负载测试。在 /bench 下按 {@link TreeShapes} 生成目录树并建若干普通用户，N 个并发会话各自以某个用户登录，
+ * 按给定比例随机执行 cd/ls/cat/head/echo/vim/chmod/touch/rm/du，或者回放记录下来的命令序列。
+ * 读命令访问共享的 /bench，写命令只动会话自己的目录，生成的命令不会因为会话之间的竞争而失败。
+ * 每条命令和交互式 shell 一样先 refresh、再经 {@link SimpleShell#executeCommand} 执行、最后 commit，
+ * 日志、审计和后台检查点都在循环里（--no-persist 关闭）。会话和 {@link ShellServer} 一样跑在虚拟线程上。
+ * <p>
+ * 输出每种命令的次数、吞吐量和延迟分位数；给出门限时超出任何一项以状态 1 退出，可以作为发布前的检查。
+ * 持久化文件写在当前目录，目录里已经有文件系统时拒绝运行；{@code ./gradlew loadTest} 在 build/loadtest 中运行，
+ * 参数用 {@code -PloadArgs="..."} 传入。
+ */
+public final class LoadTest {
+    static final String DEFAULT_MIX = "cd=20,ls=15,cat=25,head=5,echo=10,vim=3,chmod=7,touch=5,rm=5,du=5";
+    static final int FILES_PER_SESSION = 64;
+    static final String PASSWORD = "password";
+    static final String TRACE_HEADER = "# loadtest ";
+
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    private String shape = "balanced";
+    private int nodes = 10_000;
+    private int sessions = 8;
+    private int users = 4;
+    private long seed = 1;
+    private double warmup = 2;
+    private double duration = 10;
+    private long opsPerSession;
+    private Map<String, Integer> mix = parseMix(DEFAULT_MIX);
+    private boolean persist = true;
+    private Path trace;
+    private Path record;
+    private Path json;
+    private final Map<String, Long> maxP99Micros = new TreeMap<>();
+    private double minThroughput;
+    private long maxErrors = -1;
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+    private final List<String> directories = new ArrayList<>();
+    private final List<String> files = new ArrayList<>();
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println("Usage: LoadTest [--shape wide|balanced|deep] [--nodes N] [--sessions N] [--users N]"
+                    + " [--seed N] [--warmup seconds] [--duration seconds] [--ops N] [--mix cmd=weight,...]"
+                    + " [--no-persist] [--trace file] [--record file] [--json file]"
+                    + " [--max-p99 cmd=micros,...] [--min-throughput ops] [--max-errors N]");
+            System.exit(2);
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) throws IOException {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        int traceAt = options.indexOf("--trace");
+        if (traceAt >= 0 && traceAt + 1 < options.size()) {
+            // 记录文件头中的参数作为默认值，命令行上的参数优先
+            List<String> header = traceHeader(Path.of(options.get(traceAt + 1)));
+            options.addAll(0, header);
+        }
+        for (int i = 0; i < options.size(); i++) {
+            String option = options.get(i);
+            if (option.equals("--no-persist")) {
+                persist = false;
+                continue;
+            }
+            if (i + 1 >= options.size()) throw new IllegalArgumentException("Missing value for " + option);
+            String value = options.get(++i);
+            try {
+                switch (option) {
+                    case "--shape" -> shape = value;
+                    case "--nodes" -> nodes = positive(option, Integer.parseInt(value));
+                    case "--sessions" -> sessions = positive(option, Integer.parseInt(value));
+                    case "--users" -> users = positive(option, Integer.parseInt(value));
+                    case "--seed" -> seed = Long.parseLong(value);
+                    case "--warmup" -> warmup = Double.parseDouble(value);
+                    case "--duration" -> duration = Double.parseDouble(value);
+                    case "--ops" -> opsPerSession = positive(option, Long.parseLong(value));
+                    case "--mix" -> mix = parseMix(value);
+                    case "--trace" -> trace = Path.of(value);
+                    case "--record" -> record = Path.of(value);
+                    case "--json" -> json = Path.of(value);
+                    case "--max-p99" -> {
+                        for (Map.Entry<String, Integer> entry : parseMix(value).entrySet()) {
+                            maxP99Micros.put(entry.getKey(), (long) entry.getValue());
+                        }
+                    }
+                    case "--min-throughput" -> minThroughput = Double.parseDouble(value);
+                    case "--max-errors" -> maxErrors = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+        }
+        if (!List.of("wide", "balanced", "deep").contains(shape)) {
+            throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        for (String command : mix.keySet()) {
+            if (!DEFAULT_MIX.contains(command + "=")) throw new IllegalArgumentException("Unknown command in mix: " + command);
+        }
+    }
+
+    private static int positive(String option, int value) {
+        if (value <= 0) throw new IllegalArgumentException(option + " must be positive");
+        return value;
+    }
+
+    private static long positive(String option, long value) {
+        if (value <= 0) throw new IllegalArgumentException(option + " must be positive");
+        return value;
+    }
+
+    /**
+     * cmd=n,cmd=n 形式的表，保持给出的顺序。
+     */
+    private static Map<String, Integer> parseMix(String text) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : text.split(",")) {
+            int eq = part.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected cmd=value: " + part);
+            int weight = Integer.parseInt(part.substring(eq + 1).strip());
+            if (weight < 0) throw new IllegalArgumentException("Negative value: " + part);
+            weights.put(part.substring(0, eq).strip(), weight);
+        }
+        return weights;
+    }
+
+    private static List<String> traceHeader(Path file) throws IOException {
+        try (Scanner in = new Scanner(file, StandardCharsets.UTF_8)) {
+            if (in.hasNextLine()) {
+                String first = in.nextLine();
+                if (first.startsWith(TRACE_HEADER)) {
+                    return Arrays.asList(first.substring(TRACE_HEADER.length()).strip().split("\\s+"));
+                }
+            }
+        }
+        return List.of();
+    }
+
+    private boolean run() throws Exception {
+        if (persist && (new File(FileSystem.STATE_FILE).exists() || new File(FileSystem.JOURNAL_FILE).exists())) {
+            System.err.println("Error: " + Path.of("").toAbsolutePath()
+                    + " already holds a file system; run in an empty directory or with --no-persist");
+            return false;
+        }
+        long setupStart = System.nanoTime();
+        FileSystem fs = TreeShapes.newFileSystem(persist);
+        TreeShapes.build(fs, shape, nodes);
+        for (int u = 0; u < users; u++) {
+            fs.addUser("load" + u, PASSWORD, "users");
+        }
+        fs.commit();
+        if (persist) {
+            fs.checkpoint();
+        }
+        catalog(fs);
+        List<List<String>> traces = trace != null ? readTrace() : null;
+        if (traces != null) {
+            sessions = traces.size();
+        }
+        List<Session> running = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Session session = new Session(fs, i, traces != null ? traces.get(i) : null);
+            session.setUp();
+            running.add(session);
+        }
+        System.out.printf("setup: %s tree of %d nodes, %d users, %d sessions in %.1f s%s%n", shape, nodes, users,
+                sessions, (System.nanoTime() - setupStart) / 1e9, persist ? "" : " (no persistence)");
+
+        boolean timed = traces == null && opsPerSession == 0;
+        long start;
+        long stopped = 0;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>();
+            measuring = !timed;
+            start = System.nanoTime();
+            for (Session session : running) {
+                futures.add(executor.submit(session));
+            }
+            if (timed) {
+                Thread.sleep((long) (warmup * 1000));
+                latencies.values().forEach(LatencyHistogram::reset);
+                errors.values().forEach(LongAdder::reset);
+                measuring = true;
+                start = System.nanoTime();
+                Thread.sleep((long) (duration * 1000));
+                stopping = true;
+                // 结束前的最后一条命令仍然计入，时间算到这里
+                stopped = System.nanoTime();
+                measuring = false;
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            if (!timed) {
+                stopped = System.nanoTime();
+            }
+        }
+        if (persist) {
+            fs.close();
+        }
+        if (record != null) {
+            writeTrace(running);
+        }
+        return report((stopped - start) / 1e9);
+    }
+
+    /**
+     * 收集 /bench 下的目录和文件路径，读命令从中随机选取。
+     */
+    private void catalog(FileSystem fs) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push("/bench");
+        while (!stack.isEmpty()) {
+            String path = stack.pop();
+            directories.add(path);
+            for (FileSystemNode child : fs.getNodeByPath(path).getChildren()) {
+                String childPath = path + "/" + child.getName();
+                if (child.isDirectory()) {
+                    stack.push(childPath);
+                } else {
+                    files.add(childPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * 每行是 "会话号\t命令" 或者只有命令（按行轮流分给各会话）；# 开头的行是注释。
+     */
+    private List<List<String>> readTrace() throws IOException {
+        List<String> lines = Files.readAllLines(trace, StandardCharsets.UTF_8);
+        Map<Integer, List<String>> bySession = new TreeMap<>();
+        int next = 0;
+        for (String line : lines) {
+            if (line.isBlank() || line.startsWith("#")) continue;
+            int tab = line.indexOf('\t');
+            int session;
+            if (tab > 0 && line.substring(0, tab).chars().allMatch(Character::isDigit)) {
+                session = Integer.parseInt(line.substring(0, tab));
+                line = line.substring(tab + 1);
+            } else {
+                session = next++ % sessions;
+            }
+            bySession.computeIfAbsent(session, s -> new ArrayList<>()).add(line);
+        }
+        return new ArrayList<>(bySession.values());
+    }
+
+    private void writeTrace(List<Session> running) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(record, StandardCharsets.UTF_8)) {
+            out.write(TRACE_HEADER + "--shape " + shape + " --nodes " + nodes + " --users " + users
+                    + " --seed " + seed + "\n");
+            for (Session session : running) {
+                for (String line : session.executed) {
+                    out.write(session.id + "\t" + line + "\n");
+                }
+            }
+        }
+        System.out.println("recorded trace: " + record);
+    }
+
+    private boolean report(double seconds) throws IOException {
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(latencies);
+        long total = 0;
+        long totalErrors = 0;
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s %10s %8s",
+                "command", "count", "ops/s", "mean", "p50", "p99", "p99.9", "max", "errors"));
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            long failed = errors.getOrDefault(entry.getKey(), new LongAdder()).sum();
+            total += h.count();
+            totalErrors += failed;
+            System.out.println(String.format("%-10s %10d %10.0f %10d %10d %10d %10d %10d %8d", entry.getKey(), h.count(),
+                    h.count() / seconds, h.meanNanos() / 1000, h.percentile(50) / 1000, h.percentile(99) / 1000,
+                    h.percentile(99.9) / 1000, h.maxNanos() / 1000, failed));
+        }
+        double throughput = total / seconds;
+        System.out.printf("total: %d commands in %.1f s, %.0f ops/s, %d errors (latencies in microseconds)%n",
+                total, seconds, throughput, totalErrors);
+        if (json != null) {
+            writeJson(sorted, seconds, throughput);
+        }
+
+        boolean passed = true;
+        for (Map.Entry<String, Long> limit : maxP99Micros.entrySet()) {
+            LatencyHistogram h = latencies.get(limit.getKey());
+            long p99 = h == null ? 0 : h.percentile(99) / 1000;
+            if (p99 > limit.getValue()) {
+                System.out.println("FAIL: " + limit.getKey() + " p99 " + p99 + " us > " + limit.getValue() + " us");
+                passed = false;
+            }
+        }
+        if (throughput < minThroughput) {
+            System.out.printf("FAIL: throughput %.0f ops/s < %.0f ops/s%n", throughput, minThroughput);
+            passed = false;
+        }
+        if (maxErrors >= 0 && totalErrors > maxErrors) {
+            System.out.println("FAIL: " + totalErrors + " errors > " + maxErrors);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private void writeJson(Map<String, LatencyHistogram> sorted, double seconds, double throughput) throws IOException {
+        StringBuilder text = new StringBuilder("{\n");
+        text.append(String.format("  \"shape\": \"%s\", \"nodes\": %d, \"sessions\": %d, \"seconds\": %.3f,"
+                + " \"throughput\": %.1f,%n  \"commands\": {", shape, nodes, sessions,
+                seconds, throughput));
+        String separator = "\n";
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            text.append(separator).append(String.format("    \"%s\": {\"count\": %d, \"opsPerSecond\": %.1f,"
+                            + " \"p50Micros\": %d, \"p99Micros\": %d, \"p999Micros\": %d, \"maxMicros\": %d, \"errors\": %d}",
+                    entry.getKey(), h.count(), h.count() / seconds, h.percentile(50) / 1000, h.percentile(99) / 1000,
+                    h.percentile(99.9) / 1000, h.maxNanos() / 1000, errors.getOrDefault(entry.getKey(), new LongAdder()).sum()));
+            separator = ",\n";
+        }
+        text.append("\n  }\n}\n");
+        Files.writeString(json, text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一个模拟会话：自己的 {@link FileSystem} 会话视图和 {@link SimpleShell}，vim 从一个无限的输入里读到 :wq。
+     */
+    private final class Session implements Runnable {
+        private final int id;
+        private final String user;
+        private final String home;
+        private final FileSystem fs;
+        private final SimpleShell shell;
+        private final ErrorCounter err = new ErrorCounter();
+        private final Random random;
+        private final List<String> script;
+        private final List<String> executed = new ArrayList<>();
+        private final boolean[] exists = new boolean[FILES_PER_SESSION];
+        private final String[] commands;
+        private final int[] cumulative;
+
+        Session(FileSystem shared, int id, List<String> script) {
+            this.id = id;
+            this.user = "load" + id % users;
+            this.home = "/" + user + "/s" + id;
+            this.fs = shared.newSession(DISCARD, err);
+            this.shell = new SimpleShell(fs, new Scanner(new EditorInput(id), StandardCharsets.UTF_8), DISCARD, err);
+            this.random = new Random(seed * 31 + id);
+            this.script = script;
+            this.commands = mix.keySet().toArray(new String[0]);
+            this.cumulative = new int[commands.length];
+            int sum = 0;
+            for (int i = 0; i < commands.length; i++) {
+                sum += mix.get(commands[i]);
+                cumulative[i] = sum;
+            }
+        }
+
+        /**
+         * 登录并建好会话自己的目录和一半的文件，不计时。回放时登录也在记录里。
+         */
+        void setUp() {
+            if (script != null) return;
+            execute("login " + user + " " + PASSWORD, false);
+            execute("mkdir " + home, false);
+            for (int i = 0; i < FILES_PER_SESSION; i += 2) {
+                execute("echo initial content of file " + i + " > " + home + "/f" + i, false);
+                exists[i] = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (script != null) {
+                for (String line : script) {
+                    execute(line, true);
+                }
+                return;
+            }
+            for (long n = 0; opsPerSession > 0 ? n < opsPerSession : !stopping; n++) {
+                execute(next(), true);
+            }
+        }
+
+        private String next() {
+            int pick = random.nextInt(cumulative[cumulative.length - 1]);
+            int i = 0;
+            while (cumulative[i] <= pick) i++;
+            int file = random.nextInt(FILES_PER_SESSION);
+            String own = home + "/f" + file;
+            return switch (commands[i]) {
+                case "cd" -> "cd " + pick(directories);
+                case "ls" -> "ls -l " + pick(directories) + " --limit 100";
+                case "cat" -> "cat " + (exists[file] && random.nextBoolean() ? own : pick(files));
+                case "head" -> "head -n 5 " + pick(files);
+                case "du" -> "du " + pick(directories);
+                case "echo" -> {
+                    exists[file] = true;
+                    yield "echo line " + random.nextInt(1_000_000) + " from session " + id + " >> " + own;
+                }
+                case "vim" -> {
+                    exists[file] = true;
+                    yield "vim " + own;
+                }
+                case "chmod" -> exists[file] ? "chmod " + (random.nextBoolean() ? "644" : "600") + " " + own
+                        : "touch " + markCreated(file);
+                case "touch" -> exists[file] ? "cat " + own : "touch " + markCreated(file);
+                case "rm" -> {
+                    if (!exists[file]) yield "touch " + markCreated(file);
+                    exists[file] = false;
+                    yield "rm " + own;
+                }
+                default -> throw new IllegalStateException(commands[i]);
+            };
+        }
+
+        private String markCreated(int file) {
+            exists[file] = true;
+            return home + "/f" + file;
+        }
+
+        private String pick(List<String> paths) {
+            return paths.get(random.nextInt(paths.size()));
+        }
+
+        /**
+         * 和 {@link SimpleShell#loop()} 一样：refresh、执行、commit。
+         */
+        private void execute(String line, boolean timed) {
+            if (record != null) {
+                executed.add(line);
+            }
+            List<String> tokens = shell.split(line, ' ');
+            if (tokens.isEmpty()) return;
+            String command = tokens.getFirst();
+            err.failed = false;
+            long start = System.nanoTime();
+            fs.refresh();
+            shell.executeCommand(command, tokens.subList(1, tokens.size()));
+            fs.commit();
+            long nanos = System.nanoTime() - start;
+            if (timed && measuring) {
+                latencies.computeIfAbsent(command, c -> new LatencyHistogram()).record(nanos);
+                if (err.failed) {
+                    errors.computeIfAbsent(command, c -> new LongAdder()).increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * 丢弃输出，只记下有没有写过错误。
+     */
+    private static final class ErrorCounter extends PrintStream {
+        private boolean failed;
+
+        ErrorCounter() {
+            super(OutputStream.nullOutputStream());
+        }
+
+        @Override
+        public void write(int b) {
+            failed = true;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            failed = true;
+        }
+    }
+
+    /**
+     * vim 的输入：无限重复 "一行文字\n:wq\n"，每次编辑追加一行。
+     */
+    private static final class EditorInput extends InputStream {
+        private final byte[] text;
+        private int position;
+
+        EditorInput(int session) {
+            text = ("edited in session " + session + "\n:wq\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read() {
+            byte b = text[position];
+            position = (position + 1) % text.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                buffer[offset + i] = (byte) read();
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package net.fangyi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileSystem#getNodeByPath}：规范绝对路径（命中 {@link PathCache}）、相对路径（逐段解析）和不存在的路径。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathLookupBenchmark {
+    @Param({"1", "4", "16", "64"})
+    int depth;
+
+    FileSystem fs;
+    String absolute;
+    String relative;
+    String missing;
+
+    @Setup
+    public void setUp() {
+        fs = TreeShapes.newFileSystem();
+        absolute = TreeShapes.chain(fs, depth);
+        relative = absolute.substring(1);
+        missing = absolute + "x";
+        fs.changeDirectory("/");
+    }
+
+    @Benchmark
+    public FileSystemNode absolute() {
+        return fs.getNodeByPath(absolute);
+    }
+
+    @Benchmark
+    public FileSystemNode relative() {
+        return fs.getNodeByPath(relative);
+    }
+
+    @Benchmark
+    public FileSystemNode missing() {
+        return fs.getNodeByPath(missing);
+    }
+}
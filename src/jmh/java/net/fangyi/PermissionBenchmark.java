@@ -0,0 +1,42 @@
+package net.fangyi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 普通用户对 {@code depth} 层深处的文件做 {@link FileSystem#checkPermissions}：
+ * 命中 {@link PermissionChecker} 的缓存，以及每次先使缓存失效、沿祖先链重新计算。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionBenchmark {
+    @Param({"1", "4", "16", "64"})
+    int depth;
+
+    FileSystem fs;
+    FileSystemNode file;
+
+    @Setup
+    public void setUp() {
+        fs = TreeShapes.newFileSystem();
+        file = fs.getNodeByPath(TreeShapes.chain(fs, depth));
+        fs.addUser("bench", "bench", "users");
+        fs.login("bench", "bench");
+    }
+
+    @Benchmark
+    public boolean cached() {
+        return fs.checkPermissions(file, 'r');
+    }
+
+    @Benchmark
+    public boolean afterInvalidation() {
+        fs.getAccess().invalidate();
+        return fs.checkPermissions(file, 'r');
+    }
+}
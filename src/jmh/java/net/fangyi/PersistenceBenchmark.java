@@ -0,0 +1,65 @@
+package net.fangyi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 不同规模和形状的目录树的 {@link FileSystem#saveToFile} 和 {@link FileSystem#loadFromFile}。
+ * 没有日志，每次保存都写出清单和全部分区的段文件；每次调用都是完整的保存或加载，用单次计时模式。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PersistenceBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    int nodes;
+
+    @Param({"wide", "balanced", "deep"})
+    String shape;
+
+    FileSystem fs;
+    Path directory;
+    String snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        fs = TreeShapes.newFileSystem();
+        TreeShapes.build(fs, shape, nodes);
+        directory = Files.createTempDirectory("fs-bench");
+        snapshot = directory.resolve(FileSystem.STATE_FILE).toString();
+        fs.saveToFile(snapshot);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Path segments = directory.resolve(FileSystem.PARTITION_DIR);
+        if (Files.isDirectory(segments)) {
+            try (Stream<Path> files = Files.list(segments)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(segments);
+        }
+        Files.deleteIfExists(Path.of(snapshot));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void save() {
+        fs.saveToFile(snapshot);
+    }
+
+    @Benchmark
+    public void load() {
+        fs.loadFromFile(snapshot);
+    }
+}
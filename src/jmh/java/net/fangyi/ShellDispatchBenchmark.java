@@ -0,0 +1,46 @@
+package net.fangyi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SimpleShell#executeCommand} 的分派：命令在判断链中的位置不同，加上命令本身很便宜时的总开销。
+ * 最后一个是不存在的命令，走完整条判断链。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShellDispatchBenchmark {
+    @Param({"chmod", "pwd", "getperm", "cat", "passwd", "nosuchcommand"})
+    String command;
+
+    SimpleShell shell;
+    List<String> args;
+
+    @Setup
+    public void setUp() {
+        FileSystem fs = TreeShapes.newFileSystem();
+        TreeShapes.fill(fs, "/bench", 1);
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        shell = new SimpleShell(fs, new Scanner(""), discard, discard);
+        args = switch (command) {
+            case "chmod" -> List.of("644", "/bench/f0");
+            case "getperm", "cat" -> List.of("/bench/f0");
+            case "passwd" -> List.of("root", "password");
+            default -> List.of();
+        };
+    }
+
+    @Benchmark
+    public void execute() {
+        shell.executeCommand(command, args);
+    }
+}
@@ -0,0 +1,103 @@
+package net.fangyi;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基准测试用的目录树。所有节点建在 /bench 下，文件带一行内容；
+ * wide 把所有文件放在一个目录里，balanced 每个目录 32 个子节点，deep 是若干条 64 层深的目录链。
+ */
+final class TreeShapes {
+    static final int FANOUT = 32;
+    static final int CHAIN_DEPTH = 64;
+
+    private TreeShapes() {
+    }
+
+    /**
+     * 不打开日志、输出丢弃、以 root 登录的文件系统。
+     */
+    static FileSystem newFileSystem() {
+        return newFileSystem(false);
+    }
+
+    /**
+     * {@code open} 为 true 时先在当前目录打开快照、日志和审计日志，之后的修改和交互式 shell 一样持久化。
+     */
+    static FileSystem newFileSystem(boolean open) {
+        FileSystem fs = new FileSystem();
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        fs.setOut(discard);
+        fs.setErr(discard);
+        if (open) {
+            fs.open();
+        }
+        fs.login("root", "password");
+        fs.createNode("/bench", true, "root", "root");
+        return fs;
+    }
+
+    /**
+     * 按 {@code shape} 在 /bench 下生成大约 {@code nodes} 个节点。
+     */
+    static void build(FileSystem fs, String shape, int nodes) {
+        switch (shape) {
+            case "wide" -> fill(fs, "/bench", nodes);
+            case "balanced" -> balanced(fs, "/bench", nodes);
+            case "deep" -> {
+                for (int chain = 0; nodes > 0; chain++) {
+                    String path = "/bench/c" + chain;
+                    for (int level = 0; level < CHAIN_DEPTH && nodes > 1; level++, nodes--) {
+                        fs.createNode(path, true, "root", "root");
+                        path += "/d";
+                    }
+                    file(fs, path);
+                    nodes--;
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+
+    /**
+     * 生成 /bench/d/d/.../d 共 {@code depth} 层目录，最深处放一个文件 f，返回该文件的路径。
+     */
+    static String chain(FileSystem fs, int depth) {
+        StringBuilder path = new StringBuilder("/bench");
+        for (int i = 0; i < depth; i++) {
+            path.append("/d");
+            fs.createNode(path.toString(), true, "root", "root");
+        }
+        path.append("/f");
+        file(fs, path.toString());
+        return path.toString();
+    }
+
+    /**
+     * 在目录 {@code directory} 中生成 {@code count} 个文件 f0、f1……
+     */
+    static void fill(FileSystem fs, String directory, int count) {
+        for (int i = 0; i < count; i++) {
+            file(fs, directory + "/f" + i);
+        }
+    }
+
+    private static void balanced(FileSystem fs, String directory, int nodes) {
+        if (nodes <= FANOUT) {
+            fill(fs, directory, nodes);
+            return;
+        }
+        int perChild = (nodes - FANOUT) / FANOUT;
+        for (int i = 0; i < FANOUT; i++) {
+            String child = directory + "/d" + i;
+            fs.createNode(child, true, "root", "root");
+            balanced(fs, child, perChild);
+        }
+    }
+
+    private static void file(FileSystem fs, String path) {
+        fs.createNode(path, false, "root", "root");
+        fs.append(fs.getNodeByPath(path), (path + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,241 @@
+package net.fangyi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 文件系统修改的审计日志。命令线程只在环形缓冲区里占一个槽位，由后台线程写成 JSON 行，超过 {@link #MAX_FILE_SIZE} 时轮转。
+ */
+public class AuditLog implements Closeable {
+    static final int CAPACITY = 1 << 14;
+    static final int BATCH = 1024;
+    static final long MAX_FILE_SIZE = 16L * 1024 * 1024;
+    static final int KEEP_FILES = 5;
+    static final long IDLE_PARK_NANOS = 1_000_000;
+
+    static final String CREATE = "create";
+    static final String MKDIR = "mkdir";
+    static final String REMOVE = "remove";
+    static final String CHMOD = "chmod";
+    static final String CHMOD_RECURSIVE = "chmod-r";
+    static final String SET_CONTENT = "set-content";
+    static final String WRITE = "write";
+    static final String APPEND = "append";
+    static final String TRUNCATE = "truncate";
+    static final String COPY = "copy";
+    static final String RESTORE = "restore";
+    static final String ROLLBACK = "rollback";
+    static final String IMPORT = "import";
+    static final String EXPORT = "export";
+
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * 环形缓冲区的槽位。{@code sequence} 等于槽位当前承载的记录序号时表示记录已经写完、可以读取。
+     */
+    private static final class Entry {
+        volatile long sequence = -1;
+        long time;
+        String user;
+        String op;
+        String path;
+        String target;
+        int before;
+        int after;
+    }
+
+    private final Entry[] ring = new Entry[CAPACITY];
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private volatile boolean closed;
+    private final Path file;
+    private final PrintStream err;
+    private final Thread writer;
+    private final StringBuilder text = new StringBuilder();
+    private long lastTime = -1;
+    private String lastTimeText;
+    private FileChannel channel;
+    private Object fileKey;
+
+    AuditLog(String filename, PrintStream err) throws IOException {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+        }
+        this.file = Path.of(filename);
+        this.err = err;
+        openFile();
+        writer = new Thread(this::drainLoop, "audit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 记录一次修改，{@code before}/{@code after} 是修改前后的 mode，-1 表示不适用。
+     */
+    void record(String user, String op, String path, String target, int before, int after) {
+        if (closed) return;
+        long sequence = claimed.getAndIncrement();
+        while (sequence - consumed >= CAPACITY) {
+            // 缓冲区满：等后台线程腾出槽位，不丢记录
+            LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+        }
+        Entry entry = ring[(int) sequence & MASK];
+        entry.time = System.currentTimeMillis();
+        entry.user = user;
+        entry.op = op;
+        entry.path = path;
+        entry.target = target;
+        entry.before = before;
+        entry.after = after;
+        entry.sequence = sequence;
+    }
+
+    private void drainLoop() {
+        while (true) {
+            if (drain() > 0) continue;
+            if (closed && consumed == claimed.get()) return;
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * 取出最多 {@link #BATCH} 条连续的已提交记录，一次写入文件，返回条数。
+     */
+    private int drain() {
+        long next = consumed;
+        int count = 0;
+        text.setLength(0);
+        while (count < BATCH) {
+            Entry entry = ring[(int) next & MASK];
+            if (entry.sequence != next) break;
+            format(entry);
+            entry.user = entry.path = entry.target = null;
+            next++;
+            count++;
+        }
+        if (count == 0) return 0;
+        consumed = next;
+        try {
+            write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            err.println("Error writing audit log: " + file + ": " + e.getMessage());
+        }
+        return count;
+    }
+
+    private void format(Entry entry) {
+        if (entry.time != lastTime) {
+            lastTime = entry.time;
+            lastTimeText = Instant.ofEpochMilli(entry.time).toString();
+        }
+        text.append("{\"time\":\"").append(lastTimeText).append('"');
+        appendField("user", entry.user);
+        appendField("op", entry.op);
+        appendField("path", entry.path);
+        appendField("target", entry.target);
+        appendMode("before", entry.before);
+        appendMode("after", entry.after);
+        text.append("}\n");
+    }
+
+    private void appendField(String name, String value) {
+        if (value == null) return;
+        text.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c < 0x20) {
+                text.append(String.format("\\u%04x", (int) c));
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    private void appendMode(String name, int mode) {
+        if (mode < 0) return;
+        text.append(",\"").append(name).append("\":\"")
+                .append((char) ('0' + (mode >> 6 & 7))).append((char) ('0' + (mode >> 3 & 7))).append((char) ('0' + (mode & 7)))
+                .append('"');
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileKey = currentFileKey();
+    }
+
+    private Object currentFileKey() throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        if (!Objects.equals(currentFileKey(), fileKey)) {
+            // 其他进程轮转了文件
+            channel.close();
+            openFile();
+        }
+        if (channel.size() > 0 && channel.size() + bytes.remaining() > MAX_FILE_SIZE) {
+            rotate();
+        }
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void rotate() throws IOException {
+        try (FileLock ignored = channel.lock()) {
+            if (Objects.equals(currentFileKey(), fileKey)) {
+                Files.deleteIfExists(rotated(KEEP_FILES));
+                for (int i = KEEP_FILES - 1; i >= 1; i--) {
+                    if (Files.exists(rotated(i))) {
+                        Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        channel.close();
+        openFile();
+    }
+
+    private Path rotated(int n) {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+
+    /**
+     * 等后台线程写完所有已提交的记录后刷盘并关闭文件。
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.force(false);
+        channel.close();
+    }
+}
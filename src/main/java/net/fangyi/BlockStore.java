@@ -0,0 +1,343 @@
+package net.fangyi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按内容寻址的数据块存储，相同内容只保存一份，按引用计数共享。
+ * 堆中最多缓存 {@link #getCacheBytes()} 字节（{@code fs.cacheBytes}），超出时用 CLOCK 算法把块换出到 {@link SegmentStore}。
+ */
+public class BlockStore {
+    static final BlockStore SHARED = new BlockStore(
+            Long.getLong("fs.cacheBytes", Runtime.getRuntime().maxMemory() / 8),
+            Path.of(System.getProperty("fs.segmentDir", ".")));
+    static final int SPILL_BATCH = 256;
+
+    private static final AtomicReferenceFieldUpdater<Block, byte[]> DATA =
+            AtomicReferenceFieldUpdater.newUpdater(Block.class, byte[].class, "data");
+
+    /**
+     * 不可变的数据块，相等性由内容决定。
+     */
+    static final class Block {
+        private volatile byte[] data; // 换出后为 null
+        private final int length;
+        private final int hash;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private final BlockStore store; // 不共享的块为 null，不会被换出
+        private volatile boolean referenced; // CLOCK 的访问标志
+        private volatile SegmentStore.Location location; // 在段文件中的副本，没有写出过时为 null
+
+        Block(byte[] data) {
+            this(data, null);
+        }
+
+        private Block(byte[] data, BlockStore store) {
+            this.data = data;
+            this.length = data.length;
+            this.hash = Arrays.hashCode(data);
+            this.store = store;
+        }
+
+        /**
+         * 块的内容，已经换出时从段文件读回并放回缓存。返回的数组不能修改。
+         */
+        byte[] data() {
+            byte[] bytes = data;
+            if (bytes == null) return store.fault(this);
+            if (!referenced) referenced = true;
+            return bytes;
+        }
+
+        /**
+         * 读取内容但不影响缓存：已经换出时直接从段文件读，不放回内存。用于保存快照、导出这类一次性的扫描。
+         */
+        byte[] peek() {
+            byte[] bytes = data;
+            return bytes != null ? bytes : store.readSpilled(this);
+        }
+
+        int length() {
+            return length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Block other && hash == other.hash && length == other.length
+                    && Arrays.equals(peek(), other.peek());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final ConcurrentHashMap<Block, Block> blocks = new ConcurrentHashMap<>();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final long cacheBytes;
+    private final SegmentStore segments;
+    private final ConcurrentLinkedQueue<Block> resident = new ConcurrentLinkedQueue<>(); // CLOCK 的环
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicInteger residentBlocks = new AtomicInteger();
+    private final ReentrantLock sweeping = new ReentrantLock();
+    private final LongAdder faults = new LongAdder();
+    private final LongAdder spilledBytes = new LongAdder();
+    private volatile IOException spillError; // 写段文件失败后不再换出
+
+    BlockStore(long cacheBytes, Path segmentDirectory) {
+        this(cacheBytes, new SegmentStore(segmentDirectory));
+    }
+
+    BlockStore(long cacheBytes, SegmentStore segments) {
+        this.cacheBytes = cacheBytes;
+        this.segments = segments;
+    }
+
+    /**
+     * 返回内容为 {@code data} 的共享块并增加一个引用，调用后不能再修改 {@code data}。
+     */
+    Block intern(byte[] data) {
+        Block block = new Block(data, this);
+        while (true) {
+            Block existing = blocks.putIfAbsent(block, block);
+            if (existing == null) {
+                storedBytes.addAndGet(data.length);
+                admit(block);
+                return block;
+            }
+            if (retain(existing)) {
+                return existing;
+            }
+            // 引用计数已经归零，正在被移除，帮它移除后重试
+            remove(existing);
+        }
+    }
+
+    /**
+     * 为已有的块增加一个引用，块已经被释放时返回 false。
+     */
+    boolean retain(Block block) {
+        int refs;
+        do {
+            refs = block.refs.get();
+            if (refs <= 0) return false;
+        } while (!block.refs.compareAndSet(refs, refs + 1));
+        return true;
+    }
+
+    void release(Block block) {
+        if (block.refs.decrementAndGet() == 0) {
+            SegmentStore.Location location = block.location;
+            if (location != null) {
+                segments.free(location, block.length);
+            }
+            remove(block);
+        }
+    }
+
+    /**
+     * 只移除这个块对象本身；按内容比较会误删别的线程刚放进来的同内容新块。
+     */
+    private void remove(Block block) {
+        blocks.computeIfPresent(block, (key, current) -> {
+            if (current != block) return current;
+            storedBytes.addAndGet(-block.length);
+            return null;
+        });
+    }
+
+    /**
+     * 块的内容刚进入内存，放到 CLOCK 环的末尾；缓存超出预算时换出。
+     */
+    private void admit(Block block) {
+        resident.add(block);
+        residentBlocks.incrementAndGet();
+        if (residentBytes.addAndGet(block.length) > cacheBytes && spillError == null) {
+            sweep();
+        }
+    }
+
+    private byte[] fault(Block block) {
+        byte[] bytes = readSpilled(block);
+        faults.increment();
+        // 已经释放的块只是还被快照引用，不放回缓存
+        if (block.refs.get() > 0 && DATA.compareAndSet(block, null, bytes)) {
+            block.referenced = true;
+            admit(block);
+        }
+        return bytes;
+    }
+
+    /**
+     * 块只有在写出到段文件之后才会丢弃内容，所以内容为 null 时位置一定有效。
+     */
+    private byte[] readSpilled(Block block) {
+        try {
+            return SegmentStore.read(block.location, block.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 转动 CLOCK 指针直到缓存降到预算的八分之七，同一时刻只有一个线程换出。
+     */
+    private void sweep() {
+        if (!sweeping.tryLock()) return;
+        try {
+            long target = cacheBytes - cacheBytes / 8;
+            int limit = 2 * residentBlocks.get();
+            List<Block> batch = new ArrayList<>(SPILL_BATCH);
+            Block block;
+            while (residentBytes.get() > target && limit-- > 0 && (block = resident.poll()) != null) {
+                if (block.refs.get() <= 0) {
+                    leave(block);
+                } else if (block.referenced) {
+                    block.referenced = false;
+                    resident.add(block);
+                } else if (block.location != null) {
+                    drop(block);
+                } else {
+                    batch.add(block);
+                    if (batch.size() == SPILL_BATCH && !spill(batch)) return;
+                }
+            }
+            if (spill(batch)) {
+                compact();
+            }
+        } finally {
+            sweeping.unlock();
+        }
+    }
+
+    /**
+     * 把一批块写到段文件后丢弃内容。失败时块留在内存里，之后不再换出。
+     */
+    private boolean spill(List<Block> batch) {
+        if (batch.isEmpty()) return true;
+        List<byte[]> contents = new ArrayList<>(batch.size());
+        for (Block block : batch) {
+            contents.add(block.data);
+        }
+        try {
+            SegmentStore.Location[] locations = segments.write(contents);
+            for (int i = 0; i < locations.length; i++) {
+                Block block = batch.get(i);
+                block.location = locations[i];
+                spilledBytes.add(block.length);
+                drop(block);
+            }
+            return true;
+        } catch (IOException e) {
+            spillError = e;
+            resident.addAll(batch);
+            return false;
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * 把空闲空间超过一半的段中仍然有效的块搬到当前段。
+     */
+    private void compact() {
+        List<SegmentStore.Segment> sparse = segments.takeSparse();
+        if (sparse.isEmpty()) return;
+        Set<SegmentStore.Segment> moving = Collections.newSetFromMap(new IdentityHashMap<>());
+        moving.addAll(sparse);
+        List<Block> batch = new ArrayList<>(SPILL_BATCH);
+        List<byte[]> contents = new ArrayList<>(SPILL_BATCH);
+        try {
+            for (Block block : blocks.keySet()) {
+                SegmentStore.Location location = block.location;
+                if (location == null || !moving.contains(location.segment()) || block.refs.get() <= 0) continue;
+                if (block.data != null) {
+                    block.location = null;
+                    continue;
+                }
+                batch.add(block);
+                contents.add(SegmentStore.read(location, block.length));
+                if (batch.size() == SPILL_BATCH) {
+                    relocate(batch, contents);
+                }
+            }
+            relocate(batch, contents);
+        } catch (IOException e) {
+            spillError = e;
+        }
+    }
+
+    private void relocate(List<Block> batch, List<byte[]> contents) throws IOException {
+        if (batch.isEmpty()) return;
+        SegmentStore.Location[] locations = segments.write(contents);
+        for (int i = 0; i < locations.length; i++) {
+            batch.get(i).location = locations[i];
+        }
+        batch.clear();
+        contents.clear();
+    }
+
+    private void drop(Block block) {
+        block.data = null;
+        leave(block);
+    }
+
+    private void leave(Block block) {
+        residentBytes.addAndGet(-block.length);
+        residentBlocks.decrementAndGet();
+    }
+
+    int blockCount() {
+        return blocks.size();
+    }
+
+    long storedBytes() {
+        return storedBytes.get();
+    }
+
+    long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    long residentBytes() {
+        return residentBytes.get();
+    }
+
+    long faults() {
+        return faults.sum();
+    }
+
+    long spilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    long segmentBytes() {
+        return segments.diskBytes();
+    }
+
+    IOException spillError() {
+        return spillError;
+    }
+
+    /**
+     * 删除段文件，之后不再换出。已经换出的块不能再读取，只在进程退出前调用。
+     */
+    void close() {
+        segments.close();
+    }
+}
@@ -0,0 +1,189 @@
+package net.fangyi;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 目录的子节点表：以名字为键的开放寻址哈希表，查找不加锁，修改由调用方串行化。
+ * {@link #pending} 不为 null 时内容还在 {@link Partitions} 的段文件中。
+ */
+final class ChildTable {
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final Object TOMBSTONE = new Object();
+    private static final int INITIAL_CAPACITY = 4;
+    static final int SORTED_THRESHOLD = 256;
+
+    private final int seed = ThreadLocalRandom.current().nextInt();
+    private volatile Object[] slots = new Object[INITIAL_CAPACITY];
+    private volatile int size;
+    private int used; // 非空槽位数，包括墓碑
+    private volatile NavigableMap<String, FileSystemNode> sorted; // 子节点不多时为 null
+    volatile Runnable pending; // 尚未加载时的加载动作
+    volatile TreeContext context; // 所在目录树的快照登记和权限缓存，游离的目录为 null
+
+    FileSystemNode get(String name) {
+        Object[] table = slots;
+        int mask = table.length - 1;
+        for (int i = indexFor(name, table.length); ; i = (i + 1) & mask) {
+            Object slot = SLOTS.getAcquire(table, i);
+            if (slot == null) return null;
+            if (slot != TOMBSTONE && ((FileSystemNode) slot).getName().equals(name)) {
+                return (FileSystemNode) slot;
+            }
+        }
+    }
+
+    /**
+     * 插入子节点，同名节点已存在时不修改并返回已有节点。
+     */
+    FileSystemNode putIfAbsent(FileSystemNode child) {
+        Object[] table = slots;
+        int mask = table.length - 1;
+        int free = -1;
+        int i = indexFor(child.getName(), table.length);
+        for (; ; i = (i + 1) & mask) {
+            Object slot = table[i];
+            if (slot == null) break;
+            if (slot == TOMBSTONE) {
+                if (free < 0) free = i;
+            } else if (((FileSystemNode) slot).getName().equals(child.getName())) {
+                return (FileSystemNode) slot;
+            }
+        }
+        if (free < 0) {
+            free = i;
+            used++;
+        }
+        SLOTS.setRelease(table, free, child);
+        size++;
+        if (used * 4 >= table.length * 3) {
+            rehash(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(size * 4 - 1)));
+        }
+        NavigableMap<String, FileSystemNode> index = sorted;
+        if (index != null) {
+            index.put(child.getName(), child);
+        } else if (size > SORTED_THRESHOLD) {
+            index = new ConcurrentSkipListMap<>();
+            for (FileSystemNode node : values()) {
+                index.put(node.getName(), node);
+            }
+            sorted = index;
+        }
+        return null;
+    }
+
+    /**
+     * 删除这个子节点对象本身，不在表中时返回 false。
+     */
+    boolean remove(FileSystemNode child) {
+        Object[] table = slots;
+        int mask = table.length - 1;
+        for (int i = indexFor(child.getName(), table.length); ; i = (i + 1) & mask) {
+            Object slot = table[i];
+            if (slot == null) return false;
+            if (slot == child) {
+                SLOTS.setRelease(table, i, TOMBSTONE);
+                size--;
+                NavigableMap<String, FileSystemNode> index = sorted;
+                if (index != null) {
+                    index.remove(child.getName(), child);
+                    if (size < SORTED_THRESHOLD / 2) {
+                        sorted = null;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 为即将插入的 {@code more} 个子节点一次扩容，加载时子节点数已知，不必逐级翻倍。
+     */
+    void reserve(int more) {
+        int expected = size + more;
+        if (expected * 4 >= slots.length * 3) {
+            rehash(Integer.highestOneBit(expected * 4 - 1));
+        }
+    }
+
+    /**
+     * 当前子节点的快照。
+     */
+    List<FileSystemNode> values() {
+        Object[] table = slots;
+        List<FileSystemNode> values = new ArrayList<>(size);
+        for (int i = 0; i < table.length; i++) {
+            Object slot = SLOTS.getAcquire(table, i);
+            if (slot != null && slot != TOMBSTONE) {
+                values.add((FileSystemNode) slot);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 按名字排序、名字大于 {@code after} 的最多 {@code limit} 个子节点；{@code after} 为 null 时从第一个开始。
+     */
+    List<FileSystemNode> page(String after, int limit) {
+        NavigableMap<String, FileSystemNode> index = sorted;
+        if (index != null) {
+            List<FileSystemNode> page = new ArrayList<>(Math.min(limit, 1024));
+            Iterator<FileSystemNode> it = (after == null ? index : index.tailMap(after, false)).values().iterator();
+            while (page.size() < limit && it.hasNext()) {
+                page.add(it.next());
+            }
+            return page;
+        }
+        List<FileSystemNode> page = values();
+        if (after != null) {
+            page.removeIf(node -> node.getName().compareTo(after) <= 0);
+        }
+        page.sort(Comparator.comparing(FileSystemNode::getName));
+        return page.size() > limit ? page.subList(0, limit) : page;
+    }
+
+    void clear() {
+        sorted = null;
+        slots = new Object[INITIAL_CAPACITY];
+        size = 0;
+        used = 0;
+    }
+
+    private void rehash(int capacity) {
+        Object[] table = slots;
+        Object[] grown = new Object[capacity];
+        int mask = capacity - 1;
+        for (Object slot : table) {
+            if (slot == null || slot == TOMBSTONE) continue;
+            int i = indexFor(((FileSystemNode) slot).getName(), capacity);
+            while (grown[i] != null) {
+                i = (i + 1) & mask;
+            }
+            grown[i] = slot;
+        }
+        used = size;
+        slots = grown;
+    }
+
+    /**
+     * 名字的散列与本表的种子混合后取高位。每张表的槽位顺序各不相同，按槽位顺序把一张表的内容插入另一张正在增长的表
+     * （保存、加载快照都是这样）时，前面插入的不会都落在同一段槽位上，在线性探测下聚成长串。
+     */
+    private int indexFor(String name, int capacity) {
+        int h = name.hashCode() ^ seed;
+        h = (h ^ (h >>> 16)) * 0x85EBCA6B;
+        h = (h ^ (h >>> 13)) * 0xC2B2AE35;
+        return (h ^ (h >>> 16)) >>> Integer.numberOfLeadingZeros(capacity - 1);
+    }
+}
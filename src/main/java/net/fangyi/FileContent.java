@@ -0,0 +1,265 @@
+package net.fangyi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 文件内容，按 {@link #CHUNK_SIZE} 字节分块，块来自 {@link BlockStore} 并在文件之间共享。
+ * 不是线程安全的，调用方持有节点所在条带的锁。
+ */
+public class FileContent {
+    static final int CHUNK_SIZE = 4096;
+    /**
+     * 单个文件的最大长度。空洞也按块存放，块下标和块数组长度都要放得进 int。
+     */
+    static final long MAX_SIZE = 1L << 30;
+
+    private static final BlockStore.Block[] NO_CHUNKS = new BlockStore.Block[0];
+
+    /**
+     * 所有空文件共享的内容，只读，写入前由 {@link FileSystemNode#openData()} 换成独立的对象。
+     */
+    static final FileContent EMPTY = new FileContent((BlockStore) null);
+
+    private BlockStore.Block[] chunks = NO_CHUNKS; // 前 chunkCount() 个有效
+    private long length;
+    private BlockStore store; // release 之后为 null，之后的块不再共享
+
+    FileContent() {
+        this(BlockStore.SHARED);
+    }
+
+    FileContent(BlockStore store) {
+        this.store = store;
+    }
+
+    FileContent(byte[] bytes) {
+        this();
+        append(bytes, 0, bytes.length);
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * 从 {@code offset} 开始读取最多 {@code len} 字节，返回实际读取的字节数，越过文件末尾返回 -1。
+     */
+    int read(long offset, byte[] dst, int dstOffset, int len) {
+        if (offset >= length) return -1;
+        int total = (int) Math.min(len, length - offset);
+        int done = 0;
+        while (done < total) {
+            long position = offset + done;
+            byte[] chunk = chunks[(int) (position / CHUNK_SIZE)].data();
+            int chunkOffset = (int) (position % CHUNK_SIZE);
+            int n = Math.min(total - done, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, dst, dstOffset + done, n);
+            done += n;
+        }
+        return total;
+    }
+
+    byte[] read(long offset, int len) {
+        if (offset >= length) return new byte[0];
+        byte[] bytes = new byte[(int) Math.min(len, length - offset)];
+        read(offset, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * 覆盖写入，写到末尾之后时自动扩展，中间的空洞用 0 填充。
+     */
+    void write(long offset, byte[] src, int srcOffset, int len) {
+        if (offset > length) {
+            extend(offset);
+        }
+        int overlap = (int) Math.min(len, length - offset);
+        int done = 0;
+        while (done < overlap) {
+            long position = offset + done;
+            int index = (int) (position / CHUNK_SIZE);
+            int chunkOffset = (int) (position % CHUNK_SIZE);
+            int n = Math.min(overlap - done, CHUNK_SIZE - chunkOffset);
+            byte[] chunk = chunks[index].data().clone();
+            System.arraycopy(src, srcOffset + done, chunk, chunkOffset, n);
+            replace(index, chunk);
+            done += n;
+        }
+        if (done < len) {
+            append(src, srcOffset + done, len - done);
+        }
+    }
+
+    void append(byte[] src, int srcOffset, int len) {
+        append(ByteBuffer.wrap(src, srcOffset, len), len);
+    }
+
+    /**
+     * 追加 {@code len} 字节。未满的最后一块被复制后补齐，其余数据按整块切分。
+     */
+    void append(ByteBuffer src, int len) {
+        int done = 0;
+        while (done < len) {
+            int used = (int) (length % CHUNK_SIZE);
+            int n = Math.min(len - done, CHUNK_SIZE - used);
+            if (used == 0) {
+                byte[] chunk = new byte[n];
+                src.get(chunk);
+                add(intern(chunk));
+            } else {
+                int last = chunkCount() - 1;
+                byte[] chunk = Arrays.copyOf(chunks[last].data(), used + n);
+                src.get(chunk, used, n);
+                replace(last, chunk);
+            }
+            length += n;
+            done += n;
+        }
+    }
+
+    /**
+     * 追加一个已有的块，用于从快照加载。当前长度必须是 {@link #CHUNK_SIZE} 的整数倍。
+     */
+    void appendBlock(BlockStore.Block block) {
+        if (length % CHUNK_SIZE != 0) {
+            throw new IllegalStateException("Last chunk is not full");
+        }
+        if (store == null || !store.retain(block)) {
+            block = intern(block.peek());
+        }
+        add(block);
+        length += block.length();
+    }
+
+    void truncate(long size) {
+        if (size >= length) {
+            extend(size);
+            return;
+        }
+        int keep = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int i = keep; i < chunkCount(); i++) {
+            release(chunks[i]);
+            chunks[i] = null;
+        }
+        int used = (int) (size % CHUNK_SIZE);
+        if (used != 0 && chunks[keep - 1].length() != used) {
+            replace(keep - 1, Arrays.copyOf(chunks[keep - 1].data(), used));
+        }
+        length = size;
+        if (keep == 0) {
+            chunks = NO_CHUNKS;
+        }
+    }
+
+    /**
+     * 释放所有块的引用，节点被删除时调用。内容仍然可读，之后的修改不再进入共享存储。
+     */
+    void release() {
+        if (store == null) return;
+        for (int i = 0; i < chunkCount(); i++) {
+            store.release(chunks[i]);
+        }
+        store = null;
+    }
+
+    /**
+     * 当前数据块的副本。调用方与修改互斥，见 {@link FileSystemNode#blocks()}。
+     */
+    BlockStore.Block[] blocks() {
+        int count = chunkCount();
+        return count == 0 ? NO_CHUNKS : Arrays.copyOf(chunks, count);
+    }
+
+    /**
+     * 返回最后 {@code lines} 行的起始位置，从末尾向前扫描，只触及这些行所在的块。
+     */
+    long tailOffset(int lines) {
+        if (lines <= 0) return length;
+        long position = length;
+        if (position > 0 && byteAt(position - 1) == '\n') position--;
+        int seen = 0;
+        while (position > 0) {
+            if (byteAt(position - 1) == '\n' && ++seen == lines) break;
+            position--;
+        }
+        return position;
+    }
+
+    /**
+     * 返回前 {@code lines} 行之后的位置，从头向后扫描。
+     */
+    long headOffset(int lines) {
+        long position = 0;
+        int seen = 0;
+        while (position < length && seen < lines) {
+            if (byteAt(position++) == '\n') seen++;
+        }
+        return position;
+    }
+
+    void writeTo(OutputStream out, long offset, long end) throws IOException {
+        long position = offset;
+        while (position < end) {
+            byte[] chunk = chunks[(int) (position / CHUNK_SIZE)].data();
+            int chunkOffset = (int) (position % CHUNK_SIZE);
+            int n = (int) Math.min(end - position, CHUNK_SIZE - chunkOffset);
+            out.write(chunk, chunkOffset, n);
+            position += n;
+        }
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        writeTo(out, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(read(0, (int) length), StandardCharsets.UTF_8);
+    }
+
+    private byte byteAt(long position) {
+        return chunks[(int) (position / CHUNK_SIZE)].data()[(int) (position % CHUNK_SIZE)];
+    }
+
+    private void extend(long size) {
+        byte[] zeros = new byte[CHUNK_SIZE];
+        while (length < size) {
+            append(zeros, 0, (int) Math.min(CHUNK_SIZE, size - length));
+        }
+    }
+
+    private void replace(int index, byte[] chunk) {
+        BlockStore.Block old = chunks[index];
+        chunks[index] = intern(chunk);
+        release(old);
+    }
+
+    private int chunkCount() {
+        return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * 在末尾放入一个新块，调用时 length 还没有计入这个块。
+     */
+    private void add(BlockStore.Block block) {
+        int count = chunkCount();
+        if (count == chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(1, count * 2));
+        }
+        chunks[count] = block;
+    }
+
+    private BlockStore.Block intern(byte[] chunk) {
+        return store == null ? new BlockStore.Block(chunk) : store.intern(chunk);
+    }
+
+    private void release(BlockStore.Block chunk) {
+        if (store != null) {
+            store.release(chunk);
+        }
+    }
+}
@@ -1,92 +1,395 @@
 package net.fangyi;
 
-import lombok.Data;
-
 import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-@Data
 public class FileSystem {
+    static final String STATE_FILE = "filesystem_state.dat";
+    static final String LEGACY_STATE_FILE = "filesystem_state.txt";
+    static final String PARTITION_DIR = "filesystem_state.d";
+    static final String USERS_FILE = "users.txt";
+    static final String JOURNAL_FILE = "filesystem.journal";
+    static final String AUDIT_FILE = "audit.log";
+    static final int LIST_PAGE = 1024;
+    /**
+     * 后台重新索引被覆盖写入或截短过的文件的间隔。
+     */
+    static final long REINDEX_DELAY_MILLIS = 1000;
+
     private FileSystemNode root;
-    private FileSystemNode current;
-    private FileSystemNode home;
+    private volatile FileSystemNode current;
     private Map<String, User> users;
     private User currentUser = null;
+    private int uid = -1;
+    private int gid = -1;
+    private Journal journal;
+    private AuditLog audit;
+    /**
+     * 快照的代数，所有会话视图共用一份。
+     */
+    private AtomicLong generation = new AtomicLong();
+    private PathCache pathCache = new PathCache();
+    /**
+     * 全局锁：普通修改共享持有再锁住各自的条带，整树操作独占持有；查找和读取不加锁。
+     */
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private StripedLocks stripes = new StripedLocks();
+    private LeaseManager leases = new LeaseManager();
+    private TreeContext context = new TreeContext();
+    private PermissionChecker access = context.access;
+    private ParallelTree tree = new ParallelTree();
+    private TrigramIndex index = new TrigramIndex();
+    private NameIndex names = new NameIndex();
+    private Map<String, TreeSnapshot> snapshots = new ConcurrentHashMap<>();
+    /**
+     * 后台检查点线程，在冻结的目录树上写快照，并定时把日志刷到磁盘。
+     */
+    private ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private AtomicBoolean checkpointing = new AtomicBoolean();
+    private Metrics metrics = new Metrics();
+    private Quotas quotas = new Quotas();
+    private Watchers watchers = new Watchers();
+    private Partitions partitions = new Partitions(index, names, metrics);
+    /**
+     * 本会话正在进行的批处理，没有时为 null。
+     */
+    private Batch batch;
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
+    /**
+     * 共用目录树的所有会话视图（包括自己），目录树被整体替换后按路径重新定位它们的当前目录。
+     */
+    private Set<FileSystem> sessions = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
 
     FileSystem() {
         root = new FileSystemNode("/", true, "root", "root", "rwx", "r-x", "r-x", null);
+        root.useContext(context);
         current = root;
-        home = new FileSystemNode("root", true, "root", "root", "rwx", "r-x", "r-x", root);
-        root.getChildren().put("root", home);
-        users = new HashMap<>();
+        root.trackQuotas(quotas);
+        FileSystemNode home = new FileSystemNode("root", true, "root", "root", "rwx", "r-x", "r-x", root);
+        root.addChild(home);
+        names.add(home);
+        users = new ConcurrentHashMap<>();
         users.put("root", new User("root", "password", "root", "/root"));
+        sessions.add(this);
     }
 
-    FileSystemNode getNodeByPath(String path) {
-        if (path.equals("/")) return root;
+    /**
+     * 会话视图：共用目录树、用户表、日志和锁，有自己的当前目录、登录用户和输出流。
+     */
+    private FileSystem(FileSystem shared, PrintStream out, PrintStream err) {
+        root = shared.root;
+        current = shared.root;
+        users = shared.users;
+        journal = shared.journal;
+        audit = shared.audit;
+        generation = shared.generation;
+        pathCache = shared.pathCache;
+        lock = shared.lock;
+        stripes = shared.stripes;
+        leases = shared.leases;
+        context = shared.context;
+        access = shared.access;
+        tree = shared.tree;
+        index = shared.index;
+        names = shared.names;
+        snapshots = shared.snapshots;
+        checkpointer = shared.checkpointer;
+        checkpointing = shared.checkpointing;
+        metrics = shared.metrics;
+        quotas = shared.quotas;
+        watchers = shared.watchers;
+        partitions = shared.partitions;
+        sessions = shared.sessions;
+        sessions.add(this);
+        this.out = out;
+        this.err = err;
+    }
 
-        if (path.isEmpty() || path.charAt(0) != '/') {
-            System.err.println("Error: Only absolute paths are supported.");
-            return null;
+    /**
+     * 批处理开始时的状态；{@code users} 是改动过的用户原来的样子，新增的用户对应 null。
+     */
+    record Batch(TreeSnapshot snapshot, Map<String, User> users, User currentUser, String currentPath) {
+    }
+
+    FileSystem newSession(PrintStream out, PrintStream err) {
+        return new FileSystem(this, out, err);
+    }
+
+    FileSystemNode getRoot() {
+        return root;
+    }
+
+    FileSystemNode getCurrent() {
+        return current;
+    }
+
+    Map<String, User> getUsers() {
+        return users;
+    }
+
+    User getCurrentUser() {
+        return currentUser;
+    }
+
+    int getUid() {
+        return uid;
+    }
+
+    TrigramIndex getIndex() {
+        return index;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    LeaseManager getLeases() {
+        return leases;
+    }
+
+    Partitions getPartitions() {
+        return partitions;
+    }
+
+    StripedLocks getStripes() {
+        return stripes;
+    }
+
+    Journal getJournal() {
+        return journal;
+    }
+
+    PermissionChecker getAccess() {
+        return access;
+    }
+
+    Batch getBatch() {
+        return batch;
+    }
+
+    PrintStream getErr() {
+        return err;
+    }
+
+    void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    void setErr(PrintStream err) {
+        this.err = err;
+    }
+
+    /**
+     * 解析绝对路径或相对于当前目录的路径，支持 "." 和 ".."，不加锁。规范的绝对路径进入 {@link PathCache}。
+     */
+    FileSystemNode getNodeByPath(String path) {
+        if (path.isEmpty()) return null;
+        boolean absolute = path.charAt(0) == '/';
+        if (absolute) {
+            if (path.length() == 1) return root;
+            FileSystemNode cached = pathCache.get(path);
+            if (cached != null) return cached;
         }
+        long cacheVersion = pathCache.version();
 
-        String[] parts = path.split("/");
-        FileSystemNode node = root;
-        for (String part : parts) {
-            if (!part.isEmpty()) {
-                if (!node.getChildren().containsKey(part)) return null;
-                node = node.getChildren().get(part);
+        FileSystemNode node = absolute ? root : current;
+        boolean canonical = absolute;
+        int length = path.length();
+        int start = absolute ? 1 : 0;
+        while (start <= length) {
+            // 文件后面还有路径分量（包括 "." 和 ".."）时不是目录，不能回到父目录
+            if (!node.isDirectory()) return null;
+            int end = path.indexOf('/', start);
+            if (end < 0) end = length;
+            int segmentLength = end - start;
+            if (segmentLength == 0 || (segmentLength == 1 && path.charAt(start) == '.')) {
+                if (end < length || segmentLength == 1) canonical = false;
+            } else if (segmentLength == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+                canonical = false;
+                if (node.getParent() != null) node = node.getParent();
+            } else {
+                node = node.getChild(path.substring(start, end));
+                if (node == null) return null;
             }
+            start = end + 1;
+        }
+
+        if (canonical) {
+            pathCache.put(path, node, cacheVersion);
         }
         return node;
     }
 
-    static String encodeContent(String content) {
-        return content.replace("\\", "\\\\").replace("\n", "\\n");
+    /**
+     * 返回 {@code path} 的父目录节点；路径不含 '/' 时父目录是当前目录。
+     */
+    private FileSystemNode getParentNode(String path) {
+        int lastSlashPos = path.lastIndexOf('/');
+        if (lastSlashPos < 0) return current;
+        if (lastSlashPos == 0) return root;
+        return getNodeByPath(path.substring(0, lastSlashPos));
+    }
+
+    private static String getBaseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
     }
 
     static String decodeContent(String encodedContent) {
         return encodedContent.replace("\\n", "\n").replace("\\\\", "\\");
     }
 
-    void saveToFile(String filename) {
-        try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
-            saveNode(out, root, "");
-        } catch (IOException e) {
-            System.err.println("Error opening file for writing: " + filename);
-        }
+    /**
+     * 只有需要写日志、审计或通知订阅方时才构造节点的路径。
+     */
+    private String loggedPath(FileSystemNode node) {
+        return journal != null || audit != null || watchers.isActive() ? getPath(node) : null;
     }
 
-    void saveNode(PrintWriter out, FileSystemNode node, String prefix) {
-        if (node == null) return;
+    /**
+     * 标记脏分区并通知订阅方，本进程的修改再写审计日志。
+     */
+    private void audit(String op, String path, String target, int before, int after) {
+        String user = actingUser();
+        partitions.touch(op, path, target);
+        watchers.publish(op, path, target, after, user);
+        if (audit == null || journal != null && journal.isReplaying()) return;
+        audit.record(user, op, path, target, before, after);
+    }
+
+    /**
+     * 日志重放直接修改了节点、没有经过上面的方法时，通知订阅方。
+     */
+    void replayed(String op, String path, int mode) {
+        partitions.touch(op, path, null);
+        watchers.publish(op, path, null, mode, null);
+    }
 
-        out.println(prefix + node.getName() + " " + (node.isDirectory() ? "d" : "f") + " " + node.getOwner() + " " + node.getGroup() + " "
-                + node.getUserPermissions() + node.getGroupPermissions() + node.getOtherPermissions() + " " + node.isBeingEdited() + " "
-                + encodeContent(node.getContent()));
+    /**
+     * 发起修改的用户；重放其他进程的日志记录时为 null。
+     */
+    private String actingUser() {
+        return currentUser != null && (journal == null || !journal.isReplaying()) ? currentUser.getUsername() : null;
+    }
 
-        for (FileSystemNode child : node.getChildren().values()) {
-            saveNode(out, child, prefix + node.getName() + "/");
+    /**
+     * 在全局写锁下保存有修改的分区，清单写到 {@code filename}。
+     */
+    void saveToFile(String filename) {
+        lock.writeLock().lock();
+        try {
+            long start = System.nanoTime();
+            try {
+                Map<String, Long> marks = partitions.capture();
+                Partitions.Saved saved = partitions.write(root, TreeSnapshot.LIVE, users.values(), generation.get(), filename,
+                        marks, journal == null);
+                partitions.published(saved, marks, generation.get(), filename);
+                metrics.nodesWritten.add(saved.nodes());
+                metrics.bytesWritten.add(saved.bytes());
+            } catch (IOException e) {
+                err.println("Error opening file for writing: " + filename);
+            }
+            metrics.save.record(System.nanoTime() - start);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     void saveUsersToFile(String filename) {
+        lock.writeLock().lock();
+        try {
+            saveUsersToFile(filename, users.values());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void saveUsersToFile(String filename, Collection<User> userList) {
         try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
-            for (User user : users.values()) {
-                out.println(user.getUsername() + " " + user.getPassword() + " " + user.getGroup() + " " + user.getHomeDirectory());
+            for (User user : userList) {
+                out.println(user.getUsername() + " " + user.getPassword() + " " + user.getGroup() + " " + user.getHomeDirectory()
+                        + (user.getByteQuota() > 0 || user.getInodeQuota() > 0
+                        ? " " + user.getByteQuota() + " " + user.getInodeQuota() : ""));
             }
         } catch (IOException e) {
-            System.err.println("Error opening file for writing: " + filename);
+            err.println("Error opening file for writing: " + filename);
         }
     }
 
     void loadFromFile(String filename) {
+        lock.writeLock().lock();
+        try {
+            if (!new File(filename).exists()) return;
+            long start = System.nanoTime();
+            try {
+                metrics.bytesRead.add(new File(filename).length());
+                Partitions.Manifest manifest = null;
+                String base = filename;
+                if (SnapshotFile.readVersion(filename) == SnapshotFile.MANIFEST_VERSION) {
+                    manifest = partitions.readManifest(filename);
+                    base = manifest.baseFile();
+                    metrics.bytesRead.add(new File(base).length());
+                }
+                Partitions.Manifest read = manifest;
+                // 新内容完整读出之后才丢弃原来的目录树，文件损坏时保持不变
+                long loaded = SnapshotFile.read(root, base, index, () -> {
+                    partitions.discard();
+                    pathCache.clear();
+                    root.getChildren().forEach(this::releaseContent);
+                    index.clear();
+                    names.clear();
+                    if (read != null) {
+                        partitions.adopt(read);
+                    } else {
+                        partitions.loadedWhole();
+                    }
+                });
+                generation.set(manifest != null ? manifest.generation() : loaded);
+                tree.forEach(root, n -> {
+                    if (n != root) names.add(n);
+                    metrics.nodesRead.increment();
+                    return true;
+                });
+                partitions.defer(root, err);
+            } catch (IOException e) {
+                err.println("Error opening file for reading: " + filename + " (" + e.getMessage() + ")");
+            }
+            metrics.load.record(System.nanoTime() - start);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
+    /**
+     * 读取旧版文本格式的状态文件，仅用于格式转换。
+     */
+    void loadFromTextFile(String filename) {
         File file = new File(filename);
         if (!file.exists()) {
             try {
                 file.createNewFile();
             } catch (IOException e) {
-                System.err.println("Error creating file: " + filename);
+                err.println("Error creating file: " + filename);
                 return;
             }
         }
@@ -100,24 +403,21 @@ public class FileSystem {
                 String owner = parts[2];
                 String group = parts[3];
                 String permissions = parts[4];
-                boolean isBeingEdited = Boolean.parseBoolean(parts[5]);
-                String content = parts[6];
+                String content = parts.length > 6 ? parts[6] : "";
 
                 FileSystemNode node = getNodeByPath(path);
                 if (node != null) {
                     node.setOwner(owner);
                     node.setGroup(group);
                     node.setPermissions(permissions);
-                    node.setBeingEdited(isBeingEdited);
                     if (!type.equals("d")) {
                         node.setContent(decodeContent(content));
                     }
                 } else {
-                    create(path, type.equals("d"), owner, group);
+                    createNode(path, type.equals("d"), owner, group);
                     node = getNodeByPath(path);
                     if (node != null) {
                         node.setPermissions(permissions);
-                        node.setBeingEdited(isBeingEdited);
                         if (!type.equals("d")) {
                             node.setContent(decodeContent(content));
                         }
@@ -125,217 +425,1675 @@ public class FileSystem {
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error opening file for reading: " + filename);
+            err.println("Error opening file for reading: " + filename);
         }
     }
 
     void loadUsersFromFile(String filename) {
-        File file = new File(filename);
-        if (!file.exists()) {
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                System.err.println("Error creating file: " + filename);
-                return;
+        lock.writeLock().lock();
+        try {
+            File file = new File(filename);
+            if (!file.exists()) {
+                try {
+                    file.createNewFile();
+                } catch (IOException e) {
+                    err.println("Error creating file: " + filename);
+                    return;
+                }
             }
-        }
-        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                String[] parts = line.split(" ");
-                String username = parts[0];
-                String password = parts[1];
-                String group = parts[2];
-                String homeDirectory = parts[3];
-                users.put(username, new User(username, password, group, homeDirectory));
+            try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    String username = parts[0];
+                    String password = parts[1];
+                    String group = parts[2];
+                    String homeDirectory = parts[3];
+                    long byteQuota = parts.length > 5 ? Long.parseLong(parts[4]) : 0;
+                    long inodeQuota = parts.length > 5 ? Long.parseLong(parts[5]) : 0;
+                    users.put(username, new User(username, password, group, homeDirectory, byteQuota, inodeQuota));
+                }
+            } catch (IOException e) {
+                err.println("Error opening file for reading: " + filename);
             }
-        } catch (IOException e) {
-            System.err.println("Error opening file for reading: " + filename);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     void setPermissions(String path, String newPermissions) {
         FileSystemNode node = getNodeByPath(path);
         if (node == null) {
-            System.err.println("Error: File or directory does not exist");
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        if (!isReachable(node) || uid != 0 && node.getUid() != uid) {
+            err.println("Error: Permission denied");
             return;
         }
-        node.setPermissions(newPermissions);
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            int before = node.getMode();
+            node.setPermissions(newPermissions);
+            String nodePath = loggedPath(node);
+            if (journal != null) {
+                journal.logSetPermissions(nodePath, newPermissions);
+            }
+            audit(AuditLog.CHMOD, nodePath, null, before, node.getMode());
+        } finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+
+    void setContent(FileSystemNode node, String content) {
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            if (!withinMaxSize(0, bytes.length)) return;
+            if (!withinQuota(node.getUid(), bytes.length - node.getData().length(), 0)) return;
+            node.setContent(bytes);
+            index.update(node);
+            String nodePath = loggedPath(node);
+            if (journal != null) {
+                journal.logSetContent(nodePath, content);
+            }
+            audit(AuditLog.SET_CONTENT, nodePath, null, -1, -1);
+        } finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 解析要写入的普通文件并检查写权限和编辑租约，{@code create} 为 true 时文件不存在就创建。
+     */
+    FileSystemNode getWritableFile(String path, boolean create) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null && create) {
+            create(path, false, currentUser.getUsername(), currentUser.getGroup());
+            node = getNodeByPath(path);
+        }
+        if (node == null || node.isDirectory()) {
+            err.println("Error: Invalid file path");
+            return null;
+        }
+        if (!checkPermissions(node, 'w')) {
+            err.println("Error: Permission denied");
+            return null;
+        }
+        LeaseManager.Lease holder = leases.holder(node);
+        if (holder != null) {
+            err.println("Error: File is currently being edited by " + holder.getOwner());
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * 解析要读取的普通文件并检查读权限和编辑租约。
+     */
+    FileSystemNode getReadableFile(String path) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null || node.isDirectory()) {
+            err.println("Error: Invalid file path");
+            return null;
+        }
+        if (!checkPermissions(node, 'r')) {
+            err.println("Error: Permission denied");
+            return null;
+        }
+        LeaseManager.Lease holder = leases.holder(node);
+        if (holder != null) {
+            err.println("Error: File is currently being edited by " + holder.getOwner());
+            return null;
+        }
+        return node;
+    }
+
+    byte[] read(FileSystemNode node, long offset, int length) {
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        stripe.readLock().lock();
+        try {
+            return node.getData().read(offset, length);
+        } finally {
+            stripe.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把文件第 {@code start} 到第 {@code end} 字节写到输出流。
+     */
+    void print(FileSystemNode node, long start, long end) {
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        stripe.readLock().lock();
+        try {
+            node.getData().writeTo(out, start, Math.min(end, node.getData().length()));
+        } catch (IOException e) {
+            err.println("Error writing output: " + e.getMessage());
+        } finally {
+            stripe.readLock().unlock();
+        }
+    }
+
+    void head(String path, int lines) {
+        FileSystemNode node = getReadableFile(path);
+        if (node == null) return;
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        stripe.readLock().lock();
+        try {
+            print(node, 0, node.getData().headOffset(lines));
+        } finally {
+            stripe.readLock().unlock();
+        }
+        out.flush();
+    }
+
+    void tail(String path, int lines) {
+        FileSystemNode node = getReadableFile(path);
+        if (node == null) return;
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        stripe.readLock().lock();
+        try {
+            print(node, node.getData().tailOffset(lines), Long.MAX_VALUE);
+        } finally {
+            stripe.readLock().unlock();
+        }
+        out.flush();
+    }
+
+    boolean write(FileSystemNode node, long offset, byte[] bytes) {
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            if (!withinMaxSize(offset, bytes.length)) return false;
+            if (!withinQuota(node.getUid(), offset + bytes.length - node.getData().length(), 0)) return false;
+            node.write(offset, bytes, 0, bytes.length);
+            index.written(node, offset, bytes.length);
+            String nodePath = loggedPath(node);
+            if (journal != null) {
+                journal.logWrite(nodePath, offset, bytes);
+            }
+            audit(AuditLog.WRITE, nodePath, null, -1, -1);
+            return true;
+        } finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean append(FileSystemNode node, byte[] bytes) {
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            if (!withinMaxSize(node.getData().length(), bytes.length)) return false;
+            if (!withinQuota(node.getUid(), bytes.length, 0)) return false;
+            long oldLength = node.getData().length();
+            node.append(bytes, 0, bytes.length);
+            index.appended(node, oldLength);
+            String nodePath = loggedPath(node);
+            if (journal != null) {
+                journal.logAppend(nodePath, bytes);
+            }
+            audit(AuditLog.APPEND, nodePath, null, -1, -1);
+            return true;
+        } finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean truncate(FileSystemNode node, long size) {
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            if (!withinMaxSize(size, 0)) return false;
+            if (!withinQuota(node.getUid(), size - node.getData().length(), 0)) return false;
+            long oldLength = node.getData().length();
+            node.truncate(size);
+            index.truncated(node, oldLength);
+            String nodePath = loggedPath(node);
+            if (journal != null) {
+                journal.logTruncate(nodePath, size);
+            }
+            audit(AuditLog.TRUNCATE, nodePath, null, -1, -1);
+            return true;
+        } finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在后台线程上按当前内容重新索引覆盖写入或截短过的文件，去掉已经不存在的三元组。
+     */
+    void reindexStale() {
+        for (FileSystemNode node : index.drainStale()) {
+            ReentrantReadWriteLock stripe = stripes.forNode(node);
+            lock.readLock().lock();
+            stripe.writeLock().lock();
+            try {
+                // 期间被删除的文件已经离开索引
+                if (index.get(node) != null) {
+                    index.update(node);
+                }
+            } finally {
+                stripe.writeLock().unlock();
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 为当前用户获取节点的编辑租约；节点正被他人编辑时返回 null。
+     */
+    LeaseManager.Lease beginEdit(FileSystemNode node) {
+        LeaseManager.Lease lease = leases.acquire(node, currentUser.getUsername());
+        if (lease == null) {
+            LeaseManager.Lease holder = leases.holder(node);
+            err.println("Error: File is currently being edited" + (holder != null ? " by " + holder.getOwner() : ""));
+        }
+        return lease;
     }
 
     String getPermissions(String path) {
         FileSystemNode node = getNodeByPath(path);
         if (node == null) {
-            System.err.println("Error: File or directory does not exist");
+            err.println("Error: File or directory does not exist");
+            return "";
+        }
+        if (!isReachable(node)) {
+            err.println("Error: Permission denied");
             return "";
         }
         return node.getPermissions();
     }
 
     void addUser(String username, String password, String group) {
-        String homeDir = "/" + username;
-        if (users.containsKey(username)) {
-            System.err.println("Error: User already exists");
-            return;
-        }
-        users.put(username, new User(username, password, group, homeDir));
-        if (getNodeByPath(homeDir) == null) {
-            create(homeDir, true, username, group);
+        lock.readLock().lock();
+        try {
+            String homeDir = "/" + username;
+            rememberUser(username);
+            if (users.putIfAbsent(username, new User(username, password, group, homeDir)) != null) {
+                err.println("Error: User already exists");
+                return;
+            }
+            if (getNodeByPath(homeDir) == null) {
+                createNode(homeDir, true, username, group);
+            }
+            if (journal != null) {
+                journal.logAddUser(username, password, group);
+            }
+            watchers.publish(Watchers.Type.USER_ADDED, homeDir, false, -1, actingUser());
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
     void changeUserPassword(String username, String newPassword) {
-        User user = users.get(username);
-        if (user == null) {
-            System.err.println("Error: User does not exist");
-            return;
+        lock.readLock().lock();
+        try {
+            User user = users.get(username);
+            if (user == null) {
+                err.println("Error: User does not exist");
+                return;
+            }
+            rememberUser(username);
+            user.setPassword(newPassword);
+            if (journal != null) {
+                journal.logChangePassword(username, newPassword);
+            }
+            out.println("Password changed successfully for user: " + username);
+        } finally {
+            lock.readLock().unlock();
         }
-        user.setPassword(newPassword);
-        System.out.println("Password changed successfully for user: " + username);
     }
 
     boolean login(String username, String password) {
         User user = users.get(username);
         if (user == null || !user.getPassword().equals(password)) {
-            System.err.println("Error: Invalid username or password");
+            err.println("Error: Invalid username or password");
             return false;
         }
         currentUser = user;
+        uid = IdTable.USERS.id(username);
+        gid = IdTable.GROUPS.id(user.getGroup());
         changeDirectory(currentUser.getHomeDirectory());
         return true;
     }
 
     boolean checkPermissions(FileSystemNode node, char permissionType) {
-        String permissions = node.getPermissions();
-        boolean hasPermission = false;
+        return checkPermissions(node, PermissionChecker.bits(permissionType));
+    }
 
-        if (node.getOwner().equals(currentUser.getUsername())) {
-            hasPermission = permissions.charAt(permissionType == 'r' ? 0 : (permissionType == 'w' ? 1 : 2)) != '-';
-        } else if (node.getGroup().equals(currentUser.getGroup())) {
-            hasPermission = permissions.charAt(permissionType == 'r' ? 3 : (permissionType == 'w' ? 4 : 5)) != '-';
-        } else {
-            hasPermission = permissions.charAt(permissionType == 'r' ? 6 : (permissionType == 'w' ? 7 : 8)) != '-';
-        }
-        return hasPermission;
+    /**
+     * 当前用户对节点是否具备 {@code bits} 中的全部权限，同时要求能进入它的每一级祖先目录。
+     */
+    boolean checkPermissions(FileSystemNode node, int bits) {
+        return currentUser != null && access.check(node, uid, gid, bits);
+    }
+
+    /**
+     * 当前用户能否到达节点，即对它的每一级祖先目录都有执行权限。
+     */
+    boolean isReachable(FileSystemNode node) {
+        return currentUser != null && (node.getParent() == null || access.canEnter(node.getParent(), uid, gid));
     }
 
     void create(String path, boolean isDirectory, String owner, String group) {
-        FileSystemNode node = getNodeByPath(path);
-        if (node != null) {
-            System.err.println("Error: File or directory already exists");
+        create(path, isDirectory, owner, group, true);
+    }
+
+    /**
+     * 不做权限检查的创建，用于重放日志、加载旧格式和系统自身的操作。
+     */
+    void createNode(String path, boolean isDirectory, String owner, String group) {
+        create(path, isDirectory, owner, group, false);
+    }
+
+    private void create(String path, boolean isDirectory, String owner, String group, boolean checked) {
+        String name = getBaseName(path);
+        FileSystemNode parent = getParentNode(path);
+        if (parent == null || !parent.isDirectory() || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            err.println("Error: Invalid path");
+            return;
+        }
+        if (checked && !checkPermissions(parent, PermissionChecker.WRITE | PermissionChecker.EXECUTE)) {
+            err.println("Error: Permission denied");
             return;
         }
 
-        int lastSlashPos = path.lastIndexOf('/');
-        String parentPath;
-        String name;
-        if (lastSlashPos != -1) {
-            parentPath = path.substring(0, lastSlashPos);
-            name = path.substring(lastSlashPos + 1);
-            if (parentPath.isEmpty()) {
-                parentPath = "/";
+        ReentrantReadWriteLock stripe = stripes.forNode(parent);
+        lock.readLock().lock();
+        stripe.writeLock().lock();
+        try {
+            if (checked && !withinQuota(IdTable.USERS.id(owner), 0, 1)) return;
+            FileSystemNode newNode = new FileSystemNode(name, isDirectory,
+                    IdTable.USERS.id(owner), IdTable.GROUPS.id(group), 0755, parent);
+            if (parent.addChild(newNode) != null) {
+                err.println("Error: File or directory already exists");
+                return;
             }
-        } else {
-            parentPath = "/";
-            name = path;
+            names.add(newNode);
+            String nodePath = loggedPath(newNode);
+            if (journal != null) {
+                journal.logCreate(nodePath, isDirectory, owner, group);
+            }
+            audit(isDirectory ? AuditLog.MKDIR : AuditLog.CREATE, nodePath, null, -1, newNode.getMode());
+        } finally {
+            stripe.writeLock().unlock();
+            lock.readLock().unlock();
         }
+    }
 
-        FileSystemNode parent = getNodeByPath(parentPath);
-        if (parent == null || !parent.isDirectory()) {
-            System.err.println("Error: Invalid path");
+    /**
+     * 删除文件；{@code recursive} 时可以删除目录，要求对子树中的每个目录都有读、写和执行权限。
+     */
+    void remove(String path, boolean recursive) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null || node == root) {
+            err.println("Error: File or directory does not exist");
             return;
         }
-
-        FileSystemNode newNode = new FileSystemNode(name, isDirectory, owner, group, "rwx", "r-x", "r-x", parent);
-        parent.getChildren().put(name, newNode);
+        if (node.isDirectory()) {
+            if (!recursive) {
+                err.println("Error: Is a directory");
+                return;
+            }
+            AtomicBoolean denied = new AtomicBoolean();
+            int all = PermissionChecker.READ | PermissionChecker.WRITE | PermissionChecker.EXECUTE;
+            tree.forEach(node, n -> {
+                if (denied.get() || !n.isDirectory()) return false;
+                if (!PermissionChecker.modeAllows(n, uid, gid, all)) {
+                    denied.set(true);
+                    return false;
+                }
+                return true;
+            });
+            if (denied.get()) {
+                err.println("Error: Permission denied");
+                return;
+            }
+        }
+        unlink(path, true);
     }
 
-    void remove(String path) {
-        if (path.isEmpty() || path.charAt(0) != '/') {
-            System.err.println("Error: Only absolute paths are supported");
+    void removeDirectory(String path) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null || node == root) {
+            err.println("Error: File or directory does not exist");
             return;
         }
-
-        int lastSlashPos = path.lastIndexOf('/');
-        String parentPath;
-        if (lastSlashPos == 0) {
-            parentPath = "/";
-        } else {
-            parentPath = path.substring(0, lastSlashPos);
+        if (!node.isDirectory()) {
+            err.println("Error: Not a directory");
+            return;
         }
-        String name = path.substring(lastSlashPos + 1);
-        FileSystemNode parent = getNodeByPath(parentPath);
-
-        if (parent == null || !parent.isDirectory() || !parent.getChildren().containsKey(name)) {
-            System.err.println("Error: File or directory does not exist");
+        if (node.getChildCount() > 0) {
+            err.println("Error: Directory not empty");
             return;
         }
+        unlink(path, true);
+    }
 
-        parent.getChildren().remove(name);
+    /**
+     * 不做权限检查的删除，用于重放日志。
+     */
+    void removeNode(String path) {
+        unlink(path, false);
     }
 
-    void changeDirectory(String path) {
-        if (path.isEmpty() || path.charAt(0) != '/') {
-            System.err.println("Error: Only absolute paths are supported");
+    private void unlink(String path, boolean checked) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null || node == root) {
+            err.println("Error: File or directory does not exist");
             return;
         }
 
-        FileSystemNode node = getNodeByPath(path);
-        if (node == null || !node.isDirectory()) {
-            System.err.println("Error: Directory does not exist");
+        FileSystemNode parent = node.getParent();
+        if (checked && !checkPermissions(parent, PermissionChecker.WRITE | PermissionChecker.EXECUTE)) {
+            err.println("Error: Permission denied");
             return;
         }
+        // 摘下目录时要按所有者清点整个子树的用量，这期间子树不能再被修改
+        boolean exclusive = node.isDirectory();
+        ReentrantReadWriteLock stripe = stripes.forNode(parent);
+        if (exclusive) {
+            lock.writeLock().lock();
+        } else {
+            lock.readLock().lock();
+            stripe.writeLock().lock();
+        }
+        try {
+            if (!parent.removeChild(node)) {
+                err.println("Error: File or directory does not exist");
+                return;
+            }
+            String canonicalPath = getPath(node);
+            pathCache.invalidate(canonicalPath, node.isDirectory());
+            if (journal != null) {
+                journal.logRemove(canonicalPath);
+            }
+            audit(AuditLog.REMOVE, canonicalPath, null, node.getMode(), -1);
+        } finally {
+            if (exclusive) {
+                lock.writeLock().unlock();
+            } else {
+                stripe.writeLock().unlock();
+                lock.readLock().unlock();
+            }
+        }
+        // 节点已经摘下，释放时每次只持有一个条带锁，不会和其他删除互相等待
+        releaseContent(node);
+    }
 
-        if (!checkPermissions(node, 'r')) {
-            System.err.println("Error: Permission denied");
+    /**
+     * 释放子树中文件对共享数据块的引用，并把子树从名字索引中移除。
+     */
+    private void releaseContent(FileSystemNode subtree) {
+        if (!subtree.isDirectory()) {
+            names.remove(subtree);
+            releaseFile(subtree);
             return;
         }
-
-        current = node;
+        tree.forEach(subtree, node -> {
+            names.remove(node);
+            if (!node.isDirectory()) {
+                releaseFile(node);
+            }
+            return true;
+        });
     }
 
-    void listDirectory(boolean longFormat) {
-        if (longFormat) {
-            for (FileSystemNode child : current.getChildren().values()) {
-                System.out.println(String.format("%-10s %s", child.formatPermissions(), child.getName()));
-            }
-        } else {
-            for (FileSystemNode child : current.getChildren().values()) {
-                System.out.println((child.isDirectory() ? "d " : "- ") + child.getName());
-            }
+    private void releaseFile(FileSystemNode node) {
+        ReentrantReadWriteLock stripe = stripes.forNode(node);
+        stripe.writeLock().lock();
+        try {
+            node.getData().release();
+            index.remove(node);
+        } finally {
+            stripe.writeLock().unlock();
         }
     }
 
-    void readFile(String path) {
+    /**
+     * 递归修改权限，只修改当前用户拥有的节点，作为一条日志记录。
+     */
+    void setPermissionsRecursive(String path, String newPermissions) {
         FileSystemNode node = getNodeByPath(path);
-        if (node == null || node.isDirectory()) {
-            System.err.println("Error: Invalid file path");
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
             return;
         }
-
-        if (!checkPermissions(node, 'r')) {
-            System.err.println("Error: Permission denied");
+        if (!isReachable(node)) {
+            err.println("Error: Permission denied");
             return;
         }
-
-        loadFromFile("filesystem_state.txt");
-        if (node.isBeingEdited()) {
-            System.err.println("Error: File is currently being edited");
-            return;
+        lock.writeLock().lock();
+        try {
+            int before = node.getMode();
+            long skipped = applyPermissionsRecursive(node, FileSystemNode.parseMode(newPermissions), uid, gid);
+            String nodePath = loggedPath(node);
+            if (journal != null) {
+                journal.logSetPermissionsRecursive(nodePath, newPermissions, currentUser.getUsername(), currentUser.getGroup());
+            }
+            audit(AuditLog.CHMOD_RECURSIVE, nodePath, null, before, node.getMode());
+            if (skipped > 0) {
+                err.println("Error: Permission denied for " + skipped + " entries");
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        System.out.println(node.getContent());
+    /**
+     * 以 {@code uid}/{@code gid} 的身份递归修改权限，返回因为不是属主而跳过的节点数。调用方持有全局写锁。
+     */
+    long applyPermissionsRecursive(FileSystemNode subtree, int mode, int uid, int gid) {
+        LongAdder skipped = new LongAdder();
+        tree.forEach(subtree, node -> {
+            if (uid == 0 || node.getUid() == uid) {
+                node.applyMode(mode);
+            } else {
+                skipped.increment();
+            }
+            return node.isDirectory()
+                    && PermissionChecker.modeAllows(node, uid, gid, PermissionChecker.READ | PermissionChecker.EXECUTE);
+        });
+        access.invalidate();
+        return skipped.sum();
     }
 
-    String getCurrentDirectoryPath() {
-        List<String> parts = new ArrayList<>();
-        FileSystemNode node = current;
-        while (node != null && node != root) {
-            parts.add(node.getName());
-            node = node.getParent();
+    /**
+     * 复制文件或目录，副本属于当前用户，与源文件共享数据块。
+     */
+    void copy(String source, String destination, boolean recursive) {
+        FileSystemNode node = getNodeByPath(source);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        if (node.isDirectory() && !recursive) {
+            err.println("Error: Is a directory");
+            return;
+        }
+        FileSystemNode target = getNodeByPath(destination);
+        if (target != null && target.isDirectory()) {
+            destination = getPath(target) + (target == root ? "" : "/") + node.getName();
+        } else if (target != null) {
+            err.println("Error: File or directory already exists");
+            return;
+        }
+        loadSubtree(node);
+        Usage usage = node.usage();
+        if (!withinQuota(uid, usage.getBytes(), usage.getFiles() + usage.getDirectories())) return;
+        lock.writeLock().lock();
+        try {
+            copyNode(node, destination, currentUser.getUsername(), currentUser.getGroup(), true);
+        } finally {
+            lock.writeLock().unlock();
         }
-        Collections.reverse(parts);
-        return "/" + String.join("/", parts) + "/";
     }
-}
 
+    /**
+     * 从本机导入，只有 root 可以执行。导入无法写成日志记录，之后写出完整快照。
+     */
+    void importTree(String hostPath, String destination) {
+        if (uid != 0) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        if (batch != null) {
+            err.println("Error: Cannot import inside a batch");
+            return;
+        }
+        Path source = Path.of(hostPath);
+        if (!Files.isDirectory(source) && !Files.isRegularFile(source)) {
+            err.println("Error: No such host file or directory: " + hostPath);
+            return;
+        }
+        FileSystemNode target = getNodeByPath(destination);
+        if (target != null && target.isDirectory()) {
+            Path fileName = source.toAbsolutePath().normalize().getFileName();
+            if (fileName == null) {
+                err.println("Error: Invalid path");
+                return;
+            }
+            destination = getPath(target) + (target == root ? "" : "/") + fileName;
+        } else if (target != null) {
+            err.println("Error: File or directory already exists");
+            return;
+        }
+        String name = getBaseName(destination);
+        FileSystemNode parent = getParentNode(destination);
+        if (parent == null || !parent.isDirectory() || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            err.println("Error: Invalid path");
+            return;
+        }
+        Set<String> groups = new HashSet<>();
+        users.values().forEach(user -> groups.add(user.getGroup()));
+        HostTransfer transfer = new HostTransfer();
+        FileSystemNode top;
+        try {
+            top = transfer.importTree(source, name, parent, users::containsKey, groups::contains,
+                    IdTable.USERS.id(currentUser.getUsername()), IdTable.GROUPS.id(currentUser.getGroup()));
+        } catch (IOException e) {
+            err.println("Error reading host file: " + e.getMessage());
+            return;
+        }
+        lock.writeLock().lock();
+        try (FileLock ignored = journal != null ? journal.lock() : null) {
+            if (journal != null) {
+                journal.flush();
+                if (journal.catchUp(this) < 0) {
+                    releaseContent(top);
+                    err.println("Error: State was compacted by another process, try again");
+                    return;
+                }
+            }
+            if (!isAttached(parent)) {
+                releaseContent(top);
+                err.println("Error: Invalid path");
+                return;
+            }
+            if (parent.addChild(top) != null) {
+                releaseContent(top);
+                err.println("Error: File or directory already exists");
+                return;
+            }
+            tree.forEach(top, n -> {
+                names.add(n);
+                if (!n.isDirectory()) {
+                    index.update(n);
+                }
+                return true;
+            });
+            audit(AuditLog.IMPORT, getPath(top), source.toAbsolutePath().toString(), -1, top.getMode());
+            if (journal == null) {
+                saveToFile(STATE_FILE);
+            } else {
+                generation.set(journal.getGeneration() + 1);
+                saveToFile(STATE_FILE);
+                saveUsersToFile(USERS_FILE);
+                journal.reset(generation.get());
+            }
+        } catch (IOException e) {
+            err.println("Error compacting journal: " + JOURNAL_FILE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        out.println("Imported " + transfer.getFiles() + " files and " + transfer.getDirectories()
+                + " directories (" + transfer.getBytes() + " bytes)"
+                + (transfer.getSkipped() > 0 ? ", skipped " + transfer.getSkipped() + " special files" : ""));
+    }
+
+    /**
+     * 导出到本机，只有 root 可以执行。导出的是开始时冻结的目录树，写本机文件时不持有锁。
+     */
+    void exportTree(String path, String hostPath) {
+        if (uid != 0) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        Path target = Path.of(hostPath);
+        if (node != root && Files.isDirectory(target)) {
+            target = target.resolve(node.getName());
+        }
+        if (node != root && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            err.println("Error: Host file already exists: " + target);
+            return;
+        }
+        TreeSnapshot frozen;
+        lock.writeLock().lock();
+        try {
+            frozen = context.snapshots.freeze("export", journal != null ? journal.getGeneration() : generation.get());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        HostTransfer transfer = new HostTransfer();
+        try {
+            transfer.exportTree(frozen, node, node == root, target);
+        } catch (IOException e) {
+            err.println("Error writing host file: " + e.getMessage());
+            return;
+        } finally {
+            frozen.release();
+        }
+        audit(AuditLog.EXPORT, getPath(node), target.toAbsolutePath().toString(), -1, -1);
+        out.println("Exported " + transfer.getFiles() + " files and " + transfer.getDirectories()
+                + " directories (" + transfer.getBytes() + " bytes)");
+    }
+
+    /**
+     * 把 {@code source} 子树复制到 {@code destination}。调用方持有全局写锁。
+     */
+    void copyNode(FileSystemNode source, String destination, String owner, String group, boolean checked) {
+        String name = getBaseName(destination);
+        FileSystemNode parent = getParentNode(destination);
+        if (parent == null || !parent.isDirectory() || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            err.println("Error: Invalid path");
+            return;
+        }
+        for (FileSystemNode ancestor = parent; ancestor != null; ancestor = ancestor.getParent()) {
+            if (ancestor == source) {
+                err.println("Error: Cannot copy a directory into itself");
+                return;
+            }
+        }
+        if (checked && (!isReachable(source)
+                || !checkPermissions(parent, PermissionChecker.WRITE | PermissionChecker.EXECUTE))) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        FileSystemNode copy = tree.copy(source, parent, name, IdTable.USERS.id(owner), IdTable.GROUPS.id(group),
+                n -> !checked || PermissionChecker.modeAllows(n, uid, gid,
+                        n.isDirectory() ? PermissionChecker.READ | PermissionChecker.EXECUTE : PermissionChecker.READ));
+        if (copy == null) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        if (parent.addChild(copy) != null) {
+            releaseContent(copy);
+            err.println("Error: File or directory already exists");
+            return;
+        }
+        tree.forEach(copy, n -> {
+            names.add(n);
+            if (!n.isDirectory()) {
+                index.update(n);
+            }
+            return true;
+        });
+        if (journal != null || audit != null) {
+            String sourcePath = getPath(source);
+            String copyPath = getPath(copy);
+            if (journal != null) {
+                journal.logCopy(sourcePath, copyPath, owner, group);
+            }
+            audit(AuditLog.COPY, sourcePath, copyPath, -1, copy.getMode());
+        }
+    }
+
+    /**
+     * 列出子树中当前用户能看到的所有路径，按字典序输出。
+     */
+    void find(String path) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        if (!isReachable(node)) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        Queue<String> found = new ConcurrentLinkedQueue<>();
+        tree.forEach(node, n -> {
+            found.add(getPath(n));
+            return n.isDirectory() && checkPermissions(n, PermissionChecker.READ | PermissionChecker.EXECUTE);
+        });
+        List<String> sorted = new ArrayList<>(found);
+        Collections.sort(sorted);
+        StringBuilder text = new StringBuilder();
+        for (String p : sorted) {
+            text.append(p).append('\n');
+        }
+        out.print(text);
+    }
+
+    /**
+     * 列出子树中名字匹配 {@code glob} 的路径，候选节点来自 {@link NameIndex}。
+     */
+    void find(String path, String glob) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        if (!isReachable(node)) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        loadSubtree(node);
+        int listable = PermissionChecker.READ | PermissionChecker.EXECUTE;
+        List<String> found = new ArrayList<>();
+        for (FileSystemNode match : names.find(glob, node, n -> {
+            for (FileSystemNode parent = n.getParent(); ; parent = parent.getParent()) {
+                if (!PermissionChecker.modeAllows(parent, uid, gid, listable)) return false;
+                if (parent == node) return true;
+            }
+        })) {
+            found.add(getPath(match));
+        }
+        if (NameIndex.matches(glob, node.getName()) && node != root) {
+            found.add(getPath(node));
+        }
+        Collections.sort(found);
+        StringBuilder text = new StringBuilder();
+        for (String p : found) {
+            text.append(p).append('\n');
+        }
+        out.print(text);
+    }
+
+    /**
+     * 补全路径参数：输出 {@code partial} 所在目录中名字以其最后一段开头的条目，目录后面加 '/'。
+     */
+    void complete(String partial) {
+        int slash = partial.lastIndexOf('/');
+        String directoryPart = partial.substring(0, slash + 1);
+        FileSystemNode directory = slash < 0 ? current : getNodeByPath(slash == 0 ? "/" : directoryPart);
+        if (directory == null || !directory.isDirectory()
+                || !checkPermissions(directory, PermissionChecker.READ | PermissionChecker.EXECUTE)) {
+            return;
+        }
+        directory.awaitChildren();
+        StringBuilder text = new StringBuilder();
+        for (FileSystemNode match : names.complete(directory, partial.substring(slash + 1))) {
+            text.append(directoryPart).append(match.getName()).append(match.isDirectory() ? "/" : "").append('\n');
+        }
+        out.print(text);
+    }
+
+    /**
+     * 在 {@code path} 下的文件中查找包含 {@code pattern} 的行，候选文件来自 {@link TrigramIndex}。
+     */
+    void grep(String pattern, String path, boolean recursive) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        if (node.isDirectory() ? !checkPermissions(node, PermissionChecker.READ | PermissionChecker.EXECUTE)
+                : !checkPermissions(node, PermissionChecker.READ)) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        byte[] bytes = pattern.getBytes(StandardCharsets.UTF_8);
+        Collection<FileSystemNode> candidates;
+        if (!node.isDirectory()) {
+            candidates = List.of(node);
+        } else {
+            loadSubtree(node);
+            candidates = index.candidates(bytes);
+            if (candidates == null) {
+                // 模式太短，用不上索引，遍历子树
+                Queue<FileSystemNode> files = new ConcurrentLinkedQueue<>();
+                tree.forEach(node, n -> {
+                    if (!n.isDirectory()) files.add(n);
+                    return n == node || recursive;
+                });
+                candidates = files;
+            }
+        }
+
+        Map<String, FileSystemNode> matches = new TreeMap<>();
+        for (FileSystemNode candidate : candidates) {
+            if (candidate.isDirectory() || !isUnder(candidate, node, recursive)
+                    || !checkPermissions(candidate, PermissionChecker.READ)) {
+                continue;
+            }
+            matches.put(getPath(candidate), candidate);
+        }
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, FileSystemNode> match : matches.entrySet()) {
+            FileSystemNode file = match.getValue();
+            String content = new String(read(file, 0, (int) file.getData().length()), StandardCharsets.UTF_8);
+            for (String line : content.split("\n")) {
+                if (line.contains(pattern)) {
+                    text.append(match.getKey()).append(':').append(line).append('\n');
+                }
+            }
+        }
+        out.print(text);
+    }
+
+    /**
+     * 保证 {@code node} 的子树已经加载；根目录要等所有家目录。
+     */
+    private void loadSubtree(FileSystemNode node) {
+        if (node == root) {
+            partitions.awaitAll();
+        } else {
+            node.awaitChildren();
+        }
+    }
+
+    /**
+     * {@code node} 是否就是 {@code ancestor}、是它的子节点，或在 {@code deep} 时是它的子孙。
+     */
+    private static boolean isUnder(FileSystemNode node, FileSystemNode ancestor, boolean deep) {
+        if (node == ancestor || node.getParent() == ancestor) return true;
+        if (!deep) return false;
+        for (FileSystemNode parent = node.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent == ancestor) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 统计子树用量，输出字节数、文件数、目录数和路径。
+     */
+    void diskUsage(String path) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        if (!isReachable(node)) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        loadSubtree(node);
+        Usage usage = node.usage();
+        out.println(usage.getBytes() + "\t" + usage.getFiles() + "\t" + usage.getDirectories() + "\t" + getPath(node));
+    }
+
+    /**
+     * 输出整棵树的用量和各用户名下的用量与限额（0 表示不限制）；普通用户只能看到自己。
+     */
+    void diskFree() {
+        partitions.awaitAll();
+        Usage total = root.usage();
+        out.println("total\t" + total.getBytes() + "\t" + (total.getFiles() + total.getDirectories()));
+        List<String> names = new ArrayList<>(users.keySet());
+        Collections.sort(names);
+        for (String username : names) {
+            User user = users.get(username);
+            if (user == null || uid != 0 && user != currentUser) continue;
+            Quotas.Account account = quotas.account(IdTable.USERS.id(username));
+            out.println(username + "\t" + account.bytes() + "/" + user.getByteQuota()
+                    + "\t" + account.inodes() + "/" + user.getInodeQuota());
+        }
+    }
+
+    /**
+     * 订阅 {@code path} 的变化，失败时返回 null。
+     */
+    Watchers.Watch watch(String path, boolean recursive) {
+        refresh();
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return null;
+        }
+        if (!checkPermissions(node, 'r')) {
+            err.println("Error: Permission denied");
+            return null;
+        }
+        return watchers.watch(getPath(node), recursive);
+    }
+
+    /**
+     * 设置用户的字节数和节点数限额，0 表示不限制，只有 root 可以执行。
+     */
+    void setQuota(String username, long byteQuota, long inodeQuota) {
+        if (uid != 0) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            User user = users.get(username);
+            if (user == null) {
+                err.println("Error: User does not exist");
+                return;
+            }
+            rememberUser(username);
+            user.setByteQuota(byteQuota);
+            user.setInodeQuota(inodeQuota);
+            if (journal != null) {
+                journal.logSetQuota(username, byteQuota, inodeQuota);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从 {@code offset} 写入 {@code bytes} 字节后文件是否仍不超过 {@link FileContent#MAX_SIZE}，超出时报错。
+     */
+    private boolean withinMaxSize(long offset, long bytes) {
+        if (offset <= FileContent.MAX_SIZE - bytes) return true;
+        err.println("Error: File too large");
+        return false;
+    }
+
+    /**
+     * 所有者 {@code owner} 名下再增加 {@code bytes} 字节、{@code inodes} 个节点后是否仍在限额内，超出时报错。
+     */
+    private boolean withinQuota(int owner, long bytes, long inodes) {
+        User user = users.get(IdTable.USERS.name(owner));
+        if (user == null) return true;
+        if (user.getByteQuota() > 0 || user.getInodeQuota() > 0) {
+            // 用量要包括还没加载的家目录中属于该用户的文件
+            partitions.awaitAll();
+        }
+        if (quotas.allows(user, bytes, inodes)) return true;
+        err.println("Error: Disk quota exceeded");
+        return false;
+    }
+
+    void changeDirectory(String path) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null || !node.isDirectory()) {
+            err.println("Error: Directory does not exist");
+            return;
+        }
+
+        if (!checkPermissions(node, PermissionChecker.EXECUTE)) {
+            err.println("Error: Permission denied");
+            return;
+        }
+
+        current = node;
+    }
+
+    void listDirectory(boolean longFormat) {
+        listDirectory(".", longFormat, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 按名字顺序分页列出目录中名字大于 {@code after} 的最多 {@code limit} 项。
+     */
+    void listDirectory(String path, boolean longFormat, String after, int limit) {
+        FileSystemNode node = getNodeByPath(path);
+        if (node == null) {
+            err.println("Error: File or directory does not exist");
+            return;
+        }
+        if (!node.isDirectory()) {
+            err.println("Error: Not a directory");
+            return;
+        }
+        if (!checkPermissions(node, PermissionChecker.READ)) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        int remaining = limit;
+        while (remaining > 0) {
+            int requested = Math.min(remaining, LIST_PAGE);
+            List<FileSystemNode> page = node.getChildren(after, requested);
+            if (page.isEmpty()) break;
+            text.setLength(0);
+            for (FileSystemNode child : page) {
+                if (longFormat) {
+                    text.append(child.formatPermissions()).append(' ');
+                } else {
+                    text.append(child.isDirectory() ? "d " : "- ");
+                }
+                text.append(child.getName()).append('\n');
+            }
+            out.print(text);
+            if (page.size() < requested) break;
+            remaining -= page.size();
+            after = page.getLast().getName();
+        }
+        out.flush();
+    }
+
+    void readFile(String path) {
+        refresh();
+        FileSystemNode node = getReadableFile(path);
+        if (node == null) return;
+        print(node, 0, Long.MAX_VALUE);
+        out.println();
+    }
+
+    String getCurrentDirectoryPath() {
+        return current == root ? "/" : getPath(current) + "/";
+    }
+
+    String getPath(FileSystemNode node) {
+        List<String> parts = new ArrayList<>();
+        while (node != null && node != root) {
+            parts.add(node.getName());
+            node = node.getParent();
+        }
+        Collections.reverse(parts);
+        return "/" + String.join("/", parts);
+    }
+
+    void open() {
+        metrics.registerMBean(err);
+        if (!new File(STATE_FILE).exists() && new File(LEGACY_STATE_FILE).exists()) {
+            try {
+                SnapshotFile.convert(LEGACY_STATE_FILE, STATE_FILE);
+                out.println("Converted " + LEGACY_STATE_FILE + " to " + STATE_FILE);
+            } catch (IOException e) {
+                err.println("Error converting " + LEGACY_STATE_FILE + ": " + e.getMessage());
+            }
+        }
+        try {
+            audit = new AuditLog(AUDIT_FILE, err);
+        } catch (IOException e) {
+            err.println("Error opening audit log: " + AUDIT_FILE);
+        }
+        try {
+            journal = new Journal(JOURNAL_FILE, err);
+        } catch (IOException e) {
+            err.println("Error opening journal: " + JOURNAL_FILE);
+            loadFromFile(STATE_FILE);
+            loadUsersFromFile(USERS_FILE);
+            return;
+        }
+        Journal opened = journal;
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                opened.syncIfDue();
+            } catch (IOException e) {
+                err.println("Error syncing journal: " + JOURNAL_FILE);
+            }
+        }, Journal.SYNC_INTERVAL_MILLIS, Journal.SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        checkpointer.scheduleWithFixedDelay(this::reindexStale, REINDEX_DELAY_MILLIS, REINDEX_DELAY_MILLIS,
+                TimeUnit.MILLISECONDS);
+        reload();
+    }
+
+    /**
+     * 在日志锁内加载快照并重放日志，之后按路径恢复当前目录。
+     */
+    void reload() {
+        lock.writeLock().lock();
+        try {
+            Map<FileSystem, String> currentPaths = sessionPaths();
+            try (FileLock ignored = journal.lock()) {
+                loadFromFile(STATE_FILE);
+                loadUsersFromFile(USERS_FILE);
+                journal.open(this, generation.get());
+            } catch (IOException e) {
+                err.println("Error opening journal: " + JOURNAL_FILE);
+            }
+            watchers.publish(Watchers.Type.RESCAN, "/", true, -1, null);
+            rebindSessions(currentPaths);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 记下每个会话当前目录的路径，调用方持有全局写锁。
+     */
+    private Map<FileSystem, String> sessionPaths() {
+        Map<FileSystem, String> paths = new IdentityHashMap<>();
+        synchronized (sessions) {
+            for (FileSystem session : sessions) {
+                paths.put(session, getPath(session.current));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * 目录树被替换后按路径重新找到每个会话的当前目录，找不到时回到根目录。调用方持有全局写锁。
+     */
+    private void rebindSessions(Map<FileSystem, String> paths) {
+        paths.forEach((session, path) -> {
+            FileSystemNode node = getNodeByPath(path);
+            session.current = node != null && node.isDirectory() ? node : root;
+        });
+    }
+
+    /**
+     * 应用其他进程提交的变更：只重放新增的记录，日志被压缩过时重新加载。
+     */
+    void refresh() {
+        // 批处理期间不重放其他进程的记录，否则回滚会把它们一起撤销
+        if (journal == null || batch != null) return;
+        try {
+            if (!journal.hasChanges()) return;
+            lock.writeLock().lock();
+            try {
+                if (journal.catchUp(this) < 0) {
+                    reload();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            err.println("Error reading journal: " + JOURNAL_FILE);
+        }
+    }
+
+    /**
+     * 命令结束时调用：只把本条命令的变更追加到日志，日志过大时才压缩成完整快照。
+     */
+    void commit() {
+        if (journal == null || !journal.hasPending()) return;
+        boolean compact;
+        lock.readLock().lock();
+        try {
+            journal.commit();
+            compact = journal.needsCompaction();
+        } catch (IOException e) {
+            err.println("Error writing journal: " + JOURNAL_FILE);
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (compact) {
+            boolean force;
+            try {
+                force = journal.mustCompact();
+            } catch (IOException e) {
+                force = false;
+            }
+            if (force) {
+                checkpoint();
+            } else {
+                checkpointInBackground();
+            }
+        }
+    }
+
+    /**
+     * 在全局写锁下提交日志并冻结目录树，由后台线程写快照，写完后短暂持锁替换快照文件。
+     */
+    void checkpointInBackground() {
+        if (journal == null || !checkpointing.compareAndSet(false, true)) return;
+        TreeSnapshot frozen;
+        List<User> frozenUsers = new ArrayList<>();
+        Map<String, Long> marks;
+        lock.writeLock().lock();
+        try (FileLock ignored = journal.lock()) {
+            journal.flush();
+            if (journal.catchUp(this) < 0) {
+                checkpointing.set(false);
+                return;
+            }
+            frozen = context.snapshots.freeze("checkpoint", journal.getGeneration());
+            marks = partitions.capture();
+            for (User user : users.values()) {
+                frozenUsers.add(new User(user.getUsername(), user.getPassword(), user.getGroup(), user.getHomeDirectory(),
+                        user.getByteQuota(), user.getInodeQuota()));
+            }
+        } catch (IOException e) {
+            err.println("Error compacting journal: " + JOURNAL_FILE);
+            checkpointing.set(false);
+            return;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        checkpointer.execute(() -> {
+            try {
+                writeCheckpoint(frozen, frozenUsers, marks);
+            } finally {
+                frozen.release();
+                checkpointing.set(false);
+            }
+        });
+    }
+
+    private void writeCheckpoint(TreeSnapshot frozen, List<User> frozenUsers, Map<String, Long> marks) {
+        Path next = Path.of(STATE_FILE + "." + ProcessHandle.current().pid());
+        long start = System.nanoTime();
+        Partitions.Saved saved;
+        try {
+            saved = partitions.write(root, frozen, frozenUsers, frozen.getGeneration(), next.toString(), marks, false);
+            metrics.nodesWritten.add(saved.nodes());
+            metrics.bytesWritten.add(saved.bytes());
+        } catch (IOException e) {
+            err.println("Error opening file for writing: " + next);
+            return;
+        } finally {
+            metrics.checkpoint.record(System.nanoTime() - start);
+        }
+        lock.writeLock().lock();
+        try {
+            if (journal == null) {
+                partitions.abandon(saved);
+                return;
+            }
+            try (FileLock ignored = journal.lock()) {
+                journal.flush();
+                if (journal.catchUp(this) < 0 || SnapshotFile.readGeneration(STATE_FILE) >= frozen.getGeneration()) {
+                    // 另一个进程已经写出了更新的快照
+                    Files.deleteIfExists(next);
+                    partitions.abandon(saved);
+                    return;
+                }
+                Files.move(next, Path.of(STATE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                partitions.published(saved, marks, frozen.getGeneration(), STATE_FILE);
+                saveUsersToFile(USERS_FILE, frozenUsers);
+                generation.set(frozen.getGeneration());
+                if (journal.getGeneration() == generation.get()) {
+                    journal.reset(generation.get());
+                }
+            } catch (IOException e) {
+                err.println("Error compacting journal: " + JOURNAL_FILE);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 创建只读快照，只保存在内存中。
+     */
+    void createSnapshot(String name) {
+        if (uid != 0) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (snapshots.containsKey(name)) {
+                err.println("Error: Snapshot already exists");
+                return;
+            }
+            snapshots.put(name, context.snapshots.freeze(name, journal != null ? journal.getGeneration() : generation.get()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 按创建顺序列出快照和之后被修改过的节点数。
+     */
+    void listSnapshots() {
+        List<TreeSnapshot> sorted = new ArrayList<>(snapshots.values());
+        sorted.sort(Comparator.comparingInt(TreeSnapshot::getSnapshotVersion));
+        for (TreeSnapshot snapshot : sorted) {
+            out.println(snapshot.getName() + "\t" + snapshot.getGeneration() + "\t"
+                    + Instant.ofEpochMilli(snapshot.getCreatedAt()) + "\t" + snapshot.preservedCount());
+        }
+    }
+
+    void deleteSnapshot(String name) {
+        if (uid != 0) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        TreeSnapshot snapshot = snapshots.remove(name);
+        if (snapshot == null) {
+            err.println("Error: Snapshot does not exist");
+            return;
+        }
+        snapshot.release();
+    }
+
+    /**
+     * 把目录树恢复成快照时的状态（用户表不变），随后写出完整快照并清空日志。
+     */
+    void restoreSnapshot(String name) {
+        if (uid != 0) {
+            err.println("Error: Permission denied");
+            return;
+        }
+        TreeSnapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            err.println("Error: Snapshot does not exist");
+            return;
+        }
+        if (batch != null) {
+            err.println("Error: Cannot restore a snapshot inside a batch");
+            return;
+        }
+        lock.writeLock().lock();
+        try (FileLock ignored = journal != null ? journal.lock() : null) {
+            if (journal != null) {
+                journal.flush();
+                if (journal.catchUp(this) < 0) {
+                    err.println("Error: State was compacted by another process, try again");
+                    return;
+                }
+            }
+            Map<FileSystem, String> currentPaths = sessionPaths();
+            TreeSnapshot.State rootState = snapshot.state(root);
+            List<FileSystemNode> restored = new ArrayList<>();
+            for (FileSystemNode child : rootState.children()) {
+                restored.add(snapshot.materialize(child, root));
+            }
+            pathCache.clear();
+            root.getChildren().forEach(this::releaseContent);
+            root.clearChildren();
+            root.setOwner(IdTable.USERS.name(rootState.uid()));
+            root.setGroup(IdTable.GROUPS.name(rootState.gid()));
+            root.setMode(rootState.mode());
+            for (FileSystemNode child : restored) {
+                root.addChild(child);
+            }
+            index.clear();
+            names.clear();
+            tree.forEach(root, n -> {
+                if (n == root) return true;
+                names.add(n);
+                if (!n.isDirectory()) {
+                    index.update(n);
+                }
+                return true;
+            });
+            rebindSessions(currentPaths);
+
+            audit(AuditLog.RESTORE, "/", name, -1, -1);
+            if (journal == null) {
+                saveToFile(STATE_FILE);
+                return;
+            }
+            generation.set(journal.getGeneration() + 1);
+            saveToFile(STATE_FILE);
+            saveUsersToFile(USERS_FILE);
+            journal.reset(generation.get());
+        } catch (IOException e) {
+            err.println("Error compacting journal: " + JOURNAL_FILE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 开始批处理，一直持有全局写锁，直到 {@link #commitBatch} 或 {@link #rollbackBatch}。
+     */
+    void beginBatch() {
+        lock.writeLock().lock();
+        boolean begun = false;
+        try {
+            refresh();
+            if (journal != null) {
+                try {
+                    journal.commit();
+                } catch (IOException e) {
+                    err.println("Error writing journal: " + JOURNAL_FILE);
+                }
+            }
+            batch = new Batch(context.snapshots.freeze("batch", journal != null ? journal.getGeneration() : generation.get()),
+                    new HashMap<>(), currentUser, getPath(current));
+            begun = true;
+        } finally {
+            if (!begun) lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 批处理中第一次改动用户 {@code username} 之前记下它原来的样子。
+     */
+    private void rememberUser(String username) {
+        if (batch == null || batch.users().containsKey(username)) return;
+        User user = users.get(username);
+        batch.users().put(username, user == null ? null
+                : new User(user.getUsername(), user.getPassword(), user.getGroup(), user.getHomeDirectory(),
+                        user.getByteQuota(), user.getInodeQuota()));
+    }
+
+    /**
+     * 结束批处理，把这一批的日志记录一次追加到日志文件。
+     */
+    void commitBatch() {
+        Batch finished = batch;
+        batch = null;
+        finished.snapshot().release();
+        lock.writeLock().unlock();
+        commit();
+    }
+
+    /**
+     * 撤销批处理中的全部修改，会话回到开始时的用户和当前目录。
+     */
+    void rollbackBatch() {
+        Batch failed = batch;
+        batch = null;
+        try {
+            if (journal != null) {
+                journal.discard();
+            }
+            undoChanges(failed.snapshot());
+            failed.users().forEach((username, saved) -> {
+                if (saved == null) {
+                    users.remove(username);
+                } else if (users.putIfAbsent(username, saved) != null) {
+                    User user = users.get(username);
+                    user.setPassword(saved.getPassword());
+                    user.setByteQuota(saved.getByteQuota());
+                    user.setInodeQuota(saved.getInodeQuota());
+                }
+            });
+            currentUser = failed.currentUser();
+            uid = currentUser == null ? -1 : IdTable.USERS.id(currentUser.getUsername());
+            gid = currentUser == null ? -1 : IdTable.GROUPS.id(currentUser.getGroup());
+            FileSystemNode node = getNodeByPath(failed.currentPath());
+            current = node != null && node.isDirectory() ? node : root;
+            audit(AuditLog.ROLLBACK, null, null, -1, -1);
+        } finally {
+            failed.snapshot().release();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把快照之后修改过的节点原地恢复，代价与修改过的节点数成正比。调用方持有全局写锁。
+     */
+    private void undoChanges(TreeSnapshot snapshot) {
+        List<Map.Entry<FileSystemNode, TreeSnapshot.State>> changed = new ArrayList<>();
+        for (Map.Entry<FileSystemNode, TreeSnapshot.State> entry : snapshot.preservedStates().entrySet()) {
+            if (isAttached(entry.getKey())) {
+                changed.add(entry);
+            }
+        }
+        for (Map.Entry<FileSystemNode, TreeSnapshot.State> entry : changed) {
+            FileSystemNode node = entry.getKey();
+            TreeSnapshot.State state = entry.getValue();
+            List<FileSystemNode> dropped = new ArrayList<>();
+            // 持有全局写锁，但读取方只持节点的分条读锁
+            ReentrantReadWriteLock stripe = stripes.forNode(node);
+            stripe.writeLock().lock();
+            try {
+                node.setOwner(IdTable.USERS.name(state.uid()));
+                node.setGroup(IdTable.GROUPS.name(state.gid()));
+                node.applyMode(state.mode());
+                if (node.isDirectory()) {
+                    Set<FileSystemNode> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+                    removed.addAll(Arrays.asList(state.children()));
+                    for (FileSystemNode child : node.getChildren()) {
+                        if (!removed.remove(child)) {
+                            node.removeChild(child);
+                            dropped.add(child);
+                        }
+                    }
+                    for (FileSystemNode child : removed) {
+                        FileSystemNode copy = snapshot.materialize(child, node);
+                        node.addChild(copy);
+                        tree.forEach(copy, n -> {
+                            names.add(n);
+                            if (!n.isDirectory()) {
+                                index.update(n);
+                            }
+                            return true;
+                        });
+                    }
+                } else {
+                    node.truncate(0);
+                    for (BlockStore.Block block : state.blocks()) {
+                        node.appendBlock(block);
+                    }
+                    index.update(node);
+                }
+            } finally {
+                stripe.writeLock().unlock();
+            }
+            // 被删除的子树各自按条带加锁释放
+            dropped.forEach(this::releaseContent);
+        }
+        pathCache.clear();
+        access.invalidate();
+    }
+
+    /**
+     * 节点是否仍挂在目录树上。
+     */
+    private boolean isAttached(FileSystemNode node) {
+        for (; node.getParent() != null; node = node.getParent()) {
+            if (node.getParent().getChild(node.getName()) != node) return false;
+        }
+        return node == root;
+    }
+
+    void checkpoint() {
+        lock.writeLock().lock();
+        try {
+            if (journal == null) {
+                saveToFile(STATE_FILE);
+                saveUsersToFile(USERS_FILE);
+                return;
+            }
+            try (FileLock ignored = journal.lock()) {
+                journal.flush();
+                if (journal.catchUp(this) < 0) {
+                    // 另一个进程已经压缩过日志，本进程的内存状态不完整，不能覆盖它的快照
+                    return;
+                }
+                generation.set(journal.getGeneration());
+                saveToFile(STATE_FILE);
+                saveUsersToFile(USERS_FILE);
+                journal.reset(generation.get());
+            } catch (IOException e) {
+                err.println("Error compacting journal: " + JOURNAL_FILE);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void close() {
+        // 先等后台检查点结束，它最后需要全局写锁
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            checkpoint();
+            if (audit != null) {
+                // 持有全局写锁，没有修改正在进行，关闭时写完所有已提交的审计记录
+                try {
+                    audit.close();
+                } catch (IOException e) {
+                    err.println("Error closing audit log: " + AUDIT_FILE);
+                }
+                audit = null;
+            }
+            if (journal == null) return;
+            try {
+                journal.close();
+            } catch (IOException e) {
+                err.println("Error closing journal: " + JOURNAL_FILE);
+            }
+            journal = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -1,52 +1,416 @@
 package net.fangyi;
 
-import lombok.Data;
+import lombok.AccessLevel;
+import lombok.Getter;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
 
-@Data
+/**
+ * 目录树节点，以对象身份作为相等性。所有者和组是 {@link IdTable} 中的 id，修改前先调用 {@link #beforeChange()}。
+ * 目录的 {@link Usage} 是子树用量，变化只把差值沿父目录链向上传递；家目录的内容可能还在 {@link Partitions} 中，访问子节点前先等它加载。
+ */
+@Getter
 public class FileSystemNode {
-    private String name;
-    private boolean isDirectory;
-    private String owner;
-    private String group;
-    private String content;
-    private Map<String, FileSystemNode> children;
-    private String userPermissions;
-    private String groupPermissions;
-    private String otherPermissions;
-    private FileSystemNode parent;
-    private boolean isBeingEdited;
+    private final String name;
+    private final boolean isDirectory;
+    private volatile int uid;
+    private volatile int gid;
+    private volatile short mode;
+    private volatile FileContent data; // 目录为 null，空文件共享 FileContent.EMPTY
+    private final ChildTable childTable; // 文件为 null
+    private volatile FileSystemNode parent;
+    private volatile int frozenVersion; // 上次为快照保存状态时的快照版本
+    @Getter(AccessLevel.NONE)
+    private final Usage usage; // 文件为 null，由本节点的监视器保护
+    private volatile boolean linked; // 是否在父目录的子节点表中
 
-    public FileSystemNode(String name, boolean isDirectory, String owner, String group,
-                          String userPermissions, String groupPermissions, String otherPermissions,
-                          FileSystemNode parent) {
+    public FileSystemNode(String name, boolean isDirectory, int uid, int gid, int mode, FileSystemNode parent) {
         this.name = name;
         this.isDirectory = isDirectory;
-        this.owner = owner;
-        this.group = group;
-        this.userPermissions = userPermissions;
-        this.groupPermissions = groupPermissions;
-        this.otherPermissions = otherPermissions;
+        this.uid = uid;
+        this.gid = gid;
+        this.mode = (short) (mode & 0777);
         this.parent = parent;
-        this.isBeingEdited = false;
-        this.children = new HashMap<>();
+        this.data = isDirectory ? null : FileContent.EMPTY;
+        this.childTable = isDirectory ? new ChildTable() : null;
+        this.usage = isDirectory ? new Usage(0, 0, 1) : null;
+        TreeContext context = parent != null ? parent.context() : null;
+        if (isDirectory) {
+            childTable.context = context;
+        }
+        this.frozenVersion = context != null ? context.snapshots.version() : 0;
+    }
+
+    public FileSystemNode(String name, boolean isDirectory, String owner, String group,
+                          String userPermissions, String groupPermissions, String otherPermissions,
+                          FileSystemNode parent) {
+        this(name, isDirectory, IdTable.USERS.id(owner), IdTable.GROUPS.id(group),
+                parseMode(userPermissions + groupPermissions + otherPermissions), parent);
+    }
+
+    public String getOwner() {
+        return IdTable.USERS.name(uid);
+    }
+
+    public void setOwner(String owner) {
+        beforeChange();
+        int previous = uid;
+        uid = IdTable.USERS.id(owner);
+        Quotas quotas = attachedQuotas();
+        if (quotas != null && previous != uid) {
+            long bytes = isDirectory ? 0 : data.length();
+            quotas.charge(previous, -bytes, -1);
+            quotas.charge(uid, bytes, 1);
+        }
+    }
+
+    public String getGroup() {
+        return IdTable.GROUPS.name(gid);
+    }
+
+    public void setGroup(String group) {
+        beforeChange();
+        gid = IdTable.GROUPS.id(group);
+    }
+
+    public FileSystemNode getChild(String name) {
+        awaitChildren();
+        return childTable == null ? null : childTable.get(name);
+    }
+
+    /**
+     * 目录的内容还没有从段文件加载时，在当前线程加载（或等正在加载的线程完成）。已加载时只读一次 volatile 字段。
+     */
+    void awaitChildren() {
+        if (childTable != null) {
+            Runnable load = childTable.pending;
+            if (load != null) load.run();
+        }
+    }
+
+    /**
+     * 登记加载动作，之后第一次访问子节点表或用量时运行；为 null 时取消登记。
+     */
+    void setPendingLoad(Runnable load) {
+        childTable.pending = load;
+    }
+
+    boolean isLoaded() {
+        return childTable == null || childTable.pending == null;
+    }
+
+    /**
+     * 把从段文件读出的子树加入本目录，不经过 {@link #beforeChange()}。
+     */
+    void attachLoaded(FileSystemNode child) {
+        if (childTable.putIfAbsent(child) == null) {
+            child.link(true);
+        }
+    }
+
+    /**
+     * 加载前为 {@code count} 个子节点预留子节点表的空间，不经过 {@link #awaitChildren()}。
+     */
+    void reserveChildren(int count) {
+        childTable.reserve(count);
+    }
+
+    /**
+     * 刚从段文件读出的节点视为在所有活动快照之前就存在，之后第一次修改时为每个快照保存原来的状态。
+     */
+    void markLoaded() {
+        frozenVersion = 0;
+    }
+
+    /**
+     * 添加子节点，同名节点已存在时返回已有节点。调用方持有本目录所在条带的写锁。
+     */
+    public FileSystemNode addChild(FileSystemNode child) {
+        awaitChildren();
+        beforeChange();
+        FileSystemNode existing = childTable.putIfAbsent(child);
+        if (existing == null) {
+            child.link(true);
+        }
+        return existing;
+    }
+
+    public boolean removeChild(FileSystemNode child) {
+        awaitChildren();
+        beforeChange();
+        if (childTable == null || !childTable.remove(child)) return false;
+        child.link(false);
+        return true;
+    }
+
+    public List<FileSystemNode> getChildren() {
+        awaitChildren();
+        return childTable == null ? List.of() : childTable.values();
+    }
+
+    /**
+     * 按名字排序、名字大于 {@code after}（为 null 时从头开始）的最多 {@code limit} 个子节点。
+     */
+    public List<FileSystemNode> getChildren(String after, int limit) {
+        awaitChildren();
+        return childTable == null ? List.of() : childTable.page(after, limit);
+    }
+
+    public int getChildCount() {
+        awaitChildren();
+        return childTable == null ? 0 : childTable.size();
+    }
+
+    public void clearChildren() {
+        if (childTable != null) {
+            awaitChildren();
+            beforeChange();
+            List<FileSystemNode> children = childTable.values();
+            childTable.clear();
+            for (FileSystemNode child : children) {
+                child.link(false);
+            }
+        }
+    }
+
+    /**
+     * 子树的用量：目录返回一致的副本，文件是自己的长度。
+     */
+    public Usage usage() {
+        if (!isDirectory) {
+            synchronized (this) {
+                return new Usage(data.length(), 1, 0);
+            }
+        }
+        awaitChildren();
+        synchronized (this) {
+            return usage.copy();
+        }
+    }
+
+    /**
+     * 所在目录树的 {@link TreeContext}：目录自己持有，文件取父目录的。
+     */
+    TreeContext context() {
+        if (isDirectory) return childTable.context;
+        return parent != null ? parent.childTable.context : null;
+    }
+
+    /**
+     * 把 {@code context} 登记到根目录，之后在它下面创建的节点都使用它。
+     */
+    void useContext(TreeContext context) {
+        childTable.context = context;
+    }
+
+    /**
+     * 把 {@code quotas} 登记到根目录，之后到达根目录的用量变化记到节点所有者名下。
+     */
+    void trackQuotas(Quotas quotas) {
+        synchronized (this) {
+            usage.quotas = quotas;
+        }
+    }
+
+    /**
+     * 加入或离开父目录后，把本子树的用量加到或减出各级祖先。
+     */
+    private void link(boolean attach) {
+        // 加载线程挂入子节点时要持有本目录的监视器，所以在监视器外等它完成
+        awaitChildren();
+        Usage total;
+        synchronized (this) {
+            linked = attach;
+            total = isDirectory ? usage.copy() : new Usage(data.length(), 1, 0);
+        }
+        int sign = attach ? 1 : -1;
+        Quotas quotas = propagate(parent, sign * total.getBytes(), sign * total.getFiles(), sign * total.getDirectories());
+        if (quotas == null) return;
+        if (!isDirectory || total.getFiles() + total.getDirectories() == 1) {
+            quotas.charge(uid, sign * total.getBytes(), sign);
+            return;
+        }
+        Deque<FileSystemNode> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            FileSystemNode node = stack.pop();
+            if (node.isDirectory) {
+                quotas.charge(node.uid, 0, sign);
+                node.getChildren().forEach(stack::push);
+            } else {
+                quotas.charge(node.uid, sign * node.data.length(), sign);
+            }
+        }
+    }
+
+    /**
+     * 从 {@code directory} 向上累加用量差值，到达根目录时返回登记的 {@link Quotas}，否则返回 null。
+     */
+    private static Quotas propagate(FileSystemNode directory, long bytes, long files, long directories) {
+        FileSystemNode node = directory;
+        while (node != null) {
+            FileSystemNode next;
+            synchronized (node) {
+                node.usage.add(bytes, files, directories);
+                if (node.parent == null) return node.usage.quotas;
+                next = node.linked ? node.parent : null;
+            }
+            node = next;
+        }
+        return null;
+    }
+
+    /**
+     * 节点挂在根目录下时返回根目录登记的 {@link Quotas}。调用方保证期间目录结构不变。
+     */
+    private Quotas attachedQuotas() {
+        FileSystemNode node = this;
+        while (node.linked) {
+            node = node.parent;
+        }
+        return node.parent == null && node.isDirectory ? node.usage.quotas : null;
+    }
+
+    public String getContent() {
+        return data == null ? "" : data.toString();
+    }
+
+    public void setContent(String content) {
+        setContent(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void setContent(byte[] bytes) {
+        changeContent(data -> {
+            data.truncate(0);
+            data.append(bytes, 0, bytes.length);
+        });
+    }
+
+    /**
+     * 以下修改内容的方法由调用方持有本节点所在条带的写锁，长度的变化计入各级祖先的用量。
+     */
+    void write(long offset, byte[] src, int srcOffset, int len) {
+        changeContent(data -> data.write(offset, src, srcOffset, len));
+    }
+
+    void append(byte[] src, int srcOffset, int len) {
+        changeContent(data -> data.append(src, srcOffset, len));
+    }
+
+    void append(ByteBuffer src, int len) {
+        changeContent(data -> data.append(src, len));
+    }
+
+    void appendBlock(BlockStore.Block block) {
+        changeContent(data -> data.appendBlock(block));
+    }
+
+    void truncate(long size) {
+        changeContent(data -> data.truncate(size));
+    }
+
+    /**
+     * 文件当前的数据块。在修改内容所用的监视器下一次取得块数组和块数，不会读到修改到一半的列表。
+     */
+    BlockStore.Block[] blocks() {
+        synchronized (this) {
+            return data == null ? FileContent.EMPTY.blocks() : data.blocks();
+        }
+    }
+
+    private void changeContent(Consumer<FileContent> change) {
+        long delta;
+        FileSystemNode next;
+        synchronized (this) {
+            FileContent content = openData();
+            long before = content.length();
+            change.accept(content);
+            delta = content.length() - before;
+            next = linked ? parent : null;
+        }
+        if (delta != 0) {
+            Quotas quotas = propagate(next, delta, 0, 0);
+            if (quotas != null) {
+                quotas.charge(uid, delta, 0);
+            }
+        }
+    }
+
+    /**
+     * 返回可以修改的文件内容，第一次写入时才分配。调用方持有本节点所在条带的写锁。
+     */
+    private FileContent openData() {
+        beforeChange();
+        if (data == FileContent.EMPTY) {
+            data = new FileContent();
+        }
+        return data;
     }
 
     public void setPermissions(String newPermissions) {
         if (newPermissions.length() == 9) {
-            userPermissions = newPermissions.substring(0, 3);
-            groupPermissions = newPermissions.substring(3, 6);
-            otherPermissions = newPermissions.substring(6, 9);
+            setMode(parseMode(newPermissions));
+        }
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public void setMode(int mode) {
+        applyMode(mode);
+        TreeContext context = isDirectory ? context() : null;
+        if (context != null) {
+            // 先写 mode 再推进纪元，按旧 mode 算出的缓存结论一定带着旧纪元
+            context.access.invalidate();
+        }
+    }
+
+    /**
+     * 只修改 mode，不使权限缓存失效；批量修改时由调用方在最后统一调用 {@link PermissionChecker#invalidate()}。
+     */
+    void applyMode(int mode) {
+        beforeChange();
+        this.mode = (short) (mode & 0777);
+    }
+
+    /**
+     * 节点自上次保存以来有新的快照时，先让快照保存当前状态。没有新快照时只比较一次版本号。
+     */
+    private void beforeChange() {
+        TreeContext context = context();
+        if (context == null) return;
+        int current = context.snapshots.version();
+        if (frozenVersion != current) {
+            context.snapshots.preserve(this, frozenVersion);
+            frozenVersion = current;
         }
     }
 
     public String getPermissions() {
-        return userPermissions + groupPermissions + otherPermissions;
+        String rwx = "rwxrwxrwx";
+        char[] permissions = new char[9];
+        for (int i = 0; i < 9; i++) {
+            permissions[i] = (mode & (1 << (8 - i))) != 0 ? rwx.charAt(i) : '-';
+        }
+        return new String(permissions);
     }
 
     public String formatPermissions() {
-        return (isDirectory ? 'd' : '-') + userPermissions + groupPermissions + otherPermissions + " " + owner + " " + group;
+        return (isDirectory ? 'd' : '-') + getPermissions() + " " + getOwner() + " " + getGroup();
+    }
+
+    static int parseMode(String permissions) {
+        int mode = 0;
+        for (int i = 0; i < 9; i++) {
+            mode <<= 1;
+            if (permissions.charAt(i) != '-') mode |= 1;
+        }
+        return mode;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,311 @@
+package net.fangyi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * 本机文件系统和目录树之间的批量导入导出，文件内容由 {@link #PARALLELISM} 个 I/O 线程并行读写（{@code fs.ioParallelism}）。
+ */
+public class HostTransfer {
+    static final int PARALLELISM = Integer.getInteger("fs.ioParallelism",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    static final int BUFFER_SIZE = 16 * FileContent.CHUNK_SIZE;
+    static final int MAP_REGION = 1 << 30;
+    static final int GATHER = 256;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * 把本机上的 {@code source} 读成 {@code parent} 下名为 {@code name} 的子树，尚未加入 {@code parent}。符号链接和特殊文件被跳过。
+     */
+    FileSystemNode importTree(Path source, String name, FileSystemNode parent, Predicate<String> isUser,
+                              Predicate<String> isGroup, int uid, int gid) throws IOException {
+        Importer importer = new Importer(name, parent, isUser, isGroup, uid, gid);
+        try (ExecutorService io = Executors.newFixedThreadPool(PARALLELISM)) {
+            importer.io = io;
+            Files.walkFileTree(source, importer);
+            awaitAll(importer.reads);
+        } catch (IOException | RuntimeException e) {
+            if (importer.top != null) {
+                release(importer.top);
+            }
+            throw e;
+        }
+        return importer.top;
+    }
+
+    /**
+     * 遍历线程建立目录和文件节点，文件内容提交给 I/O 线程读取。
+     */
+    private class Importer extends SimpleFileVisitor<Path> {
+        private final String name;
+        private final FileSystemNode parent;
+        private final Predicate<String> isUser;
+        private final Predicate<String> isGroup;
+        private final int uid;
+        private final int gid;
+        private final Deque<FileSystemNode> directoryStack = new ArrayDeque<>();
+        private final List<Future<?>> reads = new ArrayList<>();
+        private ExecutorService io;
+        private FileSystemNode top;
+
+        Importer(String name, FileSystemNode parent, Predicate<String> isUser, Predicate<String> isGroup,
+                 int uid, int gid) {
+            this.name = name;
+            this.parent = parent;
+            this.isUser = isUser;
+            this.isGroup = isGroup;
+            this.uid = uid;
+            this.gid = gid;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            directoryStack.push(newNode(dir, true));
+            directories.increment();
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            if (!attrs.isRegularFile()) {
+                skipped.increment();
+                return FileVisitResult.CONTINUE;
+            }
+            FileSystemNode node = newNode(file, false);
+            reads.add(io.submit(() -> {
+                try {
+                    read(file, node);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+            files.increment();
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+            if (e != null) throw e;
+            directoryStack.pop();
+            return FileVisitResult.CONTINUE;
+        }
+
+        private FileSystemNode newNode(Path path, boolean isDirectory) throws IOException {
+            int owner = uid;
+            int group = gid;
+            int mode = 0755;
+            PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+            if (view != null) {
+                PosixFileAttributes posix = view.readAttributes();
+                if (isUser.test(posix.owner().getName())) owner = IdTable.USERS.id(posix.owner().getName());
+                if (isGroup.test(posix.group().getName())) group = IdTable.GROUPS.id(posix.group().getName());
+                mode = modeOf(posix.permissions());
+            }
+            if (top == null) {
+                top = new FileSystemNode(name, isDirectory, owner, group, mode, parent);
+                return top;
+            }
+            FileSystemNode into = directoryStack.peek();
+            FileSystemNode node = new FileSystemNode(path.getFileName().toString(), isDirectory, owner, group, mode, into);
+            into.addChild(node);
+            return node;
+        }
+    }
+
+    /**
+     * 导入失败时释放已经读入的文件对共享数据块的引用。
+     */
+    private static void release(FileSystemNode top) {
+        Deque<FileSystemNode> stack = new ArrayDeque<>();
+        stack.push(top);
+        while (!stack.isEmpty()) {
+            FileSystemNode node = stack.pop();
+            if (node.isDirectory()) {
+                node.getChildren().forEach(stack::push);
+            } else {
+                node.getData().release();
+            }
+        }
+    }
+
+    /**
+     * 把本机文件的内容追加到尚未挂到树上的节点，只有当前线程访问它。
+     */
+    private void read(Path file, FileSystemNode node) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_REGION) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_REGION, size - position));
+                    node.append(region, region.remaining());
+                }
+            } else {
+                ByteBuffer buffer = BUFFER.get();
+                buffer.clear();
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    node.append(buffer, buffer.remaining());
+                    buffer.clear();
+                }
+            }
+        }
+        bytes.add(node.getData().length());
+    }
+
+    /**
+     * 把 {@code node} 在 {@code view} 时刻的内容写到本机的 {@code target}。目录的权限在其中的文件写完后才设置。
+     */
+    void exportTree(TreeSnapshot view, FileSystemNode node, boolean isRoot, Path target) throws IOException {
+        List<Future<?>> writes = new ArrayList<>();
+        List<Path> createdDirectories = new ArrayList<>();
+        List<Integer> directoryModes = new ArrayList<>();
+        try (ExecutorService io = Executors.newFixedThreadPool(PARALLELISM)) {
+            Deque<Object[]> stack = new ArrayDeque<>();
+            stack.push(new Object[]{node, target});
+            while (!stack.isEmpty()) {
+                Object[] next = stack.pop();
+                FileSystemNode current = (FileSystemNode) next[0];
+                Path path = (Path) next[1];
+                TreeSnapshot.State state = view.state(current);
+                if (!current.isDirectory()) {
+                    writes.add(io.submit(() -> {
+                        try {
+                            write(state, path);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                    files.increment();
+                    continue;
+                }
+                if (current == node && isRoot) {
+                    Files.createDirectories(path);
+                } else {
+                    Files.createDirectory(path);
+                    createdDirectories.add(path);
+                    directoryModes.add(state.mode());
+                }
+                directories.increment();
+                for (FileSystemNode child : state.children()) {
+                    stack.push(new Object[]{child, path.resolve(child.getName())});
+                }
+            }
+            awaitAll(writes);
+        }
+        for (int i = createdDirectories.size() - 1; i >= 0; i--) {
+            setMode(createdDirectories.get(i), directoryModes.get(i));
+        }
+    }
+
+    private void write(TreeSnapshot.State state, Path path) throws IOException {
+        BlockStore.Block[] blocks = state.blocks();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer[] gather = new ByteBuffer[Math.min(GATHER, blocks.length)];
+            for (int from = 0; from < blocks.length; from += GATHER) {
+                int n = Math.min(GATHER, blocks.length - from);
+                for (int i = 0; i < n; i++) {
+                    gather[i] = ByteBuffer.wrap(blocks[from + i].peek());
+                }
+                long remaining = 0;
+                for (int i = 0; i < n; i++) {
+                    remaining += gather[i].remaining();
+                }
+                bytes.add(remaining);
+                while (remaining > 0) {
+                    remaining -= channel.write(gather, 0, n);
+                }
+            }
+        }
+        setMode(path, state.mode());
+    }
+
+    private static void setMode(Path path, int mode) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(permissionsOf(mode));
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> tasks) throws IOException {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException io) throw io.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * {@link PosixFilePermission} 的声明顺序正好是 mode 从高到低的 9 位。
+     */
+    static int modeOf(Set<PosixFilePermission> permissions) {
+        int mode = 0;
+        for (PosixFilePermission permission : permissions) {
+            mode |= 1 << (8 - permission.ordinal());
+        }
+        return mode;
+    }
+
+    static Set<PosixFilePermission> permissionsOf(int mode) {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            if ((mode & (1 << (8 - permission.ordinal()))) != 0) {
+                permissions.add(permission);
+            }
+        }
+        return permissions;
+    }
+
+    long getFiles() {
+        return files.sum();
+    }
+
+    long getDirectories() {
+        return directories.sum();
+    }
+
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    long getSkipped() {
+        return skipped.sum();
+    }
+}
@@ -0,0 +1,43 @@
+package net.fangyi;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 用户名和组名到数字 id 的映射，只存在于内存中，"root" 总是 0。
+ */
+public class IdTable {
+    static final IdTable USERS = new IdTable("root");
+    static final IdTable GROUPS = new IdTable("root");
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int count;
+
+    private IdTable(String first) {
+        id(first);
+    }
+
+    int id(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : register(name);
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    private synchronized int register(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        String[] table = names;
+        if (count == table.length) {
+            table = Arrays.copyOf(table, count * 2);
+        }
+        // 先写名字再发布 id，拿到 id 的线程一定能读到名字
+        table[count] = name;
+        names = table;
+        ids.put(name, count);
+        return count++;
+    }
+}
@@ -0,0 +1,609 @@
+package net.fangyi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 追加写的操作日志，文件头为 [magic][baseGeneration]，每条记录为 [长度][CRC32][操作码][参数...]。
+ * 多个进程共享同一份日志，写入和压缩时持有文件锁。
+ */
+public class Journal implements Closeable {
+    static final int MAGIC = 0x46534A4E; // "FSJN"
+    static final int HEADER_SIZE = 4 + 8;
+
+    static final byte CREATE = 1;
+    static final byte REMOVE = 2;
+    static final byte SET_PERMISSIONS = 3;
+    static final byte SET_CONTENT = 4;
+    static final byte ADD_USER = 5;
+    static final byte CHANGE_PASSWORD = 6;
+    static final byte SET_EDITING = 7; // 旧版本的编辑标志，重放时忽略
+    static final byte WRITE = 8;
+    static final byte APPEND = 9;
+    static final byte TRUNCATE = 10;
+    static final byte COPY = 11;
+    static final byte SET_PERMISSIONS_RECURSIVE = 12;
+    static final byte SET_QUOTA = 13;
+
+    static final int SYNC_BATCH = 64;
+    static final long SYNC_INTERVAL_MILLIS = 1000;
+    static final long COMPACT_THRESHOLD = 4L * 1024 * 1024;
+    static final long FORCE_COMPACT_THRESHOLD = 4 * COMPACT_THRESHOLD;
+
+    private final FileChannel channel;
+    private final PrintStream err;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private int batchRecords;
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+    private volatile long baseGeneration;
+    private long recordsSeen;
+    private volatile long readOffset;
+    private volatile boolean stale;
+    private boolean replaying;
+    /**
+     * 本进程在读到文件末尾之前追加的记录：[起始偏移, 结束偏移, 记录数]，重放到这里时跳过。
+     */
+    private final ArrayDeque<long[]> ownRecords = new ArrayDeque<>();
+
+    Journal(String filename, PrintStream err) throws IOException {
+        channel = FileChannel.open(Path.of(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.err = err;
+    }
+
+    FileLock lock() throws IOException {
+        return channel.lock();
+    }
+
+    /**
+     * 是否正在重放日志，修改方据此区分重放引起的修改和本进程自己的修改。
+     */
+    boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * 在代数为 {@code snapshotGeneration} 的快照之上重放日志，跳过快照已经包含的记录。调用方持有 {@link #lock()}。
+     */
+    synchronized void open(FileSystem fs, long snapshotGeneration) throws IOException {
+        stale = false;
+        ownRecords.clear();
+        long base = readBaseGeneration();
+        if (base < 0) {
+            if (channel.size() > 0) {
+                err.println("Warning: Discarding unrecognized journal");
+            }
+            reset(snapshotGeneration);
+            return;
+        }
+        baseGeneration = base;
+        recordsSeen = 0;
+        readOffset = HEADER_SIZE;
+        long size = channel.size();
+        long skip = Math.max(0, snapshotGeneration - base);
+        replay(fs, size, skip);
+        if (recordsSeen < skip) {
+            reset(snapshotGeneration);
+            return;
+        }
+        if (readOffset < size) {
+            err.println("Warning: Discarding incomplete journal tail (" + (size - readOffset) + " bytes)");
+            channel.truncate(readOffset);
+        }
+    }
+
+    /**
+     * 重放其他进程追加的记录，返回重放的记录数；日志被压缩过时返回 -1，调用方需要重新加载。
+     */
+    synchronized int catchUp(FileSystem fs) throws IOException {
+        if (stale || readBaseGeneration() != baseGeneration) return -1;
+        long size = channel.size();
+        if (size < readOffset) return -1;
+        if (size == readOffset) return 0;
+        return replay(fs, size, 0);
+    }
+
+    /**
+     * 不加锁的快速检查：日志头和长度都没变时说明没有需要重放的记录。
+     */
+    boolean hasChanges() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) return true;
+        }
+        buffer.flip();
+        return stale || buffer.getInt() != MAGIC || buffer.getLong() != baseGeneration || channel.size() != readOffset;
+    }
+
+    boolean hasPending() {
+        return batch.size() > 0;
+    }
+
+    synchronized long getGeneration() {
+        return baseGeneration + recordsSeen;
+    }
+
+    private long readBaseGeneration() throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) return -1;
+        }
+        header.flip();
+        return header.getInt() == MAGIC ? header.getLong() : -1;
+    }
+
+    synchronized void logCreate(String path, boolean isDirectory, String owner, String group) {
+        if (replaying) return;
+        begin(CREATE);
+        writeString(path);
+        writeBoolean(isDirectory);
+        writeString(owner);
+        writeString(group);
+        end();
+    }
+
+    synchronized void logRemove(String path) {
+        if (replaying) return;
+        begin(REMOVE);
+        writeString(path);
+        end();
+    }
+
+    synchronized void logSetPermissions(String path, String permissions) {
+        if (replaying) return;
+        begin(SET_PERMISSIONS);
+        writeString(path);
+        writeString(permissions);
+        end();
+    }
+
+    /**
+     * 递归修改权限作为一条记录；记下操作者，重放时按同样的规则跳过不属于他的节点。
+     */
+    synchronized void logSetPermissionsRecursive(String path, String permissions, String user, String group) {
+        if (replaying) return;
+        begin(SET_PERMISSIONS_RECURSIVE);
+        writeString(path);
+        writeString(permissions);
+        writeString(user);
+        writeString(group);
+        end();
+    }
+
+    synchronized void logCopy(String source, String destination, String owner, String group) {
+        if (replaying) return;
+        begin(COPY);
+        writeString(source);
+        writeString(destination);
+        writeString(owner);
+        writeString(group);
+        end();
+    }
+
+    synchronized void logSetContent(String path, String content) {
+        if (replaying) return;
+        begin(SET_CONTENT);
+        writeString(path);
+        writeString(content);
+        end();
+    }
+
+    synchronized void logWrite(String path, long offset, byte[] bytes) {
+        if (replaying) return;
+        begin(WRITE);
+        writeString(path);
+        writeLong(offset);
+        writeBytes(bytes);
+        end();
+    }
+
+    synchronized void logAppend(String path, byte[] bytes) {
+        if (replaying) return;
+        begin(APPEND);
+        writeString(path);
+        writeBytes(bytes);
+        end();
+    }
+
+    synchronized void logTruncate(String path, long size) {
+        if (replaying) return;
+        begin(TRUNCATE);
+        writeString(path);
+        writeLong(size);
+        end();
+    }
+
+    synchronized void logAddUser(String username, String password, String group) {
+        if (replaying) return;
+        begin(ADD_USER);
+        writeString(username);
+        writeString(password);
+        writeString(group);
+        end();
+    }
+
+    synchronized void logChangePassword(String username, String newPassword) {
+        if (replaying) return;
+        begin(CHANGE_PASSWORD);
+        writeString(username);
+        writeString(newPassword);
+        end();
+    }
+
+    synchronized void logSetQuota(String username, long byteQuota, long inodeQuota) {
+        if (replaying) return;
+        begin(SET_QUOTA);
+        writeString(username);
+        writeLong(byteQuota);
+        writeLong(inodeQuota);
+        end();
+    }
+
+    /**
+     * 把缓冲的记录追加到文件，fsync 按 {@link #SYNC_BATCH} 条或 {@link #SYNC_INTERVAL_MILLIS} 毫秒分批进行。
+     */
+    synchronized void commit() throws IOException {
+        if (batch.size() == 0) return;
+        try (FileLock ignored = lock()) {
+            flush();
+        }
+    }
+
+    /**
+     * 与 {@link #commit} 相同，但调用方已持有 {@link #lock()}。没读到文件末尾时记下本进程写入的范围，重放时跳过。
+     */
+    synchronized void flush() throws IOException {
+        if (batch.size() == 0) return;
+        long start = channel.size();
+        boolean current = !stale && readBaseGeneration() == baseGeneration;
+        long position = start;
+        ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        if (current && start == readOffset) {
+            readOffset = position;
+            recordsSeen += batchRecords;
+        } else if (current) {
+            ownRecords.addLast(new long[]{start, position, batchRecords});
+        }
+        batch.reset();
+        batchRecords = 0;
+        long now = System.currentTimeMillis();
+        if (unsynced >= SYNC_BATCH || now - lastSync >= SYNC_INTERVAL_MILLIS) {
+            sync();
+        }
+    }
+
+    /**
+     * 丢弃尚未提交的记录，用于回滚批处理。
+     */
+    synchronized void discard() {
+        batch.reset();
+        batchRecords = 0;
+    }
+
+    synchronized void sync() throws IOException {
+        channel.force(false);
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * 由后台线程定时调用：一批命令之后没有新的提交时，最多过 {@link #SYNC_INTERVAL_MILLIS} 也把已写出的记录刷到磁盘。
+     */
+    synchronized void syncIfDue() throws IOException {
+        if (unsynced > 0 && System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MILLIS) {
+            sync();
+        }
+    }
+
+    synchronized int unsynced() {
+        return unsynced;
+    }
+
+    synchronized long size() throws IOException {
+        return channel.size() + batch.size();
+    }
+
+    synchronized boolean needsCompaction() throws IOException {
+        return size() >= COMPACT_THRESHOLD;
+    }
+
+    synchronized boolean mustCompact() throws IOException {
+        return size() >= FORCE_COMPACT_THRESHOLD;
+    }
+
+    /**
+     * 代数为 {@code generation} 的快照已经包含全部记录后清空日志，调用方需持有 {@link #lock()}。
+     */
+    synchronized void reset(long generation) throws IOException {
+        batch.reset();
+        batchRecords = 0;
+        channel.truncate(0);
+        header.clear();
+        header.putInt(MAGIC).putLong(generation).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        sync();
+        baseGeneration = generation;
+        recordsSeen = 0;
+        readOffset = HEADER_SIZE;
+        stale = false;
+        ownRecords.clear();
+    }
+
+    /**
+     * 从 readOffset 开始重放完整的记录，前 {@code skip} 条和本进程自己追加的只计数不执行。返回执行的记录数。
+     */
+    private int replay(FileSystem fs, long end, long skip) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) (end - readOffset));
+        while (data.hasRemaining()) {
+            if (channel.read(data, readOffset + data.position()) < 0) break;
+        }
+        data.flip();
+
+        int count = 0;
+        while (true) {
+            long[] own = ownRecords.peekFirst();
+            if (own != null && own[0] == readOffset) {
+                if (own[1] - own[0] > data.remaining()) break;
+                ownRecords.removeFirst();
+                data.position(data.position() + (int) (own[1] - own[0]));
+                readOffset = own[1];
+                recordsSeen += own[2];
+                continue;
+            }
+            if (data.remaining() < 8) break;
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()) break;
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if ((int) crc.getValue() != checksum) break;
+            if (recordsSeen >= skip) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array(), data.position(), length));
+                replaying = true;
+                try {
+                    apply(fs, in);
+                } finally {
+                    replaying = false;
+                }
+                count++;
+            }
+            data.position(data.position() + length);
+            readOffset += 8 + length;
+            recordsSeen++;
+        }
+        return count;
+    }
+
+    /**
+     * 重放持有全局写锁，但读取方只持节点的分条读锁，修改内容时还要拿分条写锁。
+     */
+    private static void withStripe(FileSystem fs, FileSystemNode node, Runnable change) {
+        ReentrantReadWriteLock stripe = fs.getStripes().forNode(node);
+        stripe.writeLock().lock();
+        try {
+            change.run();
+        } finally {
+            stripe.writeLock().unlock();
+        }
+    }
+
+    private void apply(FileSystem fs, DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case CREATE -> {
+                String path = readString(in);
+                boolean isDirectory = in.readBoolean();
+                String owner = readString(in);
+                String group = readString(in);
+                if (fs.getNodeByPath(path) == null) {
+                    fs.createNode(path, isDirectory, owner, group);
+                }
+            }
+            case REMOVE -> {
+                String path = readString(in);
+                if (fs.getNodeByPath(path) != null) {
+                    fs.removeNode(path);
+                }
+            }
+            case SET_PERMISSIONS -> {
+                String path = readString(in);
+                FileSystemNode node = fs.getNodeByPath(path);
+                String permissions = readString(in);
+                if (node != null) {
+                    node.setPermissions(permissions);
+                    fs.replayed(AuditLog.CHMOD, path, node.getMode());
+                }
+            }
+            case SET_PERMISSIONS_RECURSIVE -> {
+                String path = readString(in);
+                FileSystemNode node = fs.getNodeByPath(path);
+                String permissions = readString(in);
+                int uid = IdTable.USERS.id(readString(in));
+                int gid = IdTable.GROUPS.id(readString(in));
+                if (node != null) {
+                    fs.applyPermissionsRecursive(node, FileSystemNode.parseMode(permissions), uid, gid);
+                    fs.replayed(AuditLog.CHMOD_RECURSIVE, path, node.getMode());
+                }
+            }
+            case COPY -> {
+                FileSystemNode source = fs.getNodeByPath(readString(in));
+                String destination = readString(in);
+                String owner = readString(in);
+                String group = readString(in);
+                if (source != null && fs.getNodeByPath(destination) == null) {
+                    fs.copyNode(source, destination, owner, group, false);
+                }
+            }
+            case SET_CONTENT -> {
+                String path = readString(in);
+                FileSystemNode node = fs.getNodeByPath(path);
+                String content = readString(in);
+                if (node != null) {
+                    withStripe(fs, node, () -> {
+                        node.setContent(content);
+                        fs.getIndex().update(node);
+                    });
+                    fs.replayed(AuditLog.SET_CONTENT, path, -1);
+                }
+            }
+            case SET_EDITING -> {
+            }
+            case WRITE -> {
+                String path = readString(in);
+                FileSystemNode node = fs.getNodeByPath(path);
+                long offset = in.readLong();
+                byte[] bytes = readBytes(in);
+                if (node != null && !node.isDirectory()) {
+                    withStripe(fs, node, () -> {
+                        node.write(offset, bytes, 0, bytes.length);
+                        fs.getIndex().written(node, offset, bytes.length);
+                    });
+                    fs.replayed(AuditLog.WRITE, path, -1);
+                }
+            }
+            case APPEND -> {
+                String path = readString(in);
+                FileSystemNode node = fs.getNodeByPath(path);
+                byte[] bytes = readBytes(in);
+                if (node != null && !node.isDirectory()) {
+                    withStripe(fs, node, () -> {
+                        long oldLength = node.getData().length();
+                        node.append(bytes, 0, bytes.length);
+                        fs.getIndex().appended(node, oldLength);
+                    });
+                    fs.replayed(AuditLog.APPEND, path, -1);
+                }
+            }
+            case TRUNCATE -> {
+                String path = readString(in);
+                FileSystemNode node = fs.getNodeByPath(path);
+                long size = in.readLong();
+                if (node != null && !node.isDirectory()) {
+                    withStripe(fs, node, () -> {
+                        long oldLength = node.getData().length();
+                        node.truncate(size);
+                        fs.getIndex().truncated(node, oldLength);
+                    });
+                    fs.replayed(AuditLog.TRUNCATE, path, -1);
+                }
+            }
+            case ADD_USER -> {
+                String username = readString(in);
+                String password = readString(in);
+                String group = readString(in);
+                if (!fs.getUsers().containsKey(username)) {
+                    fs.addUser(username, password, group);
+                }
+            }
+            case CHANGE_PASSWORD -> {
+                User user = fs.getUsers().get(readString(in));
+                String newPassword = readString(in);
+                if (user != null) {
+                    user.setPassword(newPassword);
+                }
+            }
+            case SET_QUOTA -> {
+                User user = fs.getUsers().get(readString(in));
+                long byteQuota = in.readLong();
+                long inodeQuota = in.readLong();
+                if (user != null) {
+                    user.setByteQuota(byteQuota);
+                    user.setInodeQuota(inodeQuota);
+                }
+            }
+            default -> throw new IOException("Unknown journal operation: " + op);
+        }
+    }
+
+    private void begin(byte op) {
+        record.reset();
+        writeByte(op);
+    }
+
+    private void end() {
+        byte[] payload = record.toByteArray();
+        crc.reset();
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(batch);
+        try {
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        batchRecords++;
+        unsynced++;
+    }
+
+    private void writeByte(byte value) {
+        try {
+            recordOut.writeByte(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeBoolean(boolean value) {
+        try {
+            recordOut.writeBoolean(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeLong(long value) {
+        try {
+            recordOut.writeLong(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeString(String value) {
+        writeBytes((value == null ? "" : value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] bytes) {
+        try {
+            recordOut.writeInt(bytes.length);
+            recordOut.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+}
@@ -0,0 +1,86 @@
+package net.fangyi;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存中的编辑租约，带超时，会话断开时释放。
+ */
+public class LeaseManager {
+    static final long DEFAULT_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    public static class Lease {
+        private final FileSystemNode node;
+        private final String owner;
+        private volatile long expiresAt;
+
+        Lease(FileSystemNode node, String owner, long expiresAt) {
+            this.node = node;
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+
+        public FileSystemNode getNode() {
+            return node;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<FileSystemNode, Lease> leases = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+
+    LeaseManager() {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    LeaseManager(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 获取租约；节点已被其他人持有且未过期时返回 null。
+     */
+    Lease acquire(FileSystemNode node, String owner) {
+        long now = System.currentTimeMillis();
+        Lease lease = new Lease(node, owner, now + timeoutMillis);
+        Lease existing = leases.putIfAbsent(node, lease);
+        while (existing != null) {
+            if (!existing.isExpired(now)) return null;
+            if (leases.replace(node, existing, lease)) return lease;
+            existing = leases.putIfAbsent(node, lease);
+        }
+        return lease;
+    }
+
+    /**
+     * 延长租约；租约已过期并被他人接管时返回 false。
+     */
+    boolean renew(Lease lease) {
+        if (leases.get(lease.node) != lease) return false;
+        lease.expiresAt = System.currentTimeMillis() + timeoutMillis;
+        return true;
+    }
+
+    void release(Lease lease) {
+        leases.remove(lease.node, lease);
+    }
+
+    /**
+     * 返回节点上仍然有效的租约，没有则返回 null。
+     */
+    Lease holder(FileSystemNode node) {
+        Lease lease = leases.get(node);
+        if (lease == null) return null;
+        if (lease.isExpired(System.currentTimeMillis())) {
+            leases.remove(node, lease);
+            return null;
+        }
+        return lease;
+    }
+}
@@ -1,9 +1,62 @@
 package net.fangyi;
 
+import java.io.IOException;
 
 public class Main {
     public static void main(String[] args) {
+        int status;
+        try {
+            status = run(args);
+        } finally {
+            BlockStore.SHARED.close();
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * 按参数运行，返回进程的退出码。
+     */
+    private static int run(String[] args) {
+        if (args.length == 3 && args[0].equals("--convert")) {
+            try {
+                SnapshotFile.convert(args[1], args[2]);
+                System.out.println("Converted " + args[1] + " to " + args[2]);
+            } catch (IOException e) {
+                System.err.println("Error converting " + args[1] + ": " + e.getMessage());
+            }
+            return 0;
+        }
+        if (args.length == 2 && args[0].equals("--server")) {
+            FileSystem fs = new FileSystem();
+            fs.open();
+            try {
+                new ShellServer(fs, Integer.parseInt(args[1])).serve();
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Error starting server: " + e.getMessage());
+            }
+            return 0;
+        }
+        if (args.length >= 2 && args[0].equals("--script")) {
+            int batchSize = SimpleShell.DEFAULT_BATCH_SIZE;
+            try {
+                if (args.length == 4 && args[2].equals("--batch")) {
+                    batchSize = Integer.parseInt(args[3]);
+                } else if (args.length != 2) {
+                    batchSize = -1;
+                }
+            } catch (NumberFormatException e) {
+                batchSize = -1;
+            }
+            if (batchSize <= 0) {
+                System.err.println("Usage: --script <file> [--batch <size>]");
+                return 2;
+            }
+            return new SimpleShell().runScript(args[1], batchSize) ? 0 : 1;
+        }
         SimpleShell shell = new SimpleShell();
         shell.run();
+        return 0;
     }
 }
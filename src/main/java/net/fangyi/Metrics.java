@@ -0,0 +1,239 @@
+package net.fangyi;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * 每条 shell 命令的次数和延迟，以及快照、检查点和文件内容缓存的统计。没有登记的命令名计入 {@link #OTHER}。
+ */
+public class Metrics implements MetricsMXBean {
+    static final String OBJECT_NAME = "net.fangyi:type=FileSystem,name=Metrics";
+    static final String OTHER = "other";
+
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final LatencyHistogram other = new LatencyHistogram();
+    final LatencyHistogram save = new LatencyHistogram();
+    final LatencyHistogram load = new LatencyHistogram();
+    final LatencyHistogram checkpoint = new LatencyHistogram();
+    final LatencyHistogram homeLoad = new LatencyHistogram();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder nodesWritten = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder nodesRead = new LongAdder();
+    final LongAdder partitionsWritten = new LongAdder();
+    final LongAdder partitionsReused = new LongAdder();
+    private volatile IntSupplier sessions = () -> 0;
+
+    void registerCommands(Collection<String> names) {
+        for (String name : names) {
+            commands.putIfAbsent(name, new LatencyHistogram());
+        }
+    }
+
+    LatencyHistogram command(String name) {
+        LatencyHistogram histogram = commands.get(name);
+        return histogram != null ? histogram : other;
+    }
+
+    void setSessions(IntSupplier sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * 在平台 MBeanServer 上注册；同一进程中已经有文件系统注册过时保留原来的。
+     */
+    void registerMBean(PrintStream err) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // 已经注册过
+        } catch (JMException e) {
+            err.println("Error registering metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 输出 stats 命令的表格：每条执行过的命令一行，时间单位是微秒，最后是持久化的统计。
+     */
+    void print(PrintStream out) {
+        out.println(String.format("%-12s %10s %10s %10s %10s %10s %10s",
+                "command", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commands).entrySet()) {
+            printRow(out, entry.getKey(), entry.getValue());
+        }
+        printRow(out, OTHER, other);
+        printRow(out, "(save)", save);
+        printRow(out, "(load)", load);
+        printRow(out, "(checkpoint)", checkpoint);
+        printRow(out, "(load home)", homeLoad);
+        out.println("written: " + bytesWritten.sum() + " bytes, " + nodesWritten.sum() + " nodes, "
+                + partitionsWritten.sum() + " partitions (" + partitionsReused.sum() + " reused); read: "
+                + bytesRead.sum() + " bytes, " + nodesRead.sum() + " nodes; sessions: " + sessions.getAsInt());
+        BlockStore store = BlockStore.SHARED;
+        out.println("content: " + store.storedBytes() + " bytes in " + store.blockCount() + " blocks; cached: "
+                + store.residentBytes() + "/" + store.getCacheBytes() + " bytes, " + store.faults() + " faults; spilled: "
+                + store.spilledBytes() + " bytes, segments " + store.segmentBytes() + " bytes"
+                + (store.spillError() != null ? " (spilling stopped: " + store.spillError().getMessage() + ")" : ""));
+    }
+
+    private static void printRow(PrintStream out, String name, LatencyHistogram histogram) {
+        if (histogram.count() == 0) return;
+        out.println(String.format("%-12s %10d %10d %10d %10d %10d %10d", name, histogram.count(),
+                histogram.meanNanos() / 1000, histogram.percentile(50) / 1000, histogram.percentile(99) / 1000,
+                histogram.percentile(99.9) / 1000, histogram.maxNanos() / 1000));
+    }
+
+    private Map<String, Long> perCommand(ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : commands.entrySet()) {
+            if (entry.getValue().count() > 0) {
+                result.put(entry.getKey(), value.applyAsLong(entry.getValue()));
+            }
+        }
+        if (other.count() > 0) {
+            result.put(OTHER, value.applyAsLong(other));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return perCommand(LatencyHistogram::count);
+    }
+
+    @Override
+    public Map<String, Long> getCommandMeanMicros() {
+        return perCommand(h -> h.meanNanos() / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getCommandP99Micros() {
+        return perCommand(h -> h.percentile(99) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getCommandMaxMicros() {
+        return perCommand(h -> h.maxNanos() / 1000);
+    }
+
+    @Override
+    public long getSaveCount() {
+        return save.count();
+    }
+
+    @Override
+    public long getSaveP99Micros() {
+        return save.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getLoadCount() {
+        return load.count();
+    }
+
+    @Override
+    public long getLoadP99Micros() {
+        return load.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getCheckpointCount() {
+        return checkpoint.count();
+    }
+
+    @Override
+    public long getCheckpointP99Micros() {
+        return checkpoint.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getHomeLoadCount() {
+        return homeLoad.count();
+    }
+
+    @Override
+    public long getHomeLoadP99Micros() {
+        return homeLoad.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getPartitionsWritten() {
+        return partitionsWritten.sum();
+    }
+
+    @Override
+    public long getPartitionsReused() {
+        return partitionsReused.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getNodesWritten() {
+        return nodesWritten.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getNodesRead() {
+        return nodesRead.sum();
+    }
+
+    @Override
+    public int getSessionCount() {
+        return sessions.getAsInt();
+    }
+
+    @Override
+    public long getCacheResidentBytes() {
+        return BlockStore.SHARED.residentBytes();
+    }
+
+    @Override
+    public long getCacheFaults() {
+        return BlockStore.SHARED.faults();
+    }
+
+    @Override
+    public long getSpilledBytes() {
+        return BlockStore.SHARED.spilledBytes();
+    }
+
+    @Override
+    public long getSegmentBytes() {
+        return BlockStore.SHARED.segmentBytes();
+    }
+
+    @Override
+    public void reset() {
+        commands.values().forEach(LatencyHistogram::reset);
+        other.reset();
+        save.reset();
+        load.reset();
+        checkpoint.reset();
+        homeLoad.reset();
+        bytesWritten.reset();
+        nodesWritten.reset();
+        bytesRead.reset();
+        nodesRead.reset();
+        partitionsWritten.reset();
+        partitionsReused.reset();
+    }
+}
@@ -0,0 +1,56 @@
+package net.fangyi;
+
+import java.util.Map;
+
+/**
+ * 通过 JMX 暴露的运行指标，ObjectName 为 {@value Metrics#OBJECT_NAME}。时间单位都是微秒。
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getCommandMeanMicros();
+
+    Map<String, Long> getCommandP99Micros();
+
+    Map<String, Long> getCommandMaxMicros();
+
+    long getSaveCount();
+
+    long getSaveP99Micros();
+
+    long getLoadCount();
+
+    long getLoadP99Micros();
+
+    long getCheckpointCount();
+
+    long getCheckpointP99Micros();
+
+    long getHomeLoadCount();
+
+    long getHomeLoadP99Micros();
+
+    long getPartitionsWritten();
+
+    long getPartitionsReused();
+
+    long getBytesWritten();
+
+    long getNodesWritten();
+
+    long getBytesRead();
+
+    long getNodesRead();
+
+    int getSessionCount();
+
+    long getCacheResidentBytes();
+
+    long getCacheFaults();
+
+    long getSpilledBytes();
+
+    long getSegmentBytes();
+
+    void reset();
+}
@@ -0,0 +1,230 @@
+package net.fangyi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 全局文件名索引：按名字排序的跳表，值是同名的所有节点。由 create、remove、复制和加载维护。
+ */
+public class NameIndex {
+    static final int SET_THRESHOLD = 8;
+
+    private final ConcurrentSkipListMap<String, Object> byName = new ConcurrentSkipListMap<>();
+
+    @SuppressWarnings("unchecked")
+    void add(FileSystemNode node) {
+        if (byName.get(node.getName()) instanceof Set<?> set) {
+            ((Set<FileSystemNode>) set).add(node);
+            // 集合可能刚被 remove 摘下，这时改走 compute 加到当前的映射里
+            if (byName.get(node.getName()) == set) return;
+        }
+        // 重映射函数可能被重试，集合的 add 是幂等的
+        byName.compute(node.getName(), (name, nodes) -> {
+            if (nodes == null) return node;
+            if (nodes instanceof FileSystemNode single) {
+                return single == node ? single : new FileSystemNode[]{single, node};
+            }
+            if (nodes instanceof Set<?> set) {
+                ((Set<FileSystemNode>) set).add(node);
+                return set;
+            }
+            FileSystemNode[] array = (FileSystemNode[]) nodes;
+            for (FileSystemNode n : array) {
+                if (n == node) return array;
+            }
+            if (array.length >= SET_THRESHOLD) {
+                Set<FileSystemNode> set = ConcurrentHashMap.newKeySet();
+                set.addAll(Arrays.asList(array));
+                set.add(node);
+                return set;
+            }
+            FileSystemNode[] grown = Arrays.copyOf(array, array.length + 1);
+            grown[array.length] = node;
+            return grown;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    void remove(FileSystemNode node) {
+        if (byName.get(node.getName()) instanceof Set<?> set) {
+            set.remove(node);
+            // 只摘下仍然映射着的这个集合；摘下后才加进来的节点重新登记，不会丢
+            if (set.isEmpty() && byName.remove(node.getName(), set)) {
+                for (FileSystemNode late : (Set<FileSystemNode>) set) {
+                    add(late);
+                }
+            }
+            return;
+        }
+        byName.computeIfPresent(node.getName(), (name, nodes) -> {
+            if (nodes instanceof FileSystemNode single) {
+                return single == node ? null : single;
+            }
+            if (nodes instanceof Set<?> set) {
+                set.remove(node);
+                return set.isEmpty() ? null : set;
+            }
+            FileSystemNode[] array = (FileSystemNode[]) nodes;
+            FileSystemNode[] shrunk = new FileSystemNode[array.length];
+            int n = 0;
+            for (FileSystemNode other : array) {
+                if (other != node) shrunk[n++] = other;
+            }
+            return n == 1 ? shrunk[0] : Arrays.copyOf(shrunk, n);
+        });
+    }
+
+    void clear() {
+        byName.clear();
+    }
+
+    /**
+     * 索引中不同名字的个数。
+     */
+    int size() {
+        return byName.size();
+    }
+
+    /**
+     * 查找 {@code directory} 子树中名字匹配 {@code glob} 且 {@code visible} 接受的节点，按名字排序。
+     */
+    List<FileSystemNode> find(String glob, FileSystemNode directory, Predicate<FileSystemNode> visible) {
+        List<FileSystemNode> found = new ArrayList<>();
+        String prefix = literalPrefix(glob);
+        NavigableMap<String, Object> range = prefix.isEmpty() ? byName : byName.tailMap(prefix, true);
+        for (Map.Entry<String, Object> entry : range.entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(prefix)) break;
+            if (!matches(glob, name)) continue;
+            forEach(entry.getValue(), node -> collect(node, directory, visible, found));
+        }
+        return found;
+    }
+
+    /**
+     * 返回 {@code directory} 中名字以 {@code prefix} 开头的子节点，按名字排序。
+     */
+    List<FileSystemNode> complete(FileSystemNode directory, String prefix) {
+        List<FileSystemNode> found = new ArrayList<>();
+        int budget = 4 * directory.getChildCount() + 64;
+        for (Map.Entry<String, Object> entry : byName.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) return found;
+            budget -= forEach(entry.getValue(), node -> {
+                if (node.getParent() == directory) found.add(node);
+            });
+            if (budget < 0) break;
+        }
+        if (budget >= 0) return found;
+        found.clear();
+        for (FileSystemNode child : directory.getChildren()) {
+            if (child.getName().startsWith(prefix)) found.add(child);
+        }
+        found.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return found;
+    }
+
+    /**
+     * 对一个名字下的所有节点调用 {@code action}，返回节点数。
+     */
+    @SuppressWarnings("unchecked")
+    private static int forEach(Object nodes, Consumer<FileSystemNode> action) {
+        if (nodes instanceof FileSystemNode single) {
+            action.accept(single);
+            return 1;
+        }
+        if (nodes instanceof Set<?> set) {
+            ((Set<FileSystemNode>) set).forEach(action);
+            return set.size();
+        }
+        FileSystemNode[] array = (FileSystemNode[]) nodes;
+        for (FileSystemNode node : array) {
+            action.accept(node);
+        }
+        return array.length;
+    }
+
+    private static void collect(FileSystemNode node, FileSystemNode directory, Predicate<FileSystemNode> visible,
+                                List<FileSystemNode> found) {
+        for (FileSystemNode parent = node.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent == directory) {
+                if (visible.test(node)) found.add(node);
+                return;
+            }
+        }
+    }
+
+    private static String literalPrefix(String glob) {
+        int i = 0;
+        while (i < glob.length() && "*?[".indexOf(glob.charAt(i)) < 0) i++;
+        return glob.substring(0, i);
+    }
+
+    /**
+     * shell 通配符匹配，支持 *、? 和 [abc] / [a-z] / [!a]。
+     */
+    static boolean matches(String glob, String name) {
+        int g = 0;
+        int n = 0;
+        int starG = -1;
+        int starN = -1;
+        while (n < name.length()) {
+            if (g < glob.length()) {
+                char c = glob.charAt(g);
+                if (c == '*') {
+                    starG = g++;
+                    starN = n;
+                    continue;
+                }
+                int next = matchOne(glob, g, name.charAt(n));
+                if (next >= 0) {
+                    g = next;
+                    n++;
+                    continue;
+                }
+            }
+            if (starG < 0) return false;
+            g = starG + 1;
+            n = ++starN;
+        }
+        while (g < glob.length() && glob.charAt(g) == '*') g++;
+        return g == glob.length();
+    }
+
+    /**
+     * 用 {@code glob} 在 {@code g} 处的单个元素匹配字符 {@code c}，成功时返回下一个元素的位置，否则返回 -1。
+     */
+    private static int matchOne(String glob, int g, char c) {
+        char p = glob.charAt(g);
+        if (p == '?') return g + 1;
+        if (p != '[') return p == c ? g + 1 : -1;
+        int i = g + 1;
+        boolean negate = i < glob.length() && (glob.charAt(i) == '!' || glob.charAt(i) == '^');
+        if (negate) i++;
+        boolean matched = false;
+        boolean first = true;
+        while (i < glob.length() && (first || glob.charAt(i) != ']')) {
+            first = false;
+            char lo = glob.charAt(i);
+            char hi = lo;
+            if (i + 2 < glob.length() && glob.charAt(i + 1) == '-' && glob.charAt(i + 2) != ']') {
+                hi = glob.charAt(i + 2);
+                i += 2;
+            }
+            if (lo <= c && c <= hi) matched = true;
+            i++;
+        }
+        if (i >= glob.length()) {
+            // 没有闭合的 '[' 按普通字符处理
+            return c == '[' ? g + 1 : -1;
+        }
+        return matched != negate ? i + 1 : -1;
+    }
+}
@@ -0,0 +1,130 @@
+package net.fangyi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * 在 {@link ForkJoinPool} 上并行遍历子树，并行度由 {@code fs.parallelism} 指定，默认等于处理器数。
+ */
+public class ParallelTree {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("fs.parallelism", Runtime.getRuntime().availableProcessors());
+    static final int BATCH = 256;
+
+    private final ForkJoinPool pool;
+
+    ParallelTree() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    ParallelTree(int parallelism) {
+        pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * 以先序访问 {@code root} 及其子孙，{@code visitor} 返回 true 时才进入目录。{@code visitor} 必须是线程安全的。
+     */
+    void forEach(FileSystemNode root, Predicate<FileSystemNode> visitor) {
+        pool.invoke(new Visit(List.of(root), 0, 1, visitor));
+    }
+
+    private static class Visit extends RecursiveAction {
+        private final List<FileSystemNode> nodes;
+        private final int from;
+        private final int to;
+        private final Predicate<FileSystemNode> visitor;
+
+        Visit(List<FileSystemNode> nodes, int from, int to, Predicate<FileSystemNode> visitor) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Visit(nodes, from, mid, visitor), new Visit(nodes, mid, to, visitor));
+                return;
+            }
+            List<Visit> subtasks = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                FileSystemNode node = nodes.get(i);
+                if (visitor.test(node) && node.isDirectory()) {
+                    List<FileSystemNode> children = node.getChildren();
+                    if (!children.isEmpty()) {
+                        subtasks.add(new Visit(children, 0, children.size(), visitor));
+                    }
+                }
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * 把 {@code source} 子树复制到 {@code parent} 下，返回尚未挂上的新子树的根；有节点不可读时返回 null。
+     */
+    FileSystemNode copy(FileSystemNode source, FileSystemNode parent, String name, int uid, int gid,
+                        Predicate<FileSystemNode> readable) {
+        AtomicBoolean denied = new AtomicBoolean();
+        FileSystemNode copy = pool.invoke(new Copy(source, parent, name, uid, gid, readable, denied));
+        return denied.get() ? null : copy;
+    }
+
+    private static class Copy extends RecursiveTask<FileSystemNode> {
+        private final FileSystemNode source;
+        private final FileSystemNode parent;
+        private final String name;
+        private final int uid;
+        private final int gid;
+        private final Predicate<FileSystemNode> readable;
+        private final AtomicBoolean denied;
+
+        Copy(FileSystemNode source, FileSystemNode parent, String name, int uid, int gid,
+             Predicate<FileSystemNode> readable, AtomicBoolean denied) {
+            this.source = source;
+            this.parent = parent;
+            this.name = name;
+            this.uid = uid;
+            this.gid = gid;
+            this.readable = readable;
+            this.denied = denied;
+        }
+
+        @Override
+        protected FileSystemNode compute() {
+            if (denied.get() || !readable.test(source)) {
+                denied.set(true);
+                return null;
+            }
+            FileSystemNode copy = new FileSystemNode(name, source.isDirectory(), uid, gid, source.getMode(), parent);
+            if (!source.isDirectory()) {
+                for (BlockStore.Block block : source.blocks()) {
+                    copy.appendBlock(block);
+                }
+                return copy;
+            }
+            // 新目录还没有发布，只有本任务在向它添加子节点
+            List<Copy> subtasks = new ArrayList<>();
+            for (FileSystemNode child : source.getChildren()) {
+                subtasks.add(new Copy(child, copy, child.getName(), uid, gid, readable, denied));
+            }
+            for (Copy task : invokeAll(subtasks)) {
+                FileSystemNode child = task.join();
+                if (child != null) {
+                    copy.addChild(child);
+                }
+            }
+            return copy;
+        }
+    }
+}
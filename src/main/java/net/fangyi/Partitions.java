@@ -0,0 +1,512 @@
+package net.fangyi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按家目录分区的持久化：状态文件是清单，列出基础段和每个家目录段，保存时只重写脏的分区。
+ * 加载时只读入基础段，家目录在第一次访问时或由后台线程加载。
+ */
+public class Partitions {
+    static final int PARALLELISM = Integer.getInteger("fs.loadParallelism", Runtime.getRuntime().availableProcessors());
+    static final boolean PRELOAD = Boolean.parseBoolean(System.getProperty("fs.preload", "true"));
+    /**
+     * 清单中基础段的名字，以及标记脏分区时的基础段。
+     */
+    static final String BASE = "/";
+    /**
+     * 标记所有分区都脏（恢复快照）。
+     */
+    static final String ALL = "";
+
+    private static final ExecutorService LOADER = pool("partition-load");
+    private static final ExecutorService WRITER = pool("partition-write");
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final String SUFFIX = ".dat";
+
+    /**
+     * 一次保存写出的内容：新清单中各分区的段文件名，以及这次新写的文件，清单没有生效时删除它们。
+     */
+    record Saved(Map<String, String> files, List<Path> created, int nodes, long bytes) {
+    }
+
+    /**
+     * 读出的清单：代数、段文件所在目录和各分区的段文件名。
+     */
+    record Manifest(long generation, Path directory, Map<String, String> files) {
+        String baseFile() {
+            return directory.resolve(files.get(BASE)).toString();
+        }
+    }
+
+    /**
+     * 一个家目录的加载动作，只运行一次，其他线程等它完成。
+     */
+    private final class Load implements Runnable {
+        private final String name;
+        private final FileSystemNode home;
+        private final Path file;
+        private final PrintStream err;
+        private final AtomicReference<Thread> loader = new AtomicReference<>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean done;
+
+        Load(String name, FileSystemNode home, Path file, PrintStream err) {
+            this.name = name;
+            this.home = home;
+            this.file = file;
+            this.err = err;
+        }
+
+        @Override
+        public void run() {
+            if (done) return;
+            Thread current = Thread.currentThread();
+            if (!loader.compareAndSet(null, current)) {
+                // 加载过程中本线程再次访问这个目录时不等自己
+                if (loader.get() != current) await();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                metrics.bytesRead.add(Files.size(file));
+                SnapshotFile.readSegment(home, file.toString(), index, node -> {
+                    node.markLoaded();
+                    names.add(node);
+                    metrics.nodesRead.increment();
+                });
+            } catch (IOException e) {
+                // 不再重写这个分区，以免用不完整的内容覆盖段文件
+                failed.add(name);
+                err.println("Error opening file for reading: " + file + " (" + e.getMessage() + ")");
+            } finally {
+                metrics.homeLoad.record(System.nanoTime() - start);
+                finish();
+            }
+        }
+
+        /**
+         * 还没开始时取消，正在加载时等它完成。
+         */
+        void cancel() {
+            if (loader.compareAndSet(null, Thread.currentThread())) {
+                finish();
+            } else {
+                await();
+            }
+        }
+
+        private void finish() {
+            home.setPendingLoad(null);
+            done = true;
+            finished.countDown();
+        }
+
+        private void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private final TrigramIndex index;
+    private final NameIndex names;
+    private final Metrics metrics;
+    private Path directory = Path.of(FileSystem.PARTITION_DIR);
+    /**
+     * 当前清单：分区名（基础段为 {@link #BASE}）到段文件名；为空表示还没有清单，下次保存写出全部分区。
+     */
+    private volatile Map<String, String> published = Map.of();
+    /**
+     * 本进程写出 {@link #published} 之前生效的清单，下次保存后它独有的段文件成为垃圾；为 null 时下次保存扫描整个目录。
+     */
+    private Map<String, String> retired;
+    /**
+     * 脏分区及标记时的纪元。保存时取下当时的标记并推进纪元，清单生效后只移除之后没有再被标记的分区。
+     */
+    private final Map<String, Long> dirty = new ConcurrentHashMap<>();
+    private volatile long epoch;
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private volatile List<Load> loads = List.of();
+    private volatile boolean preload = PRELOAD;
+
+    Partitions(TrigramIndex index, NameIndex names, Metrics metrics) {
+        this.index = index;
+        this.names = names;
+        this.metrics = metrics;
+    }
+
+    private static ExecutorService pool(String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * 审计日志的操作修改了哪些分区。
+     */
+    void touch(String op, String path, String target) {
+        switch (op) {
+            case AuditLog.RESTORE -> mark(ALL);
+            case AuditLog.COPY -> touch(target, true);
+            case AuditLog.REMOVE, AuditLog.IMPORT, AuditLog.CHMOD_RECURSIVE -> touch(path, true);
+            case AuditLog.EXPORT, AuditLog.ROLLBACK -> {
+            }
+            default -> touch(path, false);
+        }
+    }
+
+    private void touch(String path, boolean subtree) {
+        if (path == null) return;
+        if (path.equals("/")) {
+            mark(subtree ? ALL : BASE);
+            return;
+        }
+        int slash = path.indexOf('/', 1);
+        if (slash > 0) {
+            mark(path.substring(1, slash));
+            return;
+        }
+        mark(BASE);
+        if (subtree) {
+            mark(path.substring(1));
+        }
+    }
+
+    private void mark(String name) {
+        long current = epoch;
+        Long marked = dirty.get(name);
+        if (marked == null || marked != current) {
+            dirty.put(name, current);
+        }
+    }
+
+    /**
+     * 取下当前的脏标记。调用方持有全局写锁，期间没有修改。
+     */
+    Map<String, Long> capture() {
+        Map<String, Long> marks = Map.copyOf(dirty);
+        epoch++;
+        return marks;
+    }
+
+    /**
+     * 按 {@code view} 写出脏分区并把清单写到 {@code manifest}，之后还需要调用 {@link #published}。
+     */
+    Saved write(FileSystemNode root, TreeSnapshot view, Collection<User> users, long generation, String manifest,
+                Map<String, Long> marks, boolean all) throws IOException {
+        Set<String> homes = new HashSet<>();
+        for (User user : users) {
+            String home = user.getHomeDirectory();
+            if (home.length() > 1 && home.indexOf('/', 1) < 0) {
+                homes.add(home.substring(1));
+            }
+        }
+        Map<String, FileSystemNode> partitions = new TreeMap<>();
+        for (FileSystemNode child : view.state(root).children()) {
+            if (child.isDirectory() && homes.contains(child.getName())) {
+                partitions.put(child.getName(), child);
+            }
+        }
+        Map<String, String> previous = published;
+        boolean everything = all || previous.isEmpty() || marks.containsKey(ALL);
+        boolean base = everything || marks.containsKey(BASE) || !previous.containsKey(BASE)
+                || previous.size() != partitions.size() + 1 || !previous.keySet().containsAll(partitions.keySet());
+        for (String name : marks.keySet()) {
+            // 不是家目录的顶层目录在基础段中
+            if (!partitions.containsKey(name)) base = true;
+        }
+
+        Path segments = Path.of(manifest).toAbsolutePath().resolveSibling(FileSystem.PARTITION_DIR);
+        Files.createDirectories(segments);
+        String prefix = generation + "-" + ProcessHandle.current().pid() + "-";
+        Map<String, String> files = new TreeMap<>();
+        Map<Path, FileSystemNode> writes = new TreeMap<>();
+        if (base) {
+            String file = prefix + SEQUENCE.incrementAndGet() + "-base" + SUFFIX;
+            files.put(BASE, file);
+            writes.put(segments.resolve(file), root);
+        } else {
+            files.put(BASE, previous.get(BASE));
+        }
+        for (Map.Entry<String, FileSystemNode> partition : partitions.entrySet()) {
+            String name = partition.getKey();
+            boolean reuse = previous.containsKey(name) && (failed.contains(name) || !everything && !marks.containsKey(name));
+            if (reuse) {
+                files.put(name, previous.get(name));
+                continue;
+            }
+            String file = prefix + SEQUENCE.incrementAndGet() + "-home-" + URLEncoder.encode(name, StandardCharsets.UTF_8) + SUFFIX;
+            files.put(name, file);
+            writes.put(segments.resolve(file), partition.getValue());
+        }
+
+        List<Path> created = new ArrayList<>(writes.keySet());
+        int nodes = 0;
+        long bytes = 0;
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (Map.Entry<Path, FileSystemNode> write : writes.entrySet()) {
+                FileSystemNode top = write.getValue();
+                String file = write.getKey().toString();
+                if (top == root) {
+                    results.add(WRITER.submit(() -> SnapshotFile.write(root, view, generation, file, index,
+                            node -> partitions.get(node.getName()) == node)));
+                } else {
+                    results.add(WRITER.submit(() -> SnapshotFile.write(top, view, generation, file, index)));
+                }
+            }
+            for (Future<Integer> result : results) {
+                nodes += result.get();
+            }
+            for (Path file : created) {
+                bytes += Files.size(file);
+            }
+            writeManifest(manifest, generation, files);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(created);
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            abandon(created);
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        } catch (IOException e) {
+            abandon(created);
+            throw e;
+        }
+        metrics.partitionsWritten.add(writes.size());
+        metrics.partitionsReused.add(files.size() - writes.size());
+        return new Saved(files, created, nodes, bytes + Files.size(Path.of(manifest)));
+    }
+
+    /**
+     * {@code saved} 的清单已经生效：记下它，移除写出时取下、之后没有再被标记的脏标记，删除不再需要的段文件。
+     */
+    void published(Saved saved, Map<String, Long> marks, long generation, String manifest) {
+        Map<String, String> previous = published;
+        published = saved.files();
+        marks.forEach(dirty::remove);
+        directory = Path.of(manifest).toAbsolutePath().resolveSibling(FileSystem.PARTITION_DIR);
+        Set<String> keep = new HashSet<>(saved.files().values());
+        keep.addAll(previous.values());
+        if (retired != null) {
+            for (String file : retired.values()) {
+                if (!keep.contains(file)) abandon(List.of(directory.resolve(file)));
+            }
+        } else {
+            sweep(keep, generation);
+        }
+        retired = previous;
+    }
+
+    /**
+     * 删除目录中不在 {@code keep} 中、由本进程写出或代数更旧的段文件，包括崩溃的进程留下的。
+     */
+    private void sweep(Set<String> keep, long generation) {
+        String own = "-" + ProcessHandle.current().pid() + "-";
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path segment : segments) {
+                String file = segment.getFileName().toString();
+                if (keep.contains(file)) continue;
+                int dash = file.indexOf('-');
+                if (dash <= 0) continue;
+                try {
+                    // 其他进程正在写的更新的段文件不删除，它的清单写不出来时自己会删
+                    if (Long.parseLong(file.substring(0, dash)) < generation || file.startsWith(own, dash)) {
+                        Files.deleteIfExists(segment);
+                    }
+                } catch (NumberFormatException e) {
+                    // 不是段文件
+                }
+            }
+        } catch (IOException e) {
+            // 下次保存时再清理
+        }
+    }
+
+    /**
+     * 清单没有生效，删除这次新写的段文件。
+     */
+    void abandon(Saved saved) {
+        abandon(saved.created());
+    }
+
+    private static void abandon(List<Path> created) {
+        for (Path file : created) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // 下次保存时再清理
+            }
+        }
+    }
+
+    private static void writeManifest(String manifest, long generation, Map<String, String> files) throws IOException {
+        Path target = Path.of(manifest);
+        Path temp = Path.of(manifest + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(SnapshotFile.MAGIC);
+            out.writeShort(SnapshotFile.MANIFEST_VERSION);
+            out.writeLong(generation);
+            out.writeInt(files.size());
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取清单，不改变当前状态；之后由调用方读入 {@link Manifest#baseFile()}，成功后调用 {@link #adopt} 和 {@link #defer}。
+     */
+    Manifest readManifest(String manifest) throws IOException {
+        Map<String, String> files = new TreeMap<>();
+        long generation;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(manifest))))) {
+            if (in.readInt() != SnapshotFile.MAGIC || in.readShort() != SnapshotFile.MANIFEST_VERSION) {
+                throw new IOException("Not a manifest file: " + manifest);
+            }
+            generation = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                files.put(readString(in), readString(in));
+            }
+        }
+        if (!files.containsKey(BASE)) {
+            throw new IOException("Manifest without base segment: " + manifest);
+        }
+        return new Manifest(generation, Path.of(manifest).toAbsolutePath().resolveSibling(FileSystem.PARTITION_DIR), files);
+    }
+
+    /**
+     * 清单中的基础段已经读入，以它为当前发布的版本。
+     */
+    void adopt(Manifest manifest) {
+        directory = manifest.directory();
+        published = manifest.files();
+        retired = null;
+        dirty.clear();
+        failed.clear();
+    }
+
+    /**
+     * 读入的是完整的快照（旧格式），没有清单：下次保存写出全部分区。
+     */
+    void loadedWhole() {
+        published = Map.of();
+        retired = null;
+        dirty.clear();
+        failed.clear();
+    }
+
+    /**
+     * 基础段读入后，为清单中的每个家目录登记加载动作，并交给后台线程并行加载。调用方持有全局写锁。
+     */
+    void defer(FileSystemNode root, PrintStream err) {
+        List<Load> registered = new ArrayList<>();
+        for (Map.Entry<String, String> entry : published.entrySet()) {
+            if (entry.getKey().equals(BASE)) continue;
+            FileSystemNode home = root.getChild(entry.getKey());
+            if (home == null || !home.isDirectory()) continue;
+            Load load = new Load(entry.getKey(), home, directory.resolve(entry.getValue()), err);
+            home.setPendingLoad(load);
+            registered.add(load);
+        }
+        loads = registered;
+        if (preload) {
+            registered.forEach(LOADER::execute);
+        }
+    }
+
+    /**
+     * 取消尚未开始的加载，等待正在进行的完成。重新加载整棵树之前调用，调用方持有全局写锁。
+     */
+    void discard() {
+        for (Load load : loads) {
+            load.cancel();
+        }
+        loads = List.of();
+    }
+
+    /**
+     * 等所有家目录都加载完，还没开始的在当前线程加载。都已加载时只读每个加载动作的一个 volatile 字段。
+     */
+    void awaitAll() {
+        for (Load load : loads) {
+            load.run();
+        }
+    }
+
+    /**
+     * 为 false 时家目录只在第一次访问时加载，不交给后台线程，默认取 {@code fs.preload}。
+     */
+    void setPreload(boolean preload) {
+        this.preload = preload;
+    }
+
+    /**
+     * 尚未加载的家目录数。
+     */
+    int pending() {
+        int pending = 0;
+        for (Load load : loads) {
+            if (!load.done) pending++;
+        }
+        return pending;
+    }
+
+    int size() {
+        return published.size();
+    }
+}
@@ -0,0 +1,81 @@
+package net.fangyi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 规范绝对路径到节点的有界缓存，按路径哈希直接映射槽位，不加锁。删除节点时必须调用 {@link #invalidate(String, boolean)}。
+ */
+public class PathCache {
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private record Entry(String path, FileSystemNode node, long generation) {
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLong version = new AtomicLong();
+    /**
+     * 删除子树时推进，之前写入的项全部失效。
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    PathCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    PathCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        entries = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    FileSystemNode get(String path) {
+        Entry entry = entries.get(slot(path));
+        return entry != null && entry.generation == generation.get() && entry.path.equals(path) ? entry.node : null;
+    }
+
+    /**
+     * 返回当前的失效版本，查找开始前读取，之后传给 {@link #put}。
+     */
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * 写入缓存。如果查找期间发生了失效（版本变化），撤回刚写入的项，避免缓存已被删除的节点。
+     */
+    void put(String path, FileSystemNode node, long expectedVersion) {
+        int slot = slot(path);
+        Entry entry = new Entry(path, node, generation.get());
+        entries.set(slot, entry);
+        if (version.get() != expectedVersion) {
+            entries.compareAndSet(slot, entry, null);
+        }
+    }
+
+    /**
+     * 删除 {@code path} 的缓存项；{@code subtree} 为 true 时推进代数，使所有项失效。
+     */
+    void invalidate(String path, boolean subtree) {
+        version.incrementAndGet();
+        if (subtree) {
+            generation.incrementAndGet();
+            return;
+        }
+        int slot = slot(path);
+        Entry entry = entries.get(slot);
+        if (entry != null && entry.path.equals(path)) {
+            entries.compareAndSet(slot, entry, null);
+        }
+    }
+
+    void clear() {
+        invalidate("/", true);
+    }
+
+    private int slot(String path) {
+        int h = path.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,103 @@
+package net.fangyi;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 基于 mode 位和 uid/gid 的权限判断，“能否进入目录”的结论按纪元缓存。
+ */
+public class PermissionChecker {
+    static final int READ = 4;
+    static final int WRITE = 2;
+    static final int EXECUTE = 1;
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    private record Decision(FileSystemNode directory, long subject, long epoch, boolean allowed) {
+    }
+
+    private final AtomicReferenceArray<Decision> decisions;
+    private final int mask;
+
+    PermissionChecker() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    PermissionChecker(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        decisions = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * 目录的 mode 改变时调用，使所有缓存的判断失效。
+     */
+    void invalidate() {
+        epoch.incrementAndGet();
+    }
+
+    static int bits(char permissionType) {
+        return permissionType == 'r' ? READ : (permissionType == 'w' ? WRITE : EXECUTE);
+    }
+
+    /**
+     * 只看节点自身的 mode：按属主、属组、其他人选出一组位，要求 {@code bits} 全部具备。
+     */
+    static boolean modeAllows(FileSystemNode node, int uid, int gid, int bits) {
+        if (uid == 0) return true;
+        int shift = node.getUid() == uid ? 6 : (node.getGid() == gid ? 3 : 0);
+        return (node.getMode() >> shift & bits) == bits;
+    }
+
+    /**
+     * 完整检查：能进入 {@code node} 的父目录，并且 {@code node} 自身允许 {@code bits}。
+     */
+    boolean check(FileSystemNode node, int uid, int gid, int bits) {
+        if (uid == 0) return true;
+        FileSystemNode parent = node.getParent();
+        return (parent == null || canEnter(parent, uid, gid)) && modeAllows(node, uid, gid, bits);
+    }
+
+    /**
+     * 用户能否进入目录 {@code directory}：它和它的所有祖先都要有执行权限。
+     */
+    boolean canEnter(FileSystemNode directory, int uid, int gid) {
+        if (uid == 0) return true;
+        long subject = (long) uid << 32 | (gid & 0xFFFFFFFFL);
+        long currentEpoch = epoch.get();
+        Decision cached = decisions.get(slot(directory, subject));
+        if (cached != null && cached.directory == directory && cached.subject == subject && cached.epoch == currentEpoch) {
+            return cached.allowed;
+        }
+
+        // 向上找到第一个有缓存结论的祖先，再逐级向下计算并缓存
+        FileSystemNode[] chain = new FileSystemNode[16];
+        int depth = 0;
+        boolean allowed = true;
+        for (FileSystemNode node = directory; node != null; node = node.getParent()) {
+            Decision decision = decisions.get(slot(node, subject));
+            if (decision != null && decision.directory == node && decision.subject == subject && decision.epoch == currentEpoch) {
+                allowed = decision.allowed;
+                break;
+            }
+            if (depth == chain.length) {
+                chain = Arrays.copyOf(chain, depth * 2);
+            }
+            chain[depth++] = node;
+        }
+        while (depth > 0) {
+            FileSystemNode node = chain[--depth];
+            allowed = allowed && modeAllows(node, uid, gid, EXECUTE);
+            decisions.set(slot(node, subject), new Decision(node, subject, currentEpoch, allowed));
+        }
+        return allowed;
+    }
+
+    private int slot(FileSystemNode node, long subject) {
+        int h = System.identityHashCode(node) * 31 + Long.hashCode(subject);
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
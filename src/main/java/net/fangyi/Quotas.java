@@ -0,0 +1,61 @@
+package net.fangyi;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个用户名下挂在目录树上的文件字节数和节点数，限额保存在 {@link User} 上。
+ */
+public class Quotas {
+    /**
+     * 一个用户的用量。
+     */
+    static final class Account {
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong inodes = new AtomicLong();
+
+        long bytes() {
+            return bytes.get();
+        }
+
+        long inodes() {
+            return inodes.get();
+        }
+    }
+
+    private volatile Account[] accounts = new Account[16];
+
+    Account account(int uid) {
+        Account[] table = accounts;
+        Account account = uid < table.length ? table[uid] : null;
+        return account != null ? account : register(uid);
+    }
+
+    void charge(int uid, long bytes, long inodes) {
+        Account account = account(uid);
+        if (bytes != 0) account.bytes.addAndGet(bytes);
+        if (inodes != 0) account.inodes.addAndGet(inodes);
+    }
+
+    /**
+     * {@code user} 名下再增加 {@code bytes} 字节和 {@code inodes} 个节点后是否仍在限额内。限额为 0 表示不限制。
+     */
+    boolean allows(User user, long bytes, long inodes) {
+        if (user.getByteQuota() <= 0 && user.getInodeQuota() <= 0) return true;
+        Account account = account(IdTable.USERS.id(user.getUsername()));
+        return (bytes <= 0 || user.getByteQuota() <= 0 || account.bytes() + bytes <= user.getByteQuota())
+                && (inodes <= 0 || user.getInodeQuota() <= 0 || account.inodes() + inodes <= user.getInodeQuota());
+    }
+
+    private synchronized Account register(int uid) {
+        Account[] table = accounts;
+        if (uid >= table.length) {
+            table = Arrays.copyOf(table, Math.max(uid + 1, table.length * 2));
+        }
+        if (table[uid] == null) {
+            table[uid] = new Account();
+        }
+        accounts = table;
+        return table[uid];
+    }
+}
@@ -0,0 +1,265 @@
+package net.fangyi;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 从堆中换出的数据块所在的段文件，只追加，文件名带进程号。段不再被引用时删除文件，其余的由 {@link #close()} 删除，
+ * 异常退出留下的文件在下次启动时清理。写入由 {@link BlockStore} 的换出锁串行化。
+ */
+public class SegmentStore {
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final String PREFIX = "content-";
+    private static final String SUFFIX = ".seg";
+
+    /**
+     * 块在段中的位置。
+     */
+    record Location(Segment segment, long offset) {
+    }
+
+    /**
+     * 一个段文件。通道被中断关闭时重新打开，不影响其他读者。
+     */
+    static final class Segment {
+        private final Path path;
+        private final Channel channel;
+        private final AtomicLong live = new AtomicLong();
+        private long size;
+
+        Segment(Path path, Set<Channel> files) throws IOException {
+            this.path = path;
+            this.channel = new Channel(path, files);
+        }
+
+        long size() {
+            return size;
+        }
+
+        long live() {
+            return live.get();
+        }
+    }
+
+    /**
+     * 段文件的通道，与 {@link Segment} 分开，使 Cleaner 的动作不引用段本身。
+     */
+    private static final class Channel implements Runnable {
+        private final Path path;
+        private final Set<Channel> files;
+        private volatile FileChannel channel;
+
+        Channel(Path path, Set<Channel> files) throws IOException {
+            this.path = path;
+            this.files = files;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            files.add(this);
+        }
+
+        /**
+         * 线程被中断时 {@link FileChannel} 会关闭，这里重新打开并清除中断状态，由调用方在完成后恢复。
+         */
+        synchronized void reopen(FileChannel closed) throws IOException {
+            if (channel == closed) {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+        }
+
+        /**
+         * 关闭并删除段文件。Cleaner 和 {@link SegmentStore#close()} 都可能调用，重复调用无害。
+         */
+        @Override
+        public synchronized void run() {
+            files.remove(this);
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // 删不掉的文件在下次启动时由 removeStale 清理
+            }
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final String name;
+    private final List<Segment> sealed = new CopyOnWriteArrayList<>();
+    private final Set<Channel> files = ConcurrentHashMap.newKeySet(); // 还没有删除的段文件
+    private volatile Segment current;
+    private volatile boolean closed;
+    private int next;
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    SegmentStore(Path directory) {
+        this(directory, SEGMENT_SIZE);
+    }
+
+    SegmentStore(Path directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.name = PREFIX + ProcessHandle.current().pid() + "-";
+    }
+
+    /**
+     * 把块的内容依次写到当前段的末尾，返回它们的位置。调用方持有换出锁。
+     */
+    Location[] write(List<byte[]> contents) throws IOException {
+        if (closed) throw new IOException("Segment store is closed");
+        long total = 0;
+        for (byte[] content : contents) {
+            total += content.length;
+        }
+        if (current == null || current.size + total > segmentSize) {
+            roll();
+        }
+        Segment segment = current;
+        Location[] locations = new Location[contents.size()];
+        ByteBuffer[] gather = new ByteBuffer[contents.size()];
+        long offset = segment.size;
+        for (int i = 0; i < gather.length; i++) {
+            gather[i] = ByteBuffer.wrap(contents.get(i));
+            locations[i] = new Location(segment, offset);
+            offset += gather[i].remaining();
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel channel = segment.channel.channel;
+                try {
+                    channel.position(segment.size);
+                    long remaining = total;
+                    while (remaining > 0) {
+                        remaining -= channel.write(gather);
+                    }
+                    break;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    segment.channel.reopen(channel);
+                    for (ByteBuffer buffer : gather) {
+                        buffer.rewind();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        segment.size += total;
+        segment.live.addAndGet(total);
+        diskBytes.addAndGet(total);
+        return locations;
+    }
+
+    /**
+     * 读出 {@code location} 处的 {@code length} 字节。
+     */
+    static byte[] read(Location location, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Channel file = location.segment().channel;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel channel = file.channel;
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, location.offset() + buffer.position()) < 0) {
+                            throw new IOException("Truncated segment " + location.segment().path);
+                        }
+                    }
+                    return bytes;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    file.reopen(channel);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 块被释放，它在段中的空间不再有效。
+     */
+    void free(Location location, int length) {
+        location.segment().live.addAndGet(-length);
+    }
+
+    /**
+     * 取出空闲空间超过一半的已封存段，之后不再记录它们；调用方把其中仍有效的块搬走。调用方持有换出锁。
+     */
+    List<Segment> takeSparse() {
+        List<Segment> sparse = new ArrayList<>();
+        sealed.removeIf(segment -> {
+            if (segment.live() * 2 >= segment.size) return false;
+            sparse.add(segment);
+            diskBytes.addAndGet(-segment.size);
+            return true;
+        });
+        return sparse;
+    }
+
+    /**
+     * 所有段文件（含尚未回收的空闲空间）的字节数。
+     */
+    long diskBytes() {
+        return diskBytes.get();
+    }
+
+    /**
+     * 关闭并删除所有段文件，之后的写入失败。已经换出的块不能再读取，只在进程退出前调用。
+     */
+    void close() {
+        closed = true;
+        for (Channel file : files) {
+            file.run();
+        }
+        diskBytes.set(0);
+    }
+
+    private void roll() throws IOException {
+        if (current == null) {
+            Files.createDirectories(directory);
+            removeStale();
+        } else {
+            sealed.add(current);
+        }
+        Segment segment = new Segment(directory.resolve(name + next++ + SUFFIX), files);
+        CLEANER.register(segment, segment.channel);
+        current = segment;
+    }
+
+    /**
+     * 删除已经退出的进程留下的段文件。
+     */
+    private void removeStale() throws IOException {
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stale) {
+                String file = path.getFileName().toString();
+                String pid = file.substring(PREFIX.length(), Math.max(PREFIX.length(), file.indexOf('-', PREFIX.length())));
+                try {
+                    if (ProcessHandle.of(Long.parseLong(pid)).isEmpty()) {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (NumberFormatException e) {
+                    // 不是我们的文件
+                }
+            }
+        }
+    }
+}
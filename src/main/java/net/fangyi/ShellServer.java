@@ -0,0 +1,64 @@
+package net.fangyi;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多会话 TCP 服务，所有连接共用一个 {@link FileSystem}，每个连接在虚拟线程上运行一个 {@link SimpleShell}。
+ */
+public class ShellServer {
+    static final int BACKLOG = 1024;
+
+    private final FileSystem fs;
+    private final int port;
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    public ShellServer(FileSystem fs, int port) {
+        this.fs = fs;
+        this.port = port;
+        fs.getMetrics().setSessions(this::getSessionCount);
+    }
+
+    public void serve() throws IOException {
+        // 段文件要在最后一次检查点写完之后才能删除，两步放在同一个钩子里按顺序执行
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            fs.close();
+            BlockStore.SHARED.close();
+        }));
+        try (ServerSocket server = new ServerSocket(port, BACKLOG);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            System.out.println("Listening on port " + server.getLocalPort());
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                executor.submit(() -> handle(socket));
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        sessions.incrementAndGet();
+        try (socket;
+             Scanner scanner = new Scanner(socket.getInputStream(), StandardCharsets.UTF_8);
+             PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            SimpleShell shell = new SimpleShell(fs.newSession(out, out), scanner, out, out);
+            // 批处理执行期间持有全局写锁，不能让一个连接的脚本阻塞其他会话
+            shell.setBatching(false);
+            shell.loop();
+        } catch (IOException e) {
+            System.err.println("Error in session " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            sessions.decrementAndGet();
+        }
+    }
+
+    int getSessionCount() {
+        return sessions.get();
+    }
+}
@@ -1,14 +1,61 @@
 package net.fangyi;
 
-import lombok.NoArgsConstructor;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.StringTokenizer;
+import java.util.concurrent.locks.LockSupport;
 
-@NoArgsConstructor
 public class SimpleShell {
-    private FileSystem fs = new FileSystem();
+    /**
+     * 所有命令名，启动时登记到 {@link Metrics}，按命令统计次数和延迟。
+     */
+    static final List<String> COMMANDS = List.of("login", "chmod", "getperm", "pwd", "cd", "ls", "touch", "rm", "cp",
+            "import", "export", "find", "complete", "grep", "du", "df", "quota", "snapshot", "stats", "watch", "mkdir",
+            "rmdir", "cat", "head", "tail", "echo", "truncate", "pread", "pwrite", "vim", "adduser", "su", "passwd",
+            "source");
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final int MAX_SOURCE_DEPTH = 8;
+    static final long WATCH_REFRESH_NANOS = 100_000_000;
+
+    private final FileSystem fs;
+    private final Scanner scanner;
+    private final PrintStream out;
+    private final PrintStream err;
+    /**
+     * 正在执行的脚本文件，外层在前；嵌套执行的脚本共用。
+     */
+    private final List<FileSystemNode> sources;
+    private boolean batching = true;
+
+    public SimpleShell() {
+        this(new FileSystem(), new Scanner(System.in), System.out, System.err);
+    }
+
+    public SimpleShell(FileSystem fs, Scanner scanner, PrintStream out, PrintStream err) {
+        this(fs, scanner, out, err, new ArrayList<>());
+    }
+
+    private SimpleShell(FileSystem fs, Scanner scanner, PrintStream out, PrintStream err, List<FileSystemNode> sources) {
+        this.fs = fs;
+        this.scanner = scanner;
+        this.out = out;
+        this.err = err;
+        this.sources = sources;
+        fs.getMetrics().registerCommands(COMMANDS);
+    }
+
+    /**
+     * 为 false 时 source 逐条执行和提交命令，不持有全局写锁执行整批，出错时停止而不回滚。网络会话这样运行。
+     */
+    void setBatching(boolean batching) {
+        this.batching = batching;
+    }
 
     public List<String> split(String str, char delimiter) {
         List<String> tokens = new ArrayList<>();
@@ -21,63 +68,497 @@ public class SimpleShell {
 
     public void login(List<String> args) {
         if (args.size() != 2) {
-            System.err.println("Usage: login <username> <password>");
+            err.println("Usage: login <username> <password>");
             return;
         }
         if (!fs.login(args.get(0), args.get(1))) {
-            System.err.println("Login failed for user: " + args.get(0));
+            err.println("Login failed for user: " + args.get(0));
         } else {
-            System.out.println("Logged in as " + args.get(0));
+            out.println("Logged in as " + args.get(0));
         }
     }
 
     public void changePassword(List<String> args) {
         if (args.size() != 2) {
-            System.err.println("Usage: passwd <username> <newpassword>");
+            err.println("Usage: passwd <username> <newpassword>");
             return;
         }
         fs.changeUserPassword(args.get(0), args.get(1));
     }
 
     public void editFile(String filename) {
+        fs.refresh();
         FileSystemNode fileNode = fs.getNodeByPath(filename);
         if (fileNode == null) {
-            System.out.println("File does not exist. Creating new file: " + filename);
+            out.println("File does not exist. Creating new file: " + filename);
             fs.create(filename, false, fs.getCurrentUser().getUsername(), fs.getCurrentUser().getGroup());
             fileNode = fs.getNodeByPath(filename);
+            if (fileNode == null) return;
         }
         if (fileNode.isDirectory()) {
-            System.err.println("Error: Path is a directory");
+            err.println("Error: Path is a directory");
             return;
         }
         if (!fs.checkPermissions(fileNode, 'w')) {
-            System.err.println("Error: Permission denied.");
+            err.println("Error: Permission denied.");
+            return;
+        }
+        LeaseManager.Lease lease = fs.beginEdit(fileNode);
+        if (lease == null) return;
+
+        try {
+            out.println("Entering insert mode for file: " + filename);
+            fs.print(fileNode, 0, Long.MAX_VALUE);
+            out.println();
+
+            // 只收集新输入的行，保存时追加到文件末尾，不复制原有内容
+            StringBuilder newContent = new StringBuilder();
+            while (scanner.hasNextLine()) {
+                String inputLine = scanner.nextLine();
+                if (!fs.getLeases().renew(lease)) {
+                    err.println("Error: Edit lease expired, changes discarded");
+                    return;
+                }
+                if (inputLine.equals(":wq")) {
+                    if (fs.append(fileNode, newContent.toString().getBytes(StandardCharsets.UTF_8))) {
+                        out.println("File saved and exiting editor.");
+                    }
+                    break;
+                } else {
+                    newContent.append(inputLine).append("\n");
+                }
+            }
+        } finally {
+            fs.getLeases().release(lease);
+        }
+    }
+
+    public void echo(List<String> args) {
+        int redirect = Math.max(args.indexOf(">"), args.indexOf(">>"));
+        if (redirect < 0) {
+            out.println(String.join(" ", args));
+            return;
+        }
+        if (redirect != args.size() - 2) {
+            err.println("Usage: echo <text> [> | >> <filename>]");
+            return;
+        }
+        FileSystemNode node = fs.getWritableFile(args.get(redirect + 1), true);
+        if (node == null) return;
+        String text = String.join(" ", args.subList(0, redirect)) + "\n";
+        if (args.get(redirect).equals(">")) {
+            // 覆盖写一次完成，按净增量检查限额，超额时原内容保持不变
+            fs.setContent(node, text);
+        } else {
+            fs.append(node, text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 解析 head/tail 的参数：[-n N] filename，格式错误时返回 -1。
+     */
+    private int parseLineCount(List<String> args) {
+        if (args.size() == 1) return 10;
+        if (args.size() != 3 || !args.get(0).equals("-n")) return -1;
+        try {
+            return Math.max(0, Integer.parseInt(args.get(1)));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void truncate(List<String> args) {
+        if (args.size() != 3 || !args.get(0).equals("-s")) {
+            err.println("Usage: truncate -s <size> <filename>");
+            return;
+        }
+        long size;
+        try {
+            size = Long.parseLong(args.get(1));
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            err.println("Invalid size: " + args.get(1));
+            return;
+        }
+        FileSystemNode node = fs.getWritableFile(args.get(2), true);
+        if (node == null) return;
+        fs.truncate(node, size);
+    }
+
+    public void pread(List<String> args) {
+        if (args.size() != 3) {
+            err.println("Usage: pread <filename> <offset> <length>");
             return;
         }
-        fs.loadFromFile("filesystem_state.txt");
-        if (fileNode.isBeingEdited()) {
-            System.err.println("Error: File is currently being edited");
+        long offset;
+        int length;
+        try {
+            offset = Long.parseLong(args.get(1));
+            length = Integer.parseInt(args.get(2));
+        } catch (NumberFormatException e) {
+            offset = length = -1;
+        }
+        if (offset < 0 || length < 0) {
+            err.println("Invalid offset or length");
+            return;
+        }
+        FileSystemNode node = fs.getReadableFile(args.get(0));
+        if (node == null) return;
+        out.println(new String(fs.read(node, offset, length), StandardCharsets.UTF_8));
+    }
+
+    public void pwrite(List<String> args) {
+        if (args.size() < 3) {
+            err.println("Usage: pwrite <filename> <offset> <text>");
             return;
         }
-        fileNode.setBeingEdited(true);
-        fs.saveToFile("filesystem_state.txt");
+        long offset;
+        try {
+            offset = Long.parseLong(args.get(1));
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0) {
+            err.println("Invalid offset: " + args.get(1));
+            return;
+        }
+        FileSystemNode node = fs.getWritableFile(args.get(0), false);
+        if (node == null) return;
+        fs.write(node, offset, String.join(" ", args.subList(2, args.size())).getBytes(StandardCharsets.UTF_8));
+    }
 
-        System.out.println("Entering insert mode for file: " + filename);
-        System.out.println(fileNode.getContent());
+    /**
+     * quota <username> <bytes> [inodes]：设置用户的限额，0 表示不限制。
+     */
+    public void quota(List<String> args) {
+        if (args.size() != 2 && args.size() != 3) {
+            err.println("Usage: quota <username> <bytes> [inodes]");
+            return;
+        }
+        long bytes;
+        long inodes;
+        try {
+            bytes = Long.parseLong(args.get(1));
+            inodes = args.size() == 3 ? Long.parseLong(args.get(2)) : 0;
+        } catch (NumberFormatException e) {
+            err.println("Error: Invalid quota");
+            return;
+        }
+        if (bytes < 0 || inodes < 0) {
+            err.println("Error: Invalid quota");
+            return;
+        }
+        fs.setQuota(args.get(0), bytes, inodes);
+    }
 
-        StringBuilder newContent = new StringBuilder(fileNode.getContent());
-        Scanner scanner = new Scanner(System.in);
-        while (scanner.hasNextLine()) {
-            String inputLine = scanner.nextLine();
-            if (inputLine.equals(":wq")) {
-                fileNode.setContent(newContent.toString());
-                System.out.println("File saved and exiting editor.");
+    /**
+     * watch [-r] [-n count] [-t seconds] path：输出 path 上的变化，收到 count 个事件或过了 seconds 秒后结束。
+     */
+    public void watch(List<String> args) {
+        boolean recursive = false;
+        long count = Long.MAX_VALUE;
+        long seconds = -1;
+        String path = null;
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (arg.equals("-r") && !recursive) {
+                recursive = true;
+            } else if (arg.equals("-n") && i + 1 < args.size() && count == Long.MAX_VALUE) {
+                count = parsePositive(args.get(++i));
+            } else if (arg.equals("-t") && i + 1 < args.size() && seconds < 0) {
+                seconds = parsePositive(args.get(++i));
+            } else if (path == null && !arg.startsWith("-")) {
+                path = arg;
+            } else {
+                path = null;
                 break;
+            }
+        }
+        if (path == null || count <= 0 || seconds == 0) {
+            err.println("Usage: watch [-r] [-n count] [-t seconds] <path>");
+            return;
+        }
+        if (fs.getBatch() != null) {
+            // 批处理持有全局写锁，等待的变化不会发生
+            err.println("Error: watch is not allowed in a script batch");
+            return;
+        }
+        try (Watchers.Watch watch = fs.watch(path, recursive)) {
+            if (watch == null) return;
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            long refreshed = System.nanoTime();
+            while (count > 0 && (seconds < 0 || System.nanoTime() - deadline < 0)) {
+                Watchers.Event event = watch.poll();
+                if (event != null) {
+                    out.println(event.format());
+                    count--;
+                    continue;
+                }
+                out.flush();
+                if (out.checkError()) return;
+                if (System.nanoTime() - refreshed >= WATCH_REFRESH_NANOS) {
+                    fs.refresh();
+                    refreshed = System.nanoTime();
+                }
+                LockSupport.parkNanos(AuditLog.IDLE_PARK_NANOS);
+            }
+            if (watch.dropped() > 0) {
+                out.println(watch.dropped() + " events dropped, " + watch.coalesced() + " coalesced");
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * 解析正整数，格式错误或不是正数时返回 0。
+     */
+    private static long parsePositive(String text) {
+        try {
+            return Math.max(0, Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public void snapshot(List<String> args) {
+        String action = args.isEmpty() ? "" : args.get(0);
+        if (action.equals("list") && args.size() == 1) {
+            fs.listSnapshots();
+        } else if (action.equals("create") && args.size() == 2) {
+            fs.createSnapshot(args.get(1));
+        } else if (action.equals("restore") && args.size() == 2) {
+            fs.restoreSnapshot(args.get(1));
+        } else if (action.equals("delete") && args.size() == 2) {
+            fs.deleteSnapshot(args.get(1));
+        } else {
+            err.println("Usage: snapshot create|restore|delete <name> | snapshot list");
+        }
+    }
+
+    /**
+     * ls [-l] [path] [--limit N] [--after name]：按名字顺序列目录，--after 给出上一页最后一项的名字，从它之后继续。
+     */
+    public void list(List<String> args) {
+        boolean longFormat = false;
+        String path = null;
+        String after = null;
+        int limit = Integer.MAX_VALUE;
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (arg.equals("-l") && !longFormat) {
+                longFormat = true;
+            } else if (arg.equals("--after") && i + 1 < args.size() && after == null) {
+                after = args.get(++i);
+            } else if (arg.equals("--limit") && i + 1 < args.size() && limit == Integer.MAX_VALUE) {
+                try {
+                    limit = Integer.parseInt(args.get(++i));
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (limit <= 0) {
+                    err.println("Invalid limit: " + args.get(i));
+                    return;
+                }
+            } else if (path == null && !arg.startsWith("--")) {
+                path = arg;
             } else {
-                newContent.append(inputLine).append("\n");
+                err.println("Usage: ls [-l] [path] [--limit N] [--after name]");
+                return;
+            }
+        }
+        fs.listDirectory(path == null ? "." : path, longFormat, after, limit);
+    }
+
+    /**
+     * source [-b N] filename：执行文件系统中的脚本文件，每 N 条命令作为一批提交；网络会话中逐条提交，忽略 -b。
+     */
+    public void source(List<String> args) {
+        int batchSize = DEFAULT_BATCH_SIZE;
+        if (args.size() == 3 && args.get(0).equals("-b")) {
+            try {
+                batchSize = Integer.parseInt(args.get(1));
+            } catch (NumberFormatException e) {
+                batchSize = -1;
             }
+        } else if (args.size() != 1) {
+            batchSize = -1;
+        }
+        if (batchSize <= 0) {
+            err.println("Usage: source [-b batchsize] <filename>");
+            return;
+        }
+        FileSystemNode node = fs.getReadableFile(args.getLast());
+        if (node == null) return;
+        if (sources.contains(node)) {
+            err.println("Error: Script sources itself: " + args.getLast());
+            return;
+        }
+        if (sources.size() >= MAX_SOURCE_DEPTH) {
+            err.println("Error: Scripts nested deeper than " + MAX_SOURCE_DEPTH + ": " + args.getLast());
+            return;
+        }
+        byte[] script = fs.read(node, 0, (int) Math.min(Integer.MAX_VALUE, node.getData().length()));
+        sources.add(node);
+        try {
+            runScript(new Scanner(new ByteArrayInputStream(script), StandardCharsets.UTF_8), batchSize);
+        } finally {
+            sources.removeLast();
+        }
+    }
+
+    /**
+     * 非交互地执行本机上的脚本文件，用于 {@code Main --script}：加载状态，执行，保存。返回是否全部成功。
+     */
+    public boolean runScript(String filename, int batchSize) {
+        fs.getMetrics().setSessions(() -> 1);
+        fs.open();
+        try (Scanner input = new Scanner(Path.of(filename), StandardCharsets.UTF_8)) {
+            return runScript(input, batchSize);
+        } catch (IOException e) {
+            err.println("Error opening script: " + filename);
+            return false;
+        } finally {
+            fs.close();
+        }
+    }
+
+    /**
+     * 逐行执行脚本，每 {@code batchSize} 条命令一批提交，有命令报错时整批回滚；嵌套的 source 属于外层的批。返回是否全部成功。
+     */
+    boolean runScript(Scanner input, int batchSize) {
+        if (!batching) return runUnbatched(input);
+        boolean nested = fs.getBatch() != null;
+        ErrorTracker tracker = new ErrorTracker(err);
+        PrintStream sessionErr = fs.getErr();
+        fs.setErr(tracker);
+        SimpleShell script = new SimpleShell(fs, input, out, tracker, sources);
+        int lineNumber = 0;
+        int pending = 0;
+        long executed = 0;
+        long batches = 0;
+        try {
+            while (input.hasNextLine()) {
+                String line = input.nextLine().strip();
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (line.equals("exit")) break;
+                List<String> tokens = split(line, ' ');
+                String command = tokens.getFirst();
+                if (!nested && pending == 0) {
+                    fs.beginBatch();
+                }
+                pending++;
+                long start = System.nanoTime();
+                script.executeCommand(command, tokens.subList(1, tokens.size()));
+                fs.getMetrics().command(command).record(System.nanoTime() - start);
+                if (tracker.failed()) {
+                    if (!nested) {
+                        fs.rollbackBatch();
+                        err.println("Error: Line " + lineNumber + " failed, rolled back " + pending + " commands");
+                        pending = 0;
+                    }
+                    return false;
+                }
+                executed++;
+                if (!nested && pending == batchSize) {
+                    fs.commitBatch();
+                    pending = 0;
+                    batches++;
+                }
+            }
+            if (!nested && pending > 0) {
+                fs.commitBatch();
+                pending = 0;
+                batches++;
+            }
+        } finally {
+            if (!nested && pending > 0) {
+                // 命令抛出了异常
+                fs.rollbackBatch();
+            }
+            fs.setErr(sessionErr);
+        }
+        if (!nested) {
+            out.println("Executed " + executed + " commands in " + batches + " batches");
+        }
+        return true;
+    }
+
+    /**
+     * 像交互输入一样逐条执行和提交脚本中的命令，第一条报错的命令之后停止，已执行的命令保持生效。
+     */
+    private boolean runUnbatched(Scanner input) {
+        ErrorTracker tracker = new ErrorTracker(err);
+        PrintStream sessionErr = fs.getErr();
+        fs.setErr(tracker);
+        SimpleShell script = new SimpleShell(fs, input, out, tracker, sources);
+        script.setBatching(false);
+        int lineNumber = 0;
+        long executed = 0;
+        try {
+            while (input.hasNextLine()) {
+                String line = input.nextLine().strip();
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (line.equals("exit")) break;
+                List<String> tokens = split(line, ' ');
+                String command = tokens.getFirst();
+                long start = System.nanoTime();
+                fs.refresh();
+                script.executeCommand(command, tokens.subList(1, tokens.size()));
+                fs.commit();
+                fs.getMetrics().command(command).record(System.nanoTime() - start);
+                if (tracker.failed()) {
+                    err.println("Error: Line " + lineNumber + " failed, stopped after " + executed + " commands");
+                    return false;
+                }
+                executed++;
+            }
+        } finally {
+            fs.setErr(sessionErr);
+        }
+        out.println("Executed " + executed + " commands");
+        return true;
+    }
+
+    /**
+     * 转发到原来的错误输出，同时记下是否有命令报过错。
+     */
+    private static final class ErrorTracker extends PrintStream {
+        private boolean failed;
+
+        ErrorTracker(PrintStream target) {
+            super(target, true, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(int b) {
+            failed = true;
+            super.write(b);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            failed = true;
+            super.write(buf, off, len);
         }
-        fileNode.setBeingEdited(false);
+
+        boolean failed() {
+            return failed;
+        }
+    }
+
+    /**
+     * 去掉模式两边的引号。这个 shell 不展开通配符，接受引号只是为了兼容常见写法。
+     */
+    private static String unquote(String pattern) {
+        if (pattern.length() >= 2 && (pattern.charAt(0) == '\'' || pattern.charAt(0) == '"')
+                && pattern.charAt(pattern.length() - 1) == pattern.charAt(0)) {
+            return pattern.substring(1, pattern.length() - 1);
+        }
+        return pattern;
     }
 
     public String convertNumericToSymbolic(String numeric) {
@@ -99,121 +580,239 @@ public class SimpleShell {
             login(args);
         } else {
             if (fs.getCurrentUser() == null) {
-                System.err.println("Error: No user logged in");
+                err.println("Error: No user logged in");
                 return;
             } else if (command.equals("chmod")) {
-                if (args.size() != 2) {
-                    System.err.println("Usage: chmod <permissions> <filename/directory>");
+                boolean recursive = !args.isEmpty() && args.get(0).equals("-R");
+                List<String> operands = recursive ? args.subList(1, args.size()) : args;
+                if (operands.size() != 2) {
+                    err.println("Usage: chmod [-R] <permissions> <filename/directory>");
                     return;
                 }
-                String symbolicPermissions = convertNumericToSymbolic(args.get(0));
+                String symbolicPermissions = convertNumericToSymbolic(operands.get(0));
                 if (symbolicPermissions.isEmpty()) {
-                    System.err.println("Invalid numeric permissions: " + args.get(0));
+                    err.println("Invalid numeric permissions: " + operands.get(0));
                     return;
                 }
-                fs.setPermissions(args.get(1), symbolicPermissions);
+                if (recursive) {
+                    fs.setPermissionsRecursive(operands.get(1), symbolicPermissions);
+                } else {
+                    fs.setPermissions(operands.get(1), symbolicPermissions);
+                }
             } else if (command.equals("getperm")) {
                 if (args.size() != 1) {
-                    System.err.println("Usage: getperm <filename/directory>");
+                    err.println("Usage: getperm <filename/directory>");
                     return;
                 }
-                System.out.println(fs.getPermissions(args.get(0)));
+                out.println(fs.getPermissions(args.get(0)));
             } else if (command.equals("pwd")) {
-                System.out.println(fs.getCurrentDirectoryPath());
+                out.println(fs.getCurrentDirectoryPath());
             } else if (command.equals("cd")) {
                 if (args.size() == 1) {
                     fs.changeDirectory(args.get(0));
                 } else {
-                    System.err.println("Usage: cd [directory]");
+                    err.println("Usage: cd [directory]");
                     return;
                 }
             } else if (command.equals("ls")) {
-                boolean longFormat = !args.isEmpty() && args.get(0).equals("-l");
-                fs.listDirectory(longFormat);
+                list(args);
             } else if (command.equals("touch")) {
                 if (args.size() != 1) {
-                    System.err.println("Usage: touch <filename>");
+                    err.println("Usage: touch <filename>");
                     return;
                 }
                 fs.create(args.get(0), false, fs.getCurrentUser().getUsername(), fs.getCurrentUser().getGroup());
             } else if (command.equals("rm")) {
-                if (args.size() != 1) {
-                    System.err.println("Usage: rm <filename/directory>");
+                boolean recursive = !args.isEmpty() && args.get(0).equals("-r");
+                if (args.size() != (recursive ? 2 : 1)) {
+                    err.println("Usage: rm [-r] <filename/directory>");
+                    return;
+                }
+                fs.remove(args.getLast(), recursive);
+            } else if (command.equals("cp")) {
+                boolean recursive = !args.isEmpty() && args.get(0).equals("-r");
+                if (args.size() != (recursive ? 3 : 2)) {
+                    err.println("Usage: cp [-r] <source> <destination>");
+                    return;
+                }
+                fs.copy(args.get(args.size() - 2), args.getLast(), recursive);
+            } else if (command.equals("import")) {
+                if (args.size() != 2) {
+                    err.println("Usage: import <hostdir> <path>");
+                    return;
+                }
+                fs.importTree(args.get(0), args.get(1));
+            } else if (command.equals("export")) {
+                if (args.size() != 2) {
+                    err.println("Usage: export <path> <hostdir>");
                     return;
                 }
-                fs.remove(args.get(0));
+                fs.exportTree(args.get(0), args.get(1));
+            } else if (command.equals("find")) {
+                int name = args.indexOf("-name");
+                if (name >= 0 ? name > 1 || args.size() != name + 2 : args.size() > 1) {
+                    err.println("Usage: find [directory] [-name <pattern>]");
+                    return;
+                }
+                String directory = name == 0 || args.isEmpty() ? "." : args.get(0);
+                if (name >= 0) {
+                    fs.find(directory, unquote(args.get(name + 1)));
+                } else {
+                    fs.find(directory);
+                }
+            } else if (command.equals("complete")) {
+                if (args.size() > 1) {
+                    err.println("Usage: complete [partial path]");
+                    return;
+                }
+                fs.complete(args.isEmpty() ? "" : args.get(0));
+            } else if (command.equals("grep")) {
+                boolean recursive = !args.isEmpty() && args.get(0).equals("-r");
+                if (args.size() != (recursive ? 3 : 2)) {
+                    err.println("Usage: grep [-r] <pattern> <filename/directory>");
+                    return;
+                }
+                fs.grep(args.get(args.size() - 2), args.getLast(), recursive);
+            } else if (command.equals("du")) {
+                if (args.size() > 1) {
+                    err.println("Usage: du [filename/directory]");
+                    return;
+                }
+                fs.diskUsage(args.isEmpty() ? "." : args.get(0));
+            } else if (command.equals("df")) {
+                if (!args.isEmpty()) {
+                    err.println("Usage: df");
+                    return;
+                }
+                fs.diskFree();
+            } else if (command.equals("quota")) {
+                quota(args);
+            } else if (command.equals("stats")) {
+                if (args.isEmpty()) {
+                    fs.getMetrics().print(out);
+                } else if (args.size() == 1 && args.get(0).equals("reset")) {
+                    if (fs.getUid() != 0) {
+                        err.println("Error: Permission denied");
+                        return;
+                    }
+                    fs.getMetrics().reset();
+                } else {
+                    err.println("Usage: stats [reset]");
+                }
+            } else if (command.equals("snapshot")) {
+                snapshot(args);
+            } else if (command.equals("watch")) {
+                watch(args);
+            } else if (command.equals("source")) {
+                source(args);
             } else if (command.equals("mkdir")) {
                 if (args.size() != 1) {
-                    System.err.println("Usage: mkdir <directory>");
+                    err.println("Usage: mkdir <directory>");
                     return;
                 }
                 fs.create(args.get(0), true, fs.getCurrentUser().getUsername(), fs.getCurrentUser().getGroup());
             } else if (command.equals("rmdir")) {
                 if (args.size() != 1) {
-                    System.err.println("Usage: rmdir <directory>");
+                    err.println("Usage: rmdir <directory>");
                     return;
                 }
-                fs.remove(args.get(0));
+                fs.removeDirectory(args.get(0));
             } else if (command.equals("cat")) {
                 if (args.size() != 1) {
-                    System.err.println("Usage: cat <filename>");
+                    err.println("Usage: cat <filename>");
                     return;
                 }
                 fs.readFile(args.get(0));
+            } else if (command.equals("head") || command.equals("tail")) {
+                int lines = parseLineCount(args);
+                if (lines < 0) {
+                    err.println("Usage: " + command + " [-n lines] <filename>");
+                    return;
+                }
+                if (command.equals("head")) {
+                    fs.head(args.getLast(), lines);
+                } else {
+                    fs.tail(args.getLast(), lines);
+                }
+            } else if (command.equals("echo")) {
+                echo(args);
+            } else if (command.equals("truncate")) {
+                truncate(args);
+            } else if (command.equals("pread")) {
+                pread(args);
+            } else if (command.equals("pwrite")) {
+                pwrite(args);
             } else if (command.equals("vim")) {
                 if (args.size() != 1) {
-                    System.err.println("Usage: vim <filename>");
+                    err.println("Usage: vim <filename>");
                     return;
                 }
                 editFile(args.get(0));
             } else if (command.equals("adduser")) {
                 if (args.size() != 2) {
-                    System.err.println("Usage: adduser <username> <password>");
+                    err.println("Usage: adduser <username> <password>");
                     return;
                 }
                 fs.addUser(args.get(0), args.get(1), "users");
             } else if (command.equals("su")) {
                 if (args.size() != 2) {
-                    System.err.println("Usage: su <username> <password>");
+                    err.println("Usage: su <username> <password>");
                     return;
                 }
                 if (!fs.login(args.get(0), args.get(1))) {
-                    System.err.println("Switch user failed for user: " + args.get(0));
+                    err.println("Switch user failed for user: " + args.get(0));
                 } else {
-                    System.out.println("Switched to user " + args.get(0));
+                    out.println("Switched to user " + args.get(0));
                 }
             } else if (command.equals("passwd")) {
                 if (args.size() != 2) {
-                    System.err.println("Usage: passwd <username> <newpassword>");
+                    err.println("Usage: passwd <username> <newpassword>");
                     return;
                 }
                 fs.changeUserPassword(args.get(0), args.get(1));
             } else {
-                System.err.println("Unknown command: " + command);
+                err.println("Unknown command: " + command);
             }
         }
     }
 
     public void run() {
-        Scanner scanner = new Scanner(System.in);
+        fs.getMetrics().setSessions(() -> 1);
+        fs.open();
+        loop();
+        fs.close();
+    }
+
+    /**
+     * 读取并执行命令直到 exit 或输入结束；不负责加载和保存状态，网络会话直接调用它。
+     */
+    public void loop() {
         while (true) {
-            fs.loadFromFile("filesystem_state.txt");
-            fs.loadUsersFromFile("users.txt");
-            System.out.print(fs.getCurrentDirectoryPath() + "$ ");
+            out.print(fs.getCurrentDirectoryPath() + "$ ");
+            out.flush();
+            if (!scanner.hasNextLine()) break;
             String input = scanner.nextLine();
             if(input.equals("exit")) {
-                fs.saveToFile("filesystem_state.txt");
-                fs.saveUsersToFile("users.txt");
-                System.out.println("Exiting shell.");
+                out.println("Exiting shell.");
                 break;
             }
+            if (input.endsWith("\t")) {
+                // 行尾的 Tab 表示补全最后一个参数，不执行命令
+                String line = input.substring(0, input.length() - 1);
+                if (fs.getCurrentUser() != null) {
+                    fs.complete(line.isEmpty() || line.endsWith(" ") ? "" : line.substring(line.lastIndexOf(' ') + 1));
+                }
+                continue;
+            }
             List<String> tokens = split(input, ' ');
             if (tokens.isEmpty()) continue;
             String command = tokens.getFirst();
             List<String> args = tokens.subList(1, tokens.size());
+            long start = System.nanoTime();
+            fs.refresh();
             executeCommand(command, args);
-            fs.saveToFile("filesystem_state.txt");
-            fs.saveUsersToFile("users.txt");
+            fs.commit();
+            fs.getMetrics().command(command).record(System.nanoTime() - start);
         }
     }
-}
\ No newline at end of file
+}
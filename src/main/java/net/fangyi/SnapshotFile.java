@@ -0,0 +1,413 @@
+package net.fangyi;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 二进制快照格式：
+ * <pre>
+ * header  : magic "FSNP" | version u16 | generation i64 | stringCount i32 | blockCount i32 | nodeCount i32
+ * strings : (length i32 | utf-8 bytes) * stringCount
+ * blocks  : (length i32 | bytes) * blockCount
+ * nodes   : (recordLength i32 | parent i32 | name i32 | flags u8 | owner i32 | group i32 | mode u16
+ *            | chunkCount i32 | block i32 * chunkCount | trigramCount i32 | trigram i32 * trigramCount) * nodeCount
+ * </pre>
+ * 节点按先序排列，记录带长度前缀，旧读取器可以跳过新字段。版本 4 是 {@link Partitions} 的清单，列出各段文件的名字。
+ */
+public class SnapshotFile {
+    static final int MAGIC = 0x46534E50; // "FSNP"
+    static final short VERSION = 3;
+    static final short MANIFEST_VERSION = 4;
+
+    static final int FLAG_DIRECTORY = 1;
+
+    private static final long MAP_WINDOW = 1L << 30;
+
+    static int write(FileSystemNode root, long generation, String filename, TrigramIndex textIndex) throws IOException {
+        return write(root, TreeSnapshot.LIVE, generation, filename, textIndex);
+    }
+
+    /**
+     * 按 {@code view} 中的状态写出 {@code root} 子树，返回写出的节点数。{@code view} 是冻结的快照时不需要持有锁。
+     */
+    static int write(FileSystemNode root, TreeSnapshot view, long generation, String filename,
+                      TrigramIndex textIndex) throws IOException {
+        return write(root, view, generation, filename, textIndex, node -> false);
+    }
+
+    /**
+     * 同上，但 {@code stubs} 为 true 的节点（根节点除外）只写属性，不写子节点，也不读它的子节点表。
+     */
+    static int write(FileSystemNode root, TreeSnapshot view, long generation, String filename,
+                      TrigramIndex textIndex, Predicate<FileSystemNode> stubs) throws IOException {
+        List<FileSystemNode> nodes = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        Map<String, Integer> stringIndex = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        Map<BlockStore.Block, Integer> blockIndex = new IdentityHashMap<>();
+        List<BlockStore.Block> blocks = new ArrayList<>();
+
+        Deque<FileSystemNode> stack = new ArrayDeque<>();
+        Deque<Integer> parentStack = new ArrayDeque<>();
+        stack.push(root);
+        parentStack.push(-1);
+        while (!stack.isEmpty()) {
+            FileSystemNode node = stack.pop();
+            parents.add(parentStack.pop());
+            int index = nodes.size();
+            nodes.add(node);
+            boolean stub = node != root && stubs.test(node);
+            TreeSnapshot.State state = stub ? view.attributes(node) : view.state(node);
+            intern(node.getName(), stringIndex, strings);
+            intern(IdTable.USERS.name(state.uid()), stringIndex, strings);
+            intern(IdTable.GROUPS.name(state.gid()), stringIndex, strings);
+            for (BlockStore.Block block : state.blocks()) {
+                if (blockIndex.putIfAbsent(block, blocks.size()) == null) {
+                    blocks.add(block);
+                }
+            }
+            for (FileSystemNode child : state.children()) {
+                stack.push(child);
+                parentStack.push(index);
+            }
+        }
+
+        Path target = Path.of(filename);
+        Path temp = Path.of(filename + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(generation);
+            out.writeInt(strings.size());
+            out.writeInt(blocks.size());
+            out.writeInt(nodes.size());
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            for (BlockStore.Block block : blocks) {
+                out.writeInt(block.length());
+                out.write(block.peek());
+            }
+            for (int i = 0; i < nodes.size(); i++) {
+                FileSystemNode node = nodes.get(i);
+                TreeSnapshot.State state = node != root && stubs.test(node) ? view.attributes(node) : view.state(node);
+                BlockStore.Block[] chunks = state.blocks();
+                int flags = node.isDirectory() ? FLAG_DIRECTORY : 0;
+                int[] trigrams = node.isDirectory() ? null : textIndex.get(node);
+                if (trigrams != null && view.isPreserved(node)) {
+                    // 文件在快照之后改过，索引对应的是新内容，让加载时重新计算
+                    trigrams = null;
+                }
+                int trigramLength = node.isDirectory() ? 0 : 4 + (trigrams == null ? 0 : 4 * trigrams.length);
+                out.writeInt(4 + 4 + 1 + 4 + 4 + 2 + 4 + 4 * chunks.length + trigramLength);
+                out.writeInt(parents.get(i));
+                out.writeInt(stringIndex.get(node.getName()));
+                out.writeByte(flags);
+                out.writeInt(stringIndex.get(IdTable.USERS.name(state.uid())));
+                out.writeInt(stringIndex.get(IdTable.GROUPS.name(state.gid())));
+                out.writeShort(state.mode());
+                out.writeInt(chunks.length);
+                for (BlockStore.Block block : chunks) {
+                    out.writeInt(blockIndex.get(block));
+                }
+                if (!node.isDirectory()) {
+                    out.writeInt(trigrams == null ? -1 : trigrams.length);
+                    if (trigrams != null) {
+                        for (int t : trigrams) {
+                            out.writeInt(t);
+                        }
+                    }
+                }
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return nodes.size();
+    }
+
+    /**
+     * 只读取文件的版本；文件不存在或无法识别时返回 -1。
+     */
+    static int readVersion(String filename) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(filename))))) {
+            if (in.readInt() != MAGIC) return -1;
+            return in.readShort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 只读取快照的代数；文件不存在或无法识别时返回 -1。
+     */
+    static long readGeneration(String filename) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(filename))))) {
+            if (in.readInt() != MAGIC) return -1;
+            return in.readShort() >= 2 ? in.readLong() : 0;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void intern(String s, Map<String, Integer> stringIndex, List<String> strings) {
+        if (!stringIndex.containsKey(s)) {
+            stringIndex.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    /**
+     * 通过内存映射读取快照，把节点挂到 {@code root} 下，返回快照的代数。
+     */
+    static long read(FileSystemNode root, String filename, TrigramIndex textIndex) throws IOException {
+        return read(root, filename, textIndex, () -> {
+        });
+    }
+
+    /**
+     * 与 {@link #read(FileSystemNode, String, TrigramIndex)} 相同，但整个文件读出并校验之后才运行 {@code replace}，
+     * 再替换 {@code root} 的子节点和属性；文件损坏时抛出异常，{@code root} 和索引都不变。
+     */
+    static long read(FileSystemNode root, String filename, TrigramIndex textIndex, Runnable replace) throws IOException {
+        return read(root, filename, textIndex, replace, null);
+    }
+
+    /**
+     * 把家目录段读到 {@code directory} 中，子树建好后一次加入，用量只向上传递一次。
+     */
+    static void readSegment(FileSystemNode directory, String filename, TrigramIndex textIndex,
+                            Consumer<FileSystemNode> loaded) throws IOException {
+        read(directory, filename, textIndex, null, loaded);
+    }
+
+    /**
+     * 先把节点建成挂在 {@code root} 之外的子树，全部读完之后才改动 {@code root} 和 {@code textIndex}。
+     */
+    private static long read(FileSystemNode root, String filename, TrigramIndex textIndex, Runnable replace,
+                             Consumer<FileSystemNode> loaded) throws IOException {
+        FileSystemNode[] nodes;
+        int[][] trigrams;
+        long generation;
+        String rootOwner = null;
+        String rootGroup = null;
+        int rootMode = 0;
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            MappedReader in = new MappedReader(channel);
+            in.require(4 + 2);
+            if (in.buffer.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + filename);
+            }
+            short version = in.buffer.getShort();
+            if (version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + filename);
+            }
+            in.require((version >= 2 ? 8 : 0) + (version >= 3 ? 4 : 0) + 4 + 4);
+            generation = version >= 2 ? in.buffer.getLong() : 0;
+            String[] strings = new String[in.buffer.getInt()];
+            BlockStore.Block[] blocks = new BlockStore.Block[version >= 3 ? in.buffer.getInt() : 0];
+            nodes = new FileSystemNode[in.buffer.getInt()];
+            trigrams = new int[nodes.length][];
+            try {
+                for (int i = 0; i < strings.length; i++) {
+                    in.require(4);
+                    int length = in.buffer.getInt();
+                    in.require(length);
+                    strings[i] = in.readString(length);
+                }
+
+                for (int i = 0; i < blocks.length; i++) {
+                    in.require(4);
+                    byte[] data = new byte[in.buffer.getInt()];
+                    in.require(data.length);
+                    in.buffer.get(data);
+                    blocks[i] = BlockStore.SHARED.intern(data);
+                }
+
+                // 先数出每个目录的子节点数，子节点表一次分配到位
+                long recordsStart = in.position();
+                int[] childCounts = new int[nodes.length];
+                for (int i = 0; i < nodes.length; i++) {
+                    in.require(4);
+                    int recordLength = in.buffer.getInt();
+                    in.require(recordLength);
+                    int parent = in.buffer.getInt(in.buffer.position());
+                    if (parent < (i == 0 ? -1 : 0) || parent >= i) {
+                        throw new IOException("Invalid parent " + parent + " for node " + i + ": " + filename);
+                    }
+                    if (parent >= 0) {
+                        childCounts[parent]++;
+                    }
+                    in.buffer.position(in.buffer.position() + recordLength);
+                }
+                in.seek(recordsStart);
+
+                for (int i = 0; i < nodes.length; i++) {
+                    in.require(4);
+                    int recordLength = in.buffer.getInt();
+                    in.require(recordLength);
+                    int start = in.buffer.position();
+                    int parent = in.buffer.getInt();
+                    String name = strings[in.buffer.getInt()];
+                    int flags = in.buffer.get();
+                    String owner = strings[in.buffer.getInt()];
+                    String group = strings[in.buffer.getInt()];
+                    int mode = in.buffer.getShort() & 0xFFFF;
+
+                    FileSystemNode node;
+                    if (parent < 0) {
+                        node = root;
+                        rootOwner = owner;
+                        rootGroup = group;
+                        rootMode = mode;
+                    } else {
+                        node = new FileSystemNode(name, (flags & FLAG_DIRECTORY) != 0,
+                                IdTable.USERS.id(owner), IdTable.GROUPS.id(group), mode, nodes[parent]);
+                        if (node.isDirectory() && childCounts[i] > 0) {
+                            node.reserveChildren(childCounts[i]);
+                        }
+                    }
+                    nodes[i] = node;
+                    // 先填内容再加入父目录，用量只向上传递一次
+                    if (parent >= 0 && version >= 3) {
+                        int chunkCount = in.buffer.getInt();
+                        for (int c = 0; c < chunkCount; c++) {
+                            node.appendBlock(blocks[in.buffer.getInt()]);
+                        }
+                    } else if (parent >= 0) {
+                        int contentLength = in.buffer.getInt();
+                        if (contentLength > 0) {
+                            node.append(in.buffer, contentLength);
+                        }
+                    }
+                    // 第一层的节点等到读完再加入 root
+                    if (parent > 0) {
+                        nodes[parent].addChild(node);
+                    }
+                    // 没有三元组（旧版本或写出时未索引）的文件读完后重新计算
+                    int trigramCount = parent >= 0 && !node.isDirectory() && in.buffer.position() - start < recordLength
+                            ? in.buffer.getInt() : -1;
+                    if (trigramCount >= 0) {
+                        trigrams[i] = new int[trigramCount];
+                        in.buffer.asIntBuffer().get(trigrams[i]);
+                    }
+                    in.buffer.position(start + recordLength);
+                }
+            } catch (IOException | RuntimeException e) {
+                // 已经建好的文件持有共享块的引用
+                for (int i = 1; i < nodes.length; i++) {
+                    if (nodes[i] != null && !nodes[i].isDirectory()) {
+                        nodes[i].getData().release();
+                    }
+                }
+                throw e instanceof IOException io ? io : new IOException("Corrupt snapshot file: " + filename, e);
+            } finally {
+                // 块表自己持有的引用，文件已经各自持有
+                for (BlockStore.Block block : blocks) {
+                    if (block != null) {
+                        BlockStore.SHARED.release(block);
+                    }
+                }
+            }
+        }
+
+        if (loaded == null) {
+            replace.run();
+            root.clearChildren();
+            if (rootOwner != null) {
+                root.setOwner(rootOwner);
+                root.setGroup(rootGroup);
+                root.setMode(rootMode);
+            }
+        }
+        for (int i = 1; i < nodes.length; i++) {
+            FileSystemNode node = nodes[i];
+            if (!node.isDirectory()) {
+                if (trigrams[i] == null) {
+                    textIndex.update(node);
+                } else {
+                    textIndex.put(node, trigrams[i]);
+                }
+            }
+            if (loaded != null) {
+                loaded.accept(node);
+            }
+        }
+        for (int i = 1; i < nodes.length; i++) {
+            if (nodes[i].getParent() == root) {
+                if (loaded != null) {
+                    root.attachLoaded(nodes[i]);
+                } else {
+                    root.addChild(nodes[i]);
+                }
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * 把旧的文本状态文件转换成二进制快照。
+     */
+    static void convert(String textFilename, String snapshotFilename) throws IOException {
+        FileSystem fs = new FileSystem();
+        fs.loadFromTextFile(textFilename);
+        write(fs.getRoot(), 0, snapshotFilename, fs.getIndex());
+    }
+
+    /**
+     * 按窗口映射文件，单个 MappedByteBuffer 不能超过 2GB。
+     */
+    private static class MappedReader {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer buffer;
+
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            windowStart = position;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+        }
+
+        void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            long position = windowStart + buffer.position();
+            if (size - position < bytes) {
+                throw new EOFException("Truncated snapshot file");
+            }
+            map(position);
+        }
+
+        long position() {
+            return windowStart + buffer.position();
+        }
+
+        void seek(long position) throws IOException {
+            if (position >= windowStart && position <= windowStart + buffer.limit()) {
+                buffer.position((int) (position - windowStart));
+            } else {
+                map(position);
+            }
+        }
+
+        String readString(int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
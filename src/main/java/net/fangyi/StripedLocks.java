@@ -0,0 +1,31 @@
+package net.fangyi;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 按节点身份分条的读写锁。
+ */
+public class StripedLocks {
+    static final int DEFAULT_STRIPES = 256;
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+
+    StripedLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    StripedLocks(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        mask = size - 1;
+    }
+
+    ReentrantReadWriteLock forNode(FileSystemNode node) {
+        int h = System.identityHashCode(node);
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+}
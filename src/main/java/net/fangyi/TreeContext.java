@@ -0,0 +1,9 @@
+package net.fangyi;
+
+/**
+ * 一棵目录树共用的快照登记和权限缓存，由 {@link FileSystem} 持有。目录节点引用它，文件通过父目录找到它。
+ */
+final class TreeContext {
+    final TreeSnapshot.Registry snapshots = new TreeSnapshot.Registry();
+    final PermissionChecker access = new PermissionChecker();
+}
@@ -0,0 +1,184 @@
+package net.fangyi;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 目录树某一时刻的只读视图，节点第一次被修改前保存原来的状态（写时复制）。不再使用时必须调用 {@link #release()}。
+ */
+public class TreeSnapshot {
+    /**
+     * 当前状态的视图，不保存任何东西，用于在全局写锁下直接保存目录树。
+     */
+    static final TreeSnapshot LIVE = new TreeSnapshot(null, "live", -1);
+
+    private static final FileSystemNode[] NO_CHILDREN = new FileSystemNode[0];
+    private static final BlockStore.Block[] NO_BLOCKS = new BlockStore.Block[0];
+
+    /**
+     * 一棵目录树的活动快照和最新的快照版本号，节点修改前按它为快照保存状态。
+     */
+    static final class Registry {
+        private volatile int version;
+        private volatile TreeSnapshot[] active = new TreeSnapshot[0];
+
+        /**
+         * 创建快照。调用方持有全局写锁，保证此刻没有进行到一半的修改。
+         */
+        synchronized TreeSnapshot freeze(String name, long generation) {
+            TreeSnapshot snapshot = new TreeSnapshot(this, name, version + 1);
+            snapshot.generation = generation;
+            TreeSnapshot[] grown = Arrays.copyOf(active, active.length + 1);
+            grown[active.length] = snapshot;
+            active = grown;
+            version = snapshot.snapshotVersion;
+            return snapshot;
+        }
+
+        int version() {
+            return version;
+        }
+
+        /**
+         * 节点即将被修改：为每个还没保存过它的活动快照保存当前状态。调用方持有节点所在条带的写锁。
+         */
+        void preserve(FileSystemNode node, int nodeVersion) {
+            State state = null;
+            for (TreeSnapshot snapshot : active) {
+                if (snapshot.snapshotVersion > nodeVersion) {
+                    if (state == null) state = State.of(node);
+                    snapshot.preserved.putIfAbsent(node, state);
+                }
+            }
+        }
+
+        private synchronized void remove(TreeSnapshot released) {
+            TreeSnapshot[] remaining = new TreeSnapshot[active.length];
+            int n = 0;
+            for (TreeSnapshot snapshot : active) {
+                if (snapshot != released) remaining[n++] = snapshot;
+            }
+            active = Arrays.copyOf(remaining, n);
+        }
+    }
+
+    /**
+     * 节点在某一时刻的状态。目录的 {@code blocks} 和文件的 {@code children} 都是空数组。
+     */
+    record State(int uid, int gid, int mode, FileSystemNode[] children, BlockStore.Block[] blocks) {
+        static State of(FileSystemNode node) {
+            return new State(node.getUid(), node.getGid(), node.getMode(),
+                    node.isDirectory() ? node.getChildren().toArray(NO_CHILDREN) : NO_CHILDREN,
+                    node.isDirectory() ? NO_BLOCKS : node.blocks());
+        }
+    }
+
+    private final Registry registry;
+    private final String name;
+    private final int snapshotVersion;
+    private final long createdAt = System.currentTimeMillis();
+    private final Map<FileSystemNode, State> preserved = new ConcurrentHashMap<>();
+    private long generation;
+
+    private TreeSnapshot(Registry registry, String name, int snapshotVersion) {
+        this.registry = registry;
+        this.name = name;
+        this.snapshotVersion = snapshotVersion;
+    }
+
+    /**
+     * 节点在快照时刻的状态，对同一节点多次调用得到的内容相同。
+     */
+    State state(FileSystemNode node) {
+        State saved = preserved.get(node);
+        if (saved != null) return saved;
+        State current = State.of(node);
+        saved = preserved.get(node);
+        return saved != null ? saved : current;
+    }
+
+    /**
+     * 只取节点在快照时刻的所有者、组和 mode，子节点和数据块为空。不读子节点表，不会触发尚未加载的目录的加载。
+     */
+    State attributes(FileSystemNode node) {
+        State saved = preserved.get(node);
+        if (saved != null) return saved;
+        State current = new State(node.getUid(), node.getGid(), node.getMode(), NO_CHILDREN, NO_BLOCKS);
+        saved = preserved.get(node);
+        return saved != null ? saved : current;
+    }
+
+    /**
+     * 快照之后被修改过的节点及其在快照时刻的状态。
+     */
+    Map<FileSystemNode, State> preservedStates() {
+        return Collections.unmodifiableMap(preserved);
+    }
+
+    /**
+     * 节点在快照之后是否被修改过；修改过的文件在 {@link TrigramIndex} 中的三元组已经不对应快照时刻的内容。
+     */
+    boolean isPreserved(FileSystemNode node) {
+        return preserved.containsKey(node);
+    }
+
+    /**
+     * 按快照时刻的状态复制出 {@code node} 的子树，挂在 {@code parent} 下（尚未加入它的子节点表）。
+     */
+    FileSystemNode materialize(FileSystemNode node, FileSystemNode parent) {
+        State rootState = state(node);
+        FileSystemNode copy = new FileSystemNode(node.getName(), node.isDirectory(),
+                rootState.uid(), rootState.gid(), rootState.mode(), parent);
+        Deque<FileSystemNode[]> stack = new ArrayDeque<>();
+        stack.push(new FileSystemNode[]{node, copy});
+        while (!stack.isEmpty()) {
+            FileSystemNode[] pair = stack.pop();
+            State state = state(pair[0]);
+            for (BlockStore.Block block : state.blocks()) {
+                pair[1].appendBlock(block);
+            }
+            for (FileSystemNode child : state.children()) {
+                State childState = state(child);
+                FileSystemNode childCopy = new FileSystemNode(child.getName(), child.isDirectory(),
+                        childState.uid(), childState.gid(), childState.mode(), pair[1]);
+                pair[1].addChild(childCopy);
+                stack.push(new FileSystemNode[]{child, childCopy});
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * 停止保存节点状态并丢弃已保存的状态。
+     */
+    void release() {
+        if (registry != null) {
+            registry.remove(this);
+        }
+        preserved.clear();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    int getSnapshotVersion() {
+        return snapshotVersion;
+    }
+
+    int preservedCount() {
+        return preserved.size();
+    }
+}
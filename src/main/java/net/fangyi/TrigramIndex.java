@@ -0,0 +1,408 @@
+package net.fangyi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 文件内容的三元组倒排索引，倒排表稀疏时是有序 int 数组，稠密时是位图。调用方持有文件所在条带的写锁。
+ * 覆盖写和截短只补上新出现的三元组，文件的三元组集合暂时是内容的超集（查询结果仍需逐个核对内容），
+ * 这些文件记在 {@link #stale} 中，由后台线程通过 {@link #drainStale()} 取出重新索引。
+ */
+public class TrigramIndex {
+    private static final int[] NONE = new int[0];
+    private static final int SCAN_BUFFER = 1 << 16;
+    private static final int RADIX = 1 << 12;
+    private static final int RADIX_THRESHOLD = 256;
+
+    private record Entry(int id, int[] trigrams) {
+    }
+
+    // 2^24 个三元组分成 4096 页，每页 4096 个倒排表，用到时才分配
+    private final AtomicReferenceArray<AtomicReferenceArray<Postings>> pages = new AtomicReferenceArray<>(1 << 12);
+    private final ConcurrentHashMap<FileSystemNode, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<FileSystemNode> stale = ConcurrentHashMap.newKeySet();
+    private volatile FileSystemNode[] files = new FileSystemNode[1024];
+    private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+    private int nextId;
+
+    /**
+     * 按文件当前内容重新索引。
+     */
+    void update(FileSystemNode node) {
+        FileContent data = node.getData();
+        replace(node, trigramsOf(data, 0, data.length()));
+        stale.remove(node);
+    }
+
+    /**
+     * 文件在 [{@code offset}, {@code offset + length}) 被覆盖写入后调用，只计算写入范围及两侧各两个字节内的三元组。
+     * 被覆盖掉的三元组留到后台重新索引时去掉。
+     */
+    void written(FileSystemNode node, long offset, long length) {
+        Entry old = entries.get(node);
+        if (old == null) {
+            update(node);
+            return;
+        }
+        FileContent data = node.getData();
+        int[] added = trigramsOf(data, Math.max(0, offset - 2), Math.min(data.length(), offset + length + 2));
+        replace(node, union(old.trigrams, added));
+        stale.add(node);
+    }
+
+    /**
+     * 文件从 {@code oldLength} 截断或用 0 扩展到当前长度后调用。扩展时新出现的三元组都在原末尾附近的五个字节内。
+     */
+    void truncated(FileSystemNode node, long oldLength) {
+        Entry old = entries.get(node);
+        if (old == null) {
+            update(node);
+            return;
+        }
+        FileContent data = node.getData();
+        if (data.length() < oldLength) {
+            stale.add(node);
+            return;
+        }
+        int[] added = trigramsOf(data, Math.max(0, oldLength - 2), Math.min(data.length(), oldLength + 3));
+        replace(node, union(old.trigrams, added));
+    }
+
+    /**
+     * 文件从 {@code oldLength} 处追加了内容后调用，只计算跨过原末尾和新增部分的三元组。
+     */
+    void appended(FileSystemNode node, long oldLength) {
+        Entry old = entries.get(node);
+        if (old == null) {
+            update(node);
+            return;
+        }
+        FileContent data = node.getData();
+        int[] added = trigramsOf(data, Math.max(0, oldLength - 2), data.length());
+        replace(node, union(old.trigrams, added));
+    }
+
+    void remove(FileSystemNode node) {
+        stale.remove(node);
+        Entry old = entries.remove(node);
+        if (old != null) {
+            for (int t : old.trigrams) {
+                removePosting(t, old.id);
+            }
+            releaseId(old.id);
+        }
+    }
+
+    /**
+     * 直接登记一个文件的三元组，用于从快照加载。{@code sorted} 必须已排序且没有重复。
+     */
+    void put(FileSystemNode node, int[] sorted) {
+        replace(node, sorted);
+        stale.remove(node);
+    }
+
+    /**
+     * 取出三元组集合不精确的文件，调用方逐个持有条带写锁、确认仍在索引中后调用 {@link #update}。
+     */
+    List<FileSystemNode> drainStale() {
+        List<FileSystemNode> drained = new ArrayList<>();
+        for (Iterator<FileSystemNode> it = stale.iterator(); it.hasNext(); ) {
+            drained.add(it.next());
+            it.remove();
+        }
+        return drained;
+    }
+
+    /**
+     * 文件已索引时返回它的三元组，否则返回 null。
+     */
+    int[] get(FileSystemNode node) {
+        Entry entry = entries.get(node);
+        return entry == null ? null : entry.trigrams;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < pages.length(); i++) {
+            pages.set(i, null);
+        }
+        entries.clear();
+        stale.clear();
+        files = new FileSystemNode[1024];
+        freeIds.clear();
+        nextId = 0;
+    }
+
+    /**
+     * 可能包含 {@code pattern} 的文件。模式短于 3 字节时无法使用索引，返回 null。
+     */
+    Collection<FileSystemNode> candidates(byte[] pattern) {
+        if (pattern.length < 3) return null;
+        int[] wanted = trigramsOf(pattern);
+        Postings smallest = null;
+        for (int t : wanted) {
+            Postings list = postings(t, false);
+            if (list == null || list.size() == 0) return List.of();
+            if (smallest == null || list.size() < smallest.size()) smallest = list;
+        }
+        FileSystemNode[] table = files;
+        List<FileSystemNode> result = new ArrayList<>();
+        for (int id : smallest.toArray()) {
+            FileSystemNode node = id < table.length ? table[id] : null;
+            Entry entry = node == null ? null : entries.get(node);
+            if (entry != null && entry.id == id && containsAll(entry.trigrams, wanted)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    private void replace(FileSystemNode node, int[] sorted) {
+        Entry old = entries.get(node);
+        int id = old != null ? old.id : allocateId(node);
+        entries.put(node, new Entry(id, sorted));
+        int[] previous = old != null ? old.trigrams : NONE;
+        // 两个有序数组归并求差
+        int i = 0;
+        int j = 0;
+        while (i < previous.length || j < sorted.length) {
+            if (j == sorted.length || i < previous.length && previous[i] < sorted[j]) {
+                removePosting(previous[i++], id);
+            } else if (i == previous.length || sorted[j] < previous[i]) {
+                addPosting(sorted[j++], id);
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private synchronized int allocateId(FileSystemNode node) {
+        int id = freeIds.isEmpty() ? nextId++ : freeIds.poll();
+        FileSystemNode[] table = files;
+        if (id >= table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[id] = node;
+        files = table;
+        return id;
+    }
+
+    private synchronized void releaseId(int id) {
+        files[id] = null;
+        freeIds.push(id);
+    }
+
+    private Postings postings(int trigram, boolean create) {
+        AtomicReferenceArray<Postings> page = pages.get(trigram >>> 12);
+        if (page == null) {
+            if (!create) return null;
+            pages.compareAndSet(trigram >>> 12, null, new AtomicReferenceArray<>(1 << 12));
+            page = pages.get(trigram >>> 12);
+        }
+        Postings list = page.get(trigram & 0xFFF);
+        if (list == null && create) {
+            page.compareAndSet(trigram & 0xFFF, null, new Postings());
+            list = page.get(trigram & 0xFFF);
+        }
+        return list;
+    }
+
+    private void addPosting(int trigram, int id) {
+        postings(trigram, true).add(id);
+    }
+
+    private void removePosting(int trigram, int id) {
+        Postings list = postings(trigram, false);
+        if (list != null) {
+            list.remove(id);
+        }
+    }
+
+    /**
+     * 一个三元组的倒排表。文件 id 少时是有序数组，数组比同范围的位图还大时换成位图。
+     */
+    private static final class Postings {
+        private int[] ids = new int[2];
+        private long[] bits;
+        private int size;
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void add(int id) {
+            if (bits != null) {
+                int word = id >>> 6;
+                if (word >= bits.length) bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+                if ((bits[word] & 1L << id) == 0) {
+                    bits[word] |= 1L << id;
+                    size++;
+                }
+                return;
+            }
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) return;
+            at = -at - 1;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+            // 数组占用超过覆盖同样 id 范围的位图时转换
+            if (size > 64 && size * 32L > ids[size - 1]) {
+                long[] bitmap = new long[(ids[size - 1] >>> 6) + 1];
+                for (int k = 0; k < size; k++) {
+                    bitmap[ids[k] >>> 6] |= 1L << ids[k];
+                }
+                bits = bitmap;
+                ids = null;
+            }
+        }
+
+        synchronized void remove(int id) {
+            if (bits != null) {
+                int word = id >>> 6;
+                if (word < bits.length && (bits[word] & 1L << id) != 0) {
+                    bits[word] &= ~(1L << id);
+                    size--;
+                }
+                return;
+            }
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at < 0) return;
+            System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+            size--;
+        }
+
+        synchronized int[] toArray() {
+            if (bits == null) return Arrays.copyOf(ids, size);
+            int[] result = new int[size];
+            int n = 0;
+            for (int word = 0; word < bits.length; word++) {
+                for (long w = bits[word]; w != 0; w &= w - 1) {
+                    result[n++] = word << 6 | Long.numberOfTrailingZeros(w);
+                }
+            }
+            return result;
+        }
+    }
+
+    private static boolean containsAll(int[] sorted, int[] wanted) {
+        for (int t : wanted) {
+            if (Arrays.binarySearch(sorted, t) < 0) return false;
+        }
+        return true;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j == b.length || i < a.length && a[i] < b[j]) {
+                next = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            merged[n++] = next;
+        }
+        return n == merged.length ? merged : Arrays.copyOf(merged, n);
+    }
+
+    static int[] trigramsOf(byte[] bytes) {
+        if (bytes.length < 3) return NONE;
+        int[] values = new int[bytes.length - 2];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = (bytes[k] & 0xFF) << 16 | (bytes[k + 1] & 0xFF) << 8 | bytes[k + 2] & 0xFF;
+        }
+        return sortUnique(values, values.length);
+    }
+
+    /**
+     * 计算 [{@code from}, {@code to}) 内所有三元组，返回排好序的去重数组。
+     */
+    static int[] trigramsOf(FileContent data, long from, long to) {
+        if (to - from < 3) return NONE;
+        boolean large = to - from > SCAN_BUFFER;
+        BitSet seen = large ? new BitSet(1 << 24) : null;
+        int[] small = large ? null : new int[(int) (to - from - 2)];
+        int count = 0;
+
+        byte[] buffer = new byte[(int) Math.min(SCAN_BUFFER, to - from)];
+        int window = 0;
+        int filled = 0;
+        for (long position = from; position < to; ) {
+            int n = data.read(position, buffer, 0, (int) Math.min(buffer.length, to - position));
+            for (int k = 0; k < n; k++) {
+                window = (window << 8 | buffer[k] & 0xFF) & 0xFFFFFF;
+                if (++filled >= 3) {
+                    if (large) {
+                        seen.set(window);
+                    } else {
+                        small[count++] = window;
+                    }
+                }
+            }
+            position += n;
+        }
+
+        if (large) {
+            return seen.stream().toArray();
+        }
+        return sortUnique(small, count);
+    }
+
+    private static int[] sortUnique(int[] values, int count) {
+        if (count > RADIX_THRESHOLD) {
+            radixSort(values, count);
+        } else {
+            Arrays.sort(values, 0, count);
+        }
+        int unique = 0;
+        for (int k = 0; k < count; k++) {
+            if (unique == 0 || values[unique - 1] != values[k]) {
+                values[unique++] = values[k];
+            }
+        }
+        return Arrays.copyOf(values, unique);
+    }
+
+    /**
+     * 三元组只有 24 位，按低 12 位、高 12 位各做一趟计数排序，比比较排序快数倍。
+     */
+    private static void radixSort(int[] values, int count) {
+        int[] scratch = new int[count];
+        int[] offsets = new int[RADIX + 1];
+        for (int k = 0; k < count; k++) {
+            offsets[(values[k] & RADIX - 1) + 1]++;
+        }
+        for (int b = 0; b < RADIX; b++) {
+            offsets[b + 1] += offsets[b];
+        }
+        for (int k = 0; k < count; k++) {
+            scratch[offsets[values[k] & RADIX - 1]++] = values[k];
+        }
+        Arrays.fill(offsets, 0);
+        for (int k = 0; k < count; k++) {
+            offsets[(scratch[k] >>> 12) + 1]++;
+        }
+        for (int b = 0; b < RADIX; b++) {
+            offsets[b + 1] += offsets[b];
+        }
+        for (int k = 0; k < count; k++) {
+            values[offsets[scratch[k] >>> 12]++] = scratch[k];
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package net.fangyi;
+
+/**
+ * 目录子树的存储用量：文件字节数、文件数和目录数（包括目录自己）。
+ */
+public class Usage {
+    private long bytes;
+    private long files;
+    private long directories;
+    /**
+     * 只有根目录非 null：传递到根目录的用量变化同时记到节点所有者名下。
+     */
+    Quotas quotas;
+
+    Usage(long bytes, long files, long directories) {
+        this.bytes = bytes;
+        this.files = files;
+        this.directories = directories;
+    }
+
+    void add(long bytes, long files, long directories) {
+        this.bytes += bytes;
+        this.files += files;
+        this.directories += directories;
+    }
+
+    Usage copy() {
+        return new Usage(bytes, files, directories);
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getFiles() {
+        return files;
+    }
+
+    long getDirectories() {
+        return directories;
+    }
+}
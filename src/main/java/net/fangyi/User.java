@@ -10,4 +10,10 @@ public class User {
     private String password; // 密码
     private String group; // 用户组
     private String homeDirectory; // 主目录
+    private long byteQuota; // 名下文件内容的字节数上限，0 表示不限制
+    private long inodeQuota; // 名下文件和目录的个数上限，0 表示不限制
+
+    public User(String username, String password, String group, String homeDirectory) {
+        this(username, password, group, homeDirectory, 0, 0);
+    }
 }
@@ -0,0 +1,208 @@
+package net.fangyi;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 目录树变化的订阅，每个订阅有自己的有界无锁队列。队列满时丢弃事件，订阅方之后收到 {@link Type#RESCAN}。
+ */
+public class Watchers {
+    static final int CAPACITY = 1024;
+
+    private static final int MASK = CAPACITY - 1;
+    private static final Watch[] NONE = new Watch[0];
+
+    enum Type {
+        CREATED, REMOVED, CONTENT_CHANGED, MODE_CHANGED, USER_ADDED, RESCAN;
+
+        String label() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /**
+     * 一个变化，{@code subtree} 表示 {@code path} 下的整个子树都受影响。{@code user} 为 null 表示来自其他进程。
+     */
+    record Event(long time, Type type, String path, boolean subtree, int mode, String user) {
+        /**
+         * watch 命令输出的一行：时间、类型、路径，以及适用时的 mode（八进制）和发起修改的用户。
+         */
+        String format() {
+            StringBuilder line = new StringBuilder().append(Instant.ofEpochMilli(time)).append(' ')
+                    .append(type.label()).append(' ').append(path);
+            if (mode >= 0) line.append(' ').append(String.format("%03o", mode));
+            if (user != null) line.append(" by ").append(user);
+            return line.toString();
+        }
+    }
+
+    /**
+     * 一个订阅。不再使用时必须 {@link #close()}，否则修改方法会一直往它的队列里放事件。
+     */
+    static final class Watch implements Closeable {
+        private final Watchers owner;
+        private final String path;
+        private final boolean recursive;
+        private final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<>(CAPACITY);
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private final Set<String> pendingContent = ConcurrentHashMap.newKeySet();
+        private volatile boolean overflowed;
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+
+        private Watch(Watchers owner, String path, boolean recursive) {
+            this.owner = owner;
+            this.path = path;
+            this.recursive = recursive;
+        }
+
+        /**
+         * 订阅的路径本身、它的直接子节点（目录）以及递归订阅时的所有后代的变化，再加上覆盖它的子树变化。
+         */
+        boolean matches(String changed, boolean subtree) {
+            if (changed.equals(path)) return true;
+            if (subtree && isUnder(path, changed)) return true;
+            if (!isUnder(changed, path)) return false;
+            return recursive || changed.indexOf('/', path.length() + 1) < 0;
+        }
+
+        /**
+         * 发布方调用，从不等待。
+         */
+        void offer(Event event) {
+            if (tail.get() - head >= CAPACITY) {
+                dropped.increment();
+                if (!overflowed) overflowed = true;
+                return;
+            }
+            boolean content = event.type() == Type.CONTENT_CHANGED;
+            if (content && (pendingContent.contains(event.path()) || !pendingContent.add(event.path()))) {
+                coalesced.increment();
+                return;
+            }
+            long claimed;
+            do {
+                claimed = tail.get();
+                if (claimed - head >= CAPACITY) {
+                    if (content) pendingContent.remove(event.path());
+                    dropped.increment();
+                    overflowed = true;
+                    return;
+                }
+            } while (!tail.compareAndSet(claimed, claimed + 1));
+            slots.setRelease((int) claimed & MASK, event);
+        }
+
+        /**
+         * 取出下一个事件，没有时返回 null。发生过溢出时先返回一个 {@link Type#RESCAN}。
+         */
+        Event poll() {
+            if (overflowed) {
+                overflowed = false;
+                return new Event(System.currentTimeMillis(), Type.RESCAN, path, true, -1, null);
+            }
+            long next = head;
+            int index = (int) next & MASK;
+            Event event = slots.getAcquire(index);
+            if (event == null) return null; // 空，或者槽位已被占用但还没写完
+            // 先移出待合并集合再让出槽位：之后的内容变化会重新入队，不会合并进已经取走的事件
+            if (event.type() == Type.CONTENT_CHANGED) {
+                pendingContent.remove(event.path());
+            }
+            slots.setPlain(index, null);
+            head = next + 1;
+            return event;
+        }
+
+        long dropped() {
+            return dropped.sum();
+        }
+
+        long coalesced() {
+            return coalesced.sum();
+        }
+
+        @Override
+        public void close() {
+            owner.remove(this);
+        }
+    }
+
+    private volatile Watch[] watches = NONE;
+
+    /**
+     * 在规范路径 {@code path} 上订阅；{@code recursive} 为 false 时只包括它本身和直接子节点。
+     */
+    synchronized Watch watch(String path, boolean recursive) {
+        Watch watch = new Watch(this, path, recursive);
+        Watch[] grown = Arrays.copyOf(watches, watches.length + 1);
+        grown[watches.length] = watch;
+        watches = grown;
+        return watch;
+    }
+
+    private synchronized void remove(Watch watch) {
+        Watch[] current = watches;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == watch) {
+                Watch[] shrunk = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                watches = shrunk;
+                return;
+            }
+        }
+    }
+
+    boolean isActive() {
+        return watches.length > 0;
+    }
+
+    /**
+     * 把一次修改交给匹配的订阅。调用方可能持有锁，这里不等待任何订阅方。
+     */
+    void publish(Type type, String path, boolean subtree, int mode, String user) {
+        Watch[] current = watches;
+        if (current.length == 0 || path == null) return;
+        Event event = null;
+        for (Watch watch : current) {
+            if (watch.matches(path, subtree)) {
+                if (event == null) event = new Event(System.currentTimeMillis(), type, path, subtree, mode, user);
+                watch.offer(event);
+            }
+        }
+    }
+
+    /**
+     * 审计日志的操作对应的事件；导出不修改目录树，没有事件。
+     */
+    void publish(String op, String path, String target, int mode, String user) {
+        switch (op) {
+            case AuditLog.CREATE, AuditLog.MKDIR -> publish(Type.CREATED, path, false, mode, user);
+            case AuditLog.IMPORT -> publish(Type.CREATED, path, true, mode, user);
+            case AuditLog.COPY -> publish(Type.CREATED, target, true, mode, user);
+            case AuditLog.REMOVE -> publish(Type.REMOVED, path, true, -1, user);
+            case AuditLog.CHMOD -> publish(Type.MODE_CHANGED, path, false, mode, user);
+            case AuditLog.CHMOD_RECURSIVE -> publish(Type.MODE_CHANGED, path, true, mode, user);
+            case AuditLog.SET_CONTENT, AuditLog.WRITE, AuditLog.APPEND, AuditLog.TRUNCATE ->
+                    publish(Type.CONTENT_CHANGED, path, false, -1, user);
+            case AuditLog.RESTORE, AuditLog.ROLLBACK -> publish(Type.RESCAN, "/", true, -1, user);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * {@code path} 是否是 {@code ancestor} 的后代（不包括它本身）。
+     */
+    private static boolean isUnder(String path, String ancestor) {
+        if (ancestor.equals("/")) return !path.equals("/");
+        return path.length() > ancestor.length() && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+}
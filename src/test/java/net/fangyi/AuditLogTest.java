@@ -0,0 +1,77 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 环形缓冲区绕回多圈、缓冲区写满时，每条记录恰好写出一次，同一线程的记录保持顺序。
+ */
+class AuditLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void everyRecordSurvivesWraparound() throws Exception {
+        Path file = dir.resolve("audit.log");
+        int threads = 4;
+        int perThread = AuditLog.CAPACITY * 3 / threads + 17;
+        AuditLog log = new AuditLog(file.toString(), new PrintStream(OutputStream.nullOutputStream()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String user = "u" + t;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        log.record(user, AuditLog.CHMOD, "/" + i, null, 0644, 0600);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+            log.close();
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(threads * perThread, lines.size());
+        int[] next = new int[threads];
+        for (String line : lines) {
+            int user = line.charAt(line.indexOf("\"user\":\"u") + 9) - '0';
+            String expected = "\"path\":\"/" + next[user]++ + "\"";
+            assertTrue(line.contains(expected), line);
+            assertTrue(line.endsWith(",\"before\":\"644\",\"after\":\"600\"}"), line);
+        }
+        for (int count : next) {
+            assertEquals(perThread, count);
+        }
+    }
+
+    @Test
+    void fieldsAreEscaped() throws Exception {
+        Path file = dir.resolve("audit.log");
+        AuditLog log = new AuditLog(file.toString(), new PrintStream(OutputStream.nullOutputStream()));
+        log.record("root", AuditLog.COPY, "/a\"b", "/c\\d\n", -1, -1);
+        log.close();
+
+        String line = Files.readString(file, StandardCharsets.UTF_8).trim();
+        assertTrue(line.endsWith(",\"user\":\"root\",\"op\":\"copy\",\"path\":\"/a\\\"b\",\"target\":\"/c\\\\d\\u000a\"}"), line);
+    }
+}
@@ -0,0 +1,154 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * source 的批处理：出错时整批回滚，嵌套的脚本属于外层的批。没有打开日志，不读写文件。
+ */
+class BatchTest {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private FileSystem fs;
+    private SimpleShell shell;
+
+    @BeforeEach
+    void setUp() {
+        fs = new FileSystem();
+        PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8);
+        fs.setOut(out);
+        fs.setErr(out);
+        fs.login("root", "password");
+        shell = new SimpleShell(fs, new Scanner(""), out, out);
+    }
+
+    @Test
+    void failedBatchRestoresTreeAndUsers() {
+        run("mkdir /keep");
+        run("echo old > /keep/file");
+        run("echo gone > /keep/removed");
+        run("adduser alice secret");
+        String before = fs.getNodeByPath("/keep/file").getContent();
+        int mode = fs.getNodeByPath("/keep").getMode();
+        String directory = fs.getCurrentDirectoryPath();
+        script("/s", "echo new > /keep/file", "rm /keep/removed", "mkdir /made", "touch /made/x",
+                "chmod 700 /keep", "cd /keep", "adduser bob secret", "passwd alice changed", "cat /missing");
+
+        run("source /s");
+
+        assertTrue(output().contains("Line 9 failed, rolled back 9 commands"), output());
+        assertNull(fs.getBatch());
+        assertEquals(before, fs.getNodeByPath("/keep/file").getContent());
+        assertEquals("gone\n", fs.getNodeByPath("/keep/removed").getContent());
+        assertNull(fs.getNodeByPath("/made"));
+        assertEquals(mode, fs.getNodeByPath("/keep").getMode());
+        assertEquals(directory, fs.getCurrentDirectoryPath());
+        assertFalse(fs.login("bob", "secret"));
+        assertTrue(fs.login("alice", "secret"));
+    }
+
+    @Test
+    void successfulBatchesCommit() {
+        script("/s", "mkdir /a", "touch /a/x", "echo hi > /a/y");
+
+        run("source -b 2 /s");
+
+        assertTrue(output().contains("Executed 3 commands in 2 batches"), output());
+        assertNotNull(fs.getNodeByPath("/a/x"));
+        assertEquals("hi\n", fs.getNodeByPath("/a/y").getContent());
+    }
+
+    @Test
+    void nestedSourceBelongsToOuterBatch() {
+        script("/inner", "mkdir /inner-made");
+        script("/outer", "mkdir /outer-made", "source /inner");
+        script("/failing", "mkdir /failing-made", "source /inner", "cat /missing");
+
+        run("source /outer");
+        assertTrue(output().contains("Executed 2 commands in 1 batches"), output());
+        assertNotNull(fs.getNodeByPath("/outer-made"));
+        assertNotNull(fs.getNodeByPath("/inner-made"));
+
+        run("rmdir /inner-made");
+        run("source /failing");
+        assertNull(fs.getNodeByPath("/failing-made"));
+        assertNull(fs.getNodeByPath("/inner-made"));
+        assertNull(fs.getBatch());
+    }
+
+    @Test
+    void scriptSourcingItselfIsRejected() {
+        script("/loop", "mkdir /loop-made", "source /loop");
+
+        run("source /loop");
+
+        assertTrue(output().contains("Script sources itself: /loop"), output());
+        assertNull(fs.getNodeByPath("/loop-made"));
+        assertNull(fs.getBatch());
+    }
+
+    @Test
+    void nestingDepthIsCapped() {
+        int scripts = SimpleShell.MAX_SOURCE_DEPTH + 2;
+        for (int i = 0; i < scripts; i++) {
+            script("/s" + i, "mkdir /made" + i, "source /s" + (i + 1));
+        }
+        script("/s" + scripts, "mkdir /last");
+
+        run("source /s0");
+
+        assertTrue(output().contains("Scripts nested deeper than " + SimpleShell.MAX_SOURCE_DEPTH), output());
+        assertNull(fs.getNodeByPath("/made0"));
+        assertNull(fs.getBatch());
+    }
+
+    @Test
+    void watchIsRejectedInBatch() {
+        script("/s", "touch /w", "watch /w");
+
+        run("source /s");
+
+        assertTrue(output().contains("watch is not allowed in a script batch"), output());
+        assertNull(fs.getNodeByPath("/w"));
+    }
+
+    @Test
+    void unbatchedSourceStopsWithoutRollback() {
+        shell.setBatching(false);
+        script("/s", "mkdir /n1", "cat /missing", "mkdir /n2");
+
+        run("source /s");
+
+        assertTrue(output().contains("Line 2 failed, stopped after 1 commands"), output());
+        assertNotNull(fs.getNodeByPath("/n1"));
+        assertNull(fs.getNodeByPath("/n2"));
+        assertNull(fs.getBatch());
+    }
+
+    private void script(String path, String... lines) {
+        fs.createNode(path, false, "root", "root");
+        fs.setContent(fs.getNodeByPath(path), String.join("\n", lines) + "\n");
+    }
+
+    private void run(String line) {
+        List<String> tokens = new ArrayList<>(shell.split(line, ' '));
+        shell.executeCommand(tokens.getFirst(), tokens.subList(1, tokens.size()));
+        fs.commit();
+    }
+
+    private String output() {
+        return output.toString(StandardCharsets.UTF_8);
+    }
+}
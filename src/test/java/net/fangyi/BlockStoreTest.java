@@ -0,0 +1,122 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 相同内容共享一个块并按引用计数释放；缓存超出预算时换出到段文件，读取时换回，压缩搬走稀疏段中的有效块。
+ */
+class BlockStoreTest {
+    private static final int BLOCK = 512;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void equalContentSharesOneBlock() {
+        BlockStore store = new BlockStore(1 << 20, dir);
+        BlockStore.Block a = store.intern(block(1));
+        BlockStore.Block b = store.intern(block(1));
+        assertSame(a, b);
+        assertEquals(1, store.blockCount());
+        assertEquals(BLOCK, store.storedBytes());
+
+        store.release(a);
+        assertEquals(1, store.blockCount());
+        store.release(b);
+        assertEquals(0, store.blockCount());
+        assertEquals(0, store.storedBytes());
+        assertFalse(store.retain(a));
+
+        BlockStore.Block again = store.intern(block(1));
+        assertNotSame(a, again);
+        assertEquals(1, store.blockCount());
+    }
+
+    @Test
+    void spilledBlocksFaultBackIn() throws IOException {
+        BlockStore store = new BlockStore(8 * BLOCK, dir);
+        List<BlockStore.Block> blocks = intern(store, 0, 64);
+        assertTrue(store.spilledBytes() > 0);
+        assertTrue(store.residentBytes() <= store.getCacheBytes());
+        assertEquals(store.spilledBytes(), store.segmentBytes());
+        assertTrue(segmentFiles() > 0);
+
+        long faults = store.faults();
+        for (int i = 0; i < blocks.size(); i++) {
+            assertArrayEquals(block(i), blocks.get(i).peek());
+        }
+        assertEquals(faults, store.faults());
+        for (int i = 0; i < blocks.size(); i++) {
+            assertArrayEquals(block(i), blocks.get(i).data());
+        }
+        assertTrue(store.faults() > faults);
+        assertTrue(store.residentBytes() <= store.getCacheBytes());
+        assertNull(store.spillError());
+
+        store.close();
+        assertEquals(0, segmentFiles());
+    }
+
+    @Test
+    void compactionMovesLiveBlocksOutOfSparseSegments() throws IOException {
+        BlockStore store = new BlockStore(8 * BLOCK, new SegmentStore(dir, 16 * BLOCK));
+        List<BlockStore.Block> blocks = intern(store, 0, 128);
+        List<BlockStore.Block> kept = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (i % 4 == 0) {
+                kept.add(blocks.get(i));
+            } else {
+                store.release(blocks.get(i));
+            }
+        }
+        assertEquals(store.spilledBytes(), store.segmentBytes());
+
+        // 新的换出会触发压缩
+        intern(store, 1000, 64);
+        assertTrue(store.segmentBytes() < store.spilledBytes());
+        assertNull(store.spillError());
+        for (int i = 0; i < kept.size(); i++) {
+            assertArrayEquals(block(i * 4), kept.get(i).peek());
+        }
+        store.close();
+        assertEquals(0, segmentFiles());
+    }
+
+    private static List<BlockStore.Block> intern(BlockStore store, int first, int count) {
+        List<BlockStore.Block> blocks = new ArrayList<>();
+        for (int i = first; i < first + count; i++) {
+            blocks.add(store.intern(block(i)));
+        }
+        return blocks;
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".seg")).count();
+        }
+    }
+
+    private static byte[] block(int seed) {
+        byte[] bytes = new byte[BLOCK];
+        Arrays.fill(bytes, (byte) seed);
+        bytes[0] = (byte) (seed >> 8);
+        return bytes;
+    }
+}
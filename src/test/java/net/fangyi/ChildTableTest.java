@@ -0,0 +1,150 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 子节点表：修改由一个线程串行进行，同时有多个线程不加锁地查找。
+ */
+class ChildTableTest {
+    @Test
+    void insertRemoveAndReinsert() {
+        ChildTable table = new ChildTable();
+        FileSystemNode a = file("a");
+        assertNull(table.putIfAbsent(a));
+        assertSame(a, table.putIfAbsent(file("a")));
+        assertSame(a, table.get("a"));
+
+        assertFalse(table.remove(file("a")));
+        assertTrue(table.remove(a));
+        assertNull(table.get("a"));
+        assertEquals(0, table.size());
+
+        FileSystemNode again = file("a");
+        assertNull(table.putIfAbsent(again));
+        assertSame(again, table.get("a"));
+    }
+
+    @Test
+    void pagesStaySortedAcrossTheIndexThreshold() {
+        ChildTable table = new ChildTable();
+        int count = ChildTable.SORTED_THRESHOLD * 2;
+        for (int i = count - 1; i >= 0; i--) {
+            table.putIfAbsent(file(name(i)));
+        }
+        assertEquals(List.of(name(10), name(11)), names(table.page(name(9), 2)));
+
+        for (int i = 0; i < count; i += 2) {
+            assertTrue(table.remove(table.get(name(i))));
+        }
+        assertEquals(count / 2, table.size());
+        assertEquals(List.of(name(11), name(13)), names(table.page(name(9), 2)));
+        List<FileSystemNode> all = table.page(null, Integer.MAX_VALUE);
+        assertEquals(count / 2, all.size());
+        assertEquals(name(1), all.getFirst().getName());
+    }
+
+    @Test
+    void reinsertingInSlotOrderDoesNotCluster() {
+        ChildTable source = new ChildTable();
+        int count = 300_000;
+        for (int i = 0; i < count; i++) {
+            source.putIfAbsent(file("file" + i));
+        }
+        // 保存快照时按槽位顺序遍历，加载时按同样的顺序插入
+        List<FileSystemNode> inSlotOrder = source.values();
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            ChildTable grown = new ChildTable();
+            for (FileSystemNode node : inSlotOrder) {
+                assertNull(grown.putIfAbsent(node));
+            }
+            ChildTable reserved = new ChildTable();
+            reserved.reserve(inSlotOrder.size());
+            for (FileSystemNode node : inSlotOrder) {
+                assertNull(reserved.putIfAbsent(node));
+            }
+            for (int i = 0; i < count; i += 997) {
+                assertSame(source.get("file" + i), grown.get("file" + i));
+                assertSame(source.get("file" + i), reserved.get("file" + i));
+            }
+            assertEquals(count, grown.size());
+            assertEquals(count, reserved.size());
+        });
+    }
+
+    @Test
+    void lookupsDuringConcurrentResizeAndChurn() throws Exception {
+        ChildTable table = new ChildTable();
+        int stable = 64;
+        List<FileSystemNode> kept = new ArrayList<>();
+        for (int i = 0; i < stable; i++) {
+            FileSystemNode node = file("keep" + i);
+            kept.add(node);
+            table.putIfAbsent(node);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int r = 0; r < 4; r++) {
+                results.add(readers.submit(() -> {
+                    while (!done.get()) {
+                        for (FileSystemNode node : kept) {
+                            assertSame(node, table.get(node.getName()));
+                        }
+                        FileSystemNode churn = table.get("churn7");
+                        assertTrue(churn == null || churn.getName().equals("churn7"));
+                    }
+                    return null;
+                }));
+            }
+            // 反复增长到几千项再删空，期间多次扩容并留下大量墓碑
+            for (int round = 0; round < 20; round++) {
+                List<FileSystemNode> added = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    FileSystemNode node = file("churn" + i);
+                    assertNull(table.putIfAbsent(node));
+                    added.add(node);
+                }
+                for (FileSystemNode node : added) {
+                    assertTrue(table.remove(node));
+                }
+            }
+            done.set(true);
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            done.set(true);
+            readers.shutdownNow();
+        }
+        assertEquals(stable, table.size());
+        assertEquals(stable, table.values().size());
+    }
+
+    private static FileSystemNode file(String name) {
+        return new FileSystemNode(name, false, 0, 0, 0644, null);
+    }
+
+    private static String name(int i) {
+        return String.format("n%04d", i);
+    }
+
+    private static List<String> names(List<FileSystemNode> nodes) {
+        return nodes.stream().map(FileSystemNode::getName).toList();
+    }
+}
@@ -0,0 +1,55 @@
+package net.fangyi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 测试共用的文件系统准备和清理。
+ */
+final class FileSystemFixtures {
+    private FileSystemFixtures() {
+    }
+
+    /**
+     * 不打开日志、以 root 登录的文件系统，输出和错误都写到 {@code output}。
+     */
+    static FileSystem open(ByteArrayOutputStream output) {
+        FileSystem fs = new FileSystem();
+        PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8);
+        fs.setOut(out);
+        fs.setErr(out);
+        fs.login("root", "password");
+        return fs;
+    }
+
+    /**
+     * 删除工作目录中的快照、用户表、日志、审计日志和分区段文件。
+     */
+    static void deleteState() throws IOException {
+        for (String file : List.of(FileSystem.STATE_FILE, FileSystem.USERS_FILE, FileSystem.JOURNAL_FILE)) {
+            Files.deleteIfExists(Path.of(file));
+        }
+        try (Stream<Path> files = Files.list(Path.of("."))) {
+            for (Path file : files.toList()) {
+                if (file.getFileName().toString().startsWith(FileSystem.AUDIT_FILE)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Path segments = Path.of(FileSystem.PARTITION_DIR);
+        if (Files.isDirectory(segments)) {
+            try (Stream<Path> files = Files.list(segments)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(segments);
+        }
+    }
+}
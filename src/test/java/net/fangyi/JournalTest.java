@@ -0,0 +1,291 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 共享同一份日志的多个进程，用同一工作目录下的多个 FileSystem 模拟，每个都有自己的 Journal。
+ */
+class JournalTest {
+    private final List<FileSystem> opened = new ArrayList<>();
+
+    @BeforeEach
+    void removeState() throws IOException {
+        FileSystemFixtures.deleteState();
+    }
+
+    @AfterEach
+    void closeAll() throws IOException {
+        for (FileSystem fs : opened) {
+            fs.close();
+        }
+        FileSystemFixtures.deleteState();
+    }
+
+    @Test
+    void committedChangesReplayWithoutCheckpoint() {
+        FileSystem one = open();
+        one.create("/d", true, "root", "root");
+        one.create("/d/f", false, "root", "root");
+        one.create("/d/gone", false, "root", "root");
+        one.setContent(one.getNodeByPath("/d/f"), "line one\nline two");
+        one.setPermissions("/d/f", "rw-r-----");
+        one.remove("/d/gone", false);
+        one.commit();
+
+        FileSystem two = open();
+        assertEquals("line one\nline two", content(two, "/d/f"));
+        assertEquals("rw-r-----", two.getPermissions("/d/f"));
+        assertNull(two.getNodeByPath("/d/gone"));
+    }
+
+    @Test
+    void idleJournalIsSyncedOnATimer() throws InterruptedException {
+        FileSystem fs = open();
+        fs.createNode("/f", false, "root", "root");
+        fs.commit();
+        // 之后没有新的提交，后台线程在一个间隔后刷盘
+        long deadline = System.currentTimeMillis() + 10 * Journal.SYNC_INTERVAL_MILLIS;
+        while (fs.getJournal().unsynced() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, fs.getJournal().unsynced());
+    }
+
+    @Test
+    void closeCompactsJournalIntoSnapshot() throws IOException {
+        FileSystem one = open();
+        one.create("/f", false, "root", "root");
+        one.setContent(one.getNodeByPath("/f"), "kept");
+        one.commit();
+        assertTrue(Files.size(Path.of(FileSystem.JOURNAL_FILE)) > 0);
+        one.close();
+        opened.remove(one);
+
+        assertEquals(Journal.HEADER_SIZE, Files.size(Path.of(FileSystem.JOURNAL_FILE)));
+        assertEquals("kept", content(open(), "/f"));
+    }
+
+    @Test
+    void refreshAppliesOnlyWhatAnotherProcessCommitted() {
+        FileSystem one = open();
+        FileSystem two = open();
+        one.create("/f", false, "root", "root");
+        one.setContent(one.getNodeByPath("/f"), "first");
+        one.commit();
+
+        two.refresh();
+        assertEquals("first", content(two, "/f"));
+        FileSystemNode before = two.getNodeByPath("/f");
+        two.refresh();
+        assertSame(before, two.getNodeByPath("/f"));
+
+        one.setContent(one.getNodeByPath("/f"), "second");
+        one.commit();
+        two.refresh();
+        assertSame(before, two.getNodeByPath("/f"));
+        assertEquals("second", content(two, "/f"));
+    }
+
+    @Test
+    void reloadAfterAnotherProcessCompactsKeepsWorkingDirectory() {
+        FileSystem one = open();
+        FileSystem two = open();
+        one.create("/d", true, "root", "root");
+        one.commit();
+        two.refresh();
+        two.changeDirectory("/d");
+
+        one.create("/d/f", false, "root", "root");
+        one.checkpoint();
+        two.refresh();
+
+        assertSame(two.getNodeByPath("/d"), two.getCurrent());
+        assertNotNull(two.getNodeByPath("/d/f"));
+    }
+
+    @Test
+    void ownAppendsAreNotReplayedAfterAnotherProcessCommits() {
+        FileSystem one = open();
+        one.createNode("/f", false, "root", "root");
+        one.commit();
+        FileSystem two = open();
+
+        append(one, "/f", "a");
+        append(two, "/f", "b");
+        // one 还没有读到 b，自己追加的 c 在日志中排在 b 之后
+        one.append(one.getNodeByPath("/f"), bytes("c"));
+        one.commit();
+        one.refresh();
+        two.refresh();
+
+        assertEquals("abc", content(two, "/f"));
+        assertEquals("acb", content(one, "/f"));
+
+        append(two, "/f", "d");
+        one.refresh();
+        assertEquals("acbd", content(one, "/f"));
+        // 没有检查点，新进程按日志中的顺序重放
+        assertEquals("abcd", content(open(), "/f"));
+    }
+
+    @Test
+    void writesAndTruncatesReplayInOrder() {
+        FileSystem one = open();
+        one.createNode("/f", false, "root", "root");
+        one.setContent(one.getNodeByPath("/f"), "hello world");
+        one.commit();
+        FileSystem two = open();
+
+        one.refresh();
+        one.truncate(one.getNodeByPath("/f"), 5);
+        one.commit();
+        two.refresh();
+        two.write(two.getNodeByPath("/f"), 0, bytes("J"));
+        two.commit();
+        one.append(one.getNodeByPath("/f"), bytes("!"));
+        one.commit();
+        one.refresh();
+        two.refresh();
+
+        assertEquals("Jello!", content(one, "/f"));
+        assertEquals("Jello!", content(two, "/f"));
+        assertEquals("Jello!", content(open(), "/f"));
+    }
+
+    @Test
+    void reloadsAfterAnotherProcessCompacts() {
+        FileSystem one = open();
+        FileSystem two = open();
+        one.createNode("/d", true, "root", "root");
+        one.commit();
+        two.refresh();
+        two.createNode("/d/f", false, "root", "root");
+        two.setContent(two.getNodeByPath("/d/f"), "x");
+        two.commit();
+
+        one.refresh();
+        append(one, "/d/f", "y");
+        one.checkpoint();
+        append(two, "/d/f", "z");
+        one.refresh();
+
+        assertEquals("xyz", content(one, "/d/f"));
+        assertEquals("xyz", content(two, "/d/f"));
+        assertEquals("xyz", content(open(), "/d/f"));
+    }
+
+    @Test
+    void recoveryWarningsGoToErrorStream() throws IOException {
+        FileSystem one = open();
+        one.createNode("/f", false, "root", "root");
+        one.commit();
+        Files.write(Path.of(FileSystem.JOURNAL_FILE), new byte[]{0, 0, 0, 9, 1}, StandardOpenOption.APPEND);
+
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        FileSystem two = new FileSystem();
+        two.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        two.setErr(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        two.open();
+        opened.add(two);
+
+        assertTrue(captured.toString(StandardCharsets.UTF_8).contains("Discarding incomplete journal tail (5 bytes)"));
+        assertNotNull(two.getNodeByPath("/f"));
+    }
+
+    @Test
+    void reloadKeepsOtherSessionsInTheLiveTree() {
+        FileSystem one = open();
+        FileSystem two = open();
+        one.createNode("/d", true, "root", "root");
+        one.commit();
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        FileSystem session = one.newSession(quiet, quiet);
+        session.login("root", "password");
+        session.changeDirectory("/d");
+
+        two.refresh();
+        two.createNode("/d/theirs", false, "root", "root");
+        two.checkpoint();
+        one.refresh();
+
+        assertSame(one.getNodeByPath("/d"), session.getCurrent());
+        session.create("mine", false, "root", "root");
+        session.commit();
+        assertNotNull(one.getNodeByPath("/d/mine"));
+        assertNotNull(one.getNodeByPath("/d/theirs"));
+        assertNotNull(open().getNodeByPath("/d/mine"));
+    }
+
+    @Test
+    void restoreKeepsOtherSessionsInTheLiveTree() {
+        FileSystem fs = open();
+        fs.createNode("/d", true, "root", "root");
+        fs.createNode("/e", true, "root", "root");
+        fs.createSnapshot("s");
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        FileSystem inD = fs.newSession(quiet, quiet);
+        inD.login("root", "password");
+        inD.changeDirectory("/d");
+        fs.remove("/e", true);
+        fs.createNode("/later", true, "root", "root");
+        FileSystem inLater = fs.newSession(quiet, quiet);
+        inLater.login("root", "password");
+        inLater.changeDirectory("/later");
+
+        fs.restoreSnapshot("s");
+
+        assertSame(fs.getNodeByPath("/d"), inD.getCurrent());
+        assertSame(fs.getRoot(), inLater.getCurrent());
+        inD.create("mine", false, "root", "root");
+        inD.commit();
+        assertNotNull(fs.getNodeByPath("/d/mine"));
+        assertNotNull(fs.getNodeByPath("/e"));
+        assertNotNull(open().getNodeByPath("/d/mine"));
+    }
+
+    private FileSystem open() {
+        FileSystem fs = new FileSystem();
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        fs.setOut(quiet);
+        fs.setErr(quiet);
+        fs.open();
+        fs.login("root", "password");
+        opened.add(fs);
+        return fs;
+    }
+
+    private static void append(FileSystem fs, String path, String text) {
+        fs.refresh();
+        fs.append(fs.getNodeByPath(path), bytes(text));
+        fs.commit();
+    }
+
+    private static String content(FileSystem fs, String path) {
+        FileSystemNode node = fs.getNodeByPath(path);
+        assertNotNull(node, path);
+        return node.getContent();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
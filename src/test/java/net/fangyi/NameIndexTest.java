@@ -0,0 +1,125 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 通配符匹配、find 与逐个节点比较的结果一致，名字的最后一个节点删除后不留下空条目。没有打开日志，不读写文件。
+ */
+class NameIndexTest {
+    @Test
+    void globSyntax() {
+        assertTrue(NameIndex.matches("*.txt", "notes.txt"));
+        assertFalse(NameIndex.matches("*.txt", "notes.txt.bak"));
+        assertTrue(NameIndex.matches("f?o", "foo"));
+        assertFalse(NameIndex.matches("f?o", "fo"));
+        assertTrue(NameIndex.matches("[a-c]*", "beta"));
+        assertFalse(NameIndex.matches("[!a-c]*", "beta"));
+        assertTrue(NameIndex.matches("a*b*c", "axxbyyc"));
+        assertTrue(NameIndex.matches("[x", "[x"));
+        assertTrue(NameIndex.matches("*", ""));
+    }
+
+    @Test
+    void findMatchesAWalkOfTheTree() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FileSystem fs = FileSystemFixtures.open(output);
+        for (String dir : List.of("/a", "/a/b", "/c")) {
+            fs.createNode(dir, true, "root", "root");
+        }
+        for (String file : List.of("/a/x.txt", "/a/b/y.txt", "/a/b/x.log", "/c/x.txt", "/c/readme")) {
+            fs.createNode(file, false, "root", "root");
+        }
+        fs.remove("/c/readme", false);
+
+        for (String glob : List.of("*.txt", "x.*", "[a-b]", "readme", "*")) {
+            for (String path : List.of("/", "/a", "/c")) {
+                output.reset();
+                fs.find(path);
+                StringBuilder expected = new StringBuilder();
+                for (String line : output.toString(StandardCharsets.UTF_8).split("\n")) {
+                    String name = line.substring(line.lastIndexOf('/') + 1);
+                    if (!line.equals("/") && NameIndex.matches(glob, name)) {
+                        expected.append(line).append('\n');
+                    }
+                }
+                output.reset();
+                fs.find(path, glob);
+                assertEquals(expected.toString(), output.toString(StandardCharsets.UTF_8), glob + " under " + path);
+            }
+        }
+    }
+
+    @Test
+    void lastRemovalDropsTheName() {
+        NameIndex names = new NameIndex();
+        FileSystemNode root = new FileSystemNode("/", true, 0, 0, 0755, null);
+        List<FileSystemNode> nodes = new ArrayList<>();
+        // 超过阈值后同名节点放在集合里
+        for (int i = 0; i < NameIndex.SET_THRESHOLD * 2; i++) {
+            FileSystemNode node = new FileSystemNode("same", false, 0, 0, 0644, root);
+            nodes.add(node);
+            names.add(node);
+        }
+        names.add(new FileSystemNode("other", false, 0, 0, 0644, root));
+        assertEquals(2, names.size());
+        for (FileSystemNode node : nodes) {
+            names.remove(node);
+        }
+        assertEquals(1, names.size());
+        assertTrue(names.find("same", root, n -> true).isEmpty());
+    }
+
+    @Test
+    void concurrentAddSurvivesEmptying() throws Exception {
+        NameIndex names = new NameIndex();
+        FileSystemNode root = new FileSystemNode("/", true, 0, 0, 0755, null);
+        List<FileSystemNode> seed = new ArrayList<>();
+        for (int i = 0; i <= NameIndex.SET_THRESHOLD; i++) {
+            FileSystemNode node = new FileSystemNode("same", false, 0, 0, 0644, root);
+            seed.add(node);
+            names.add(node);
+        }
+        for (FileSystemNode node : seed) {
+            names.remove(node);
+        }
+        int threads = 4;
+        List<FileSystemNode> last = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                FileSystemNode mine = new FileSystemNode("same", false, 0, 0, 0644, root);
+                last.add(mine);
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        FileSystemNode node = new FileSystemNode("same", false, 0, 0, 0644, root);
+                        names.add(node);
+                        names.remove(node);
+                    }
+                    names.add(mine);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        List<FileSystemNode> found = names.find("same", root, n -> true);
+        assertEquals(threads, found.size());
+        assertTrue(found.containsAll(last));
+    }
+}
@@ -0,0 +1,165 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 按家目录分区保存：没有修改的家目录沿用上次的段文件，加载时家目录在第一次访问时才读入。
+ */
+class PartitionsTest {
+    private final List<FileSystem> opened = new ArrayList<>();
+
+    @BeforeEach
+    void removeState() throws IOException {
+        FileSystemFixtures.deleteState();
+    }
+
+    @AfterEach
+    void closeAll() throws IOException {
+        for (FileSystem fs : opened) {
+            fs.close();
+        }
+        FileSystemFixtures.deleteState();
+    }
+
+    @Test
+    void homesLoadOnFirstAccess() {
+        FileSystem one = open(true);
+        populate(one);
+
+        FileSystem two = open(false);
+        Partitions partitions = two.getPartitions();
+        FileSystemNode alice = two.getRoot().getChild("alice");
+        FileSystemNode bob = two.getRoot().getChild("bob");
+        // 基础段和 root、alice、bob 三个家目录
+        assertEquals(4, partitions.size());
+        assertEquals(3, partitions.pending());
+        assertFalse(alice.isLoaded());
+        assertFalse(bob.isLoaded());
+
+        assertEquals("alice's\n", two.getNodeByPath("/alice/f").getContent());
+        assertTrue(alice.isLoaded());
+        assertFalse(bob.isLoaded());
+        assertEquals(2, partitions.pending());
+
+        partitions.awaitAll();
+        assertTrue(bob.isLoaded());
+        assertEquals(0, partitions.pending());
+        assertEquals("bob's\n", two.getNodeByPath("/bob/f").getContent());
+        assertEquals("shared\n", two.getNodeByPath("/shared/f").getContent());
+    }
+
+    @Test
+    void unchangedHomesAreReusedAcrossCheckpoints() throws IOException {
+        FileSystem one = open(true);
+        populate(one);
+        List<String> before = segments();
+        assertEquals(4, before.size());
+
+        Metrics metrics = one.getMetrics();
+        long written = metrics.partitionsWritten.sum();
+        long reused = metrics.partitionsReused.sum();
+        one.setContent(one.getNodeByPath("/alice/f"), "changed\n");
+        one.commit();
+        one.checkpoint();
+
+        // 只重写 alice 的分区，基础段和其他家目录沿用原来的文件
+        assertEquals(written + 1, metrics.partitionsWritten.sum());
+        assertEquals(reused + 3, metrics.partitionsReused.sum());
+        List<String> after = segments();
+        assertEquals(home(before, "bob"), home(after, "bob"));
+        assertEquals(home(before, "-base"), home(after, "-base"));
+        // 上一个清单的段文件再保留一轮，其他进程可能还在按它加载
+        assertEquals(5, after.size());
+        assertTrue(after.contains(home(before, "alice")));
+
+        one.setContent(one.getNodeByPath("/bob/f"), "changed too\n");
+        one.commit();
+        one.checkpoint();
+        List<String> last = segments();
+        assertEquals(5, last.size());
+        assertFalse(last.contains(home(before, "alice")));
+        assertTrue(last.contains(home(before, "bob")));
+
+        FileSystem two = open(false);
+        assertEquals("changed\n", two.getNodeByPath("/alice/f").getContent());
+        assertEquals("changed too\n", two.getNodeByPath("/bob/f").getContent());
+        assertEquals("shared\n", two.getNodeByPath("/shared/f").getContent());
+    }
+
+    @Test
+    void corruptSnapshotLeavesTheTreeIntact() throws IOException {
+        FileSystem one = open(true);
+        populate(one);
+        one.getPartitions().awaitAll();
+        int partitions = one.getPartitions().size();
+        FileSystemNode shared = one.getNodeByPath("/shared/f");
+        Path base = Path.of(FileSystem.PARTITION_DIR, home(segments(), "-base"));
+        byte[] bytes = Files.readAllBytes(base);
+        Files.write(base, Arrays.copyOf(bytes, bytes.length - 8));
+
+        one.loadFromFile(FileSystem.STATE_FILE);
+
+        assertSame(shared, one.getNodeByPath("/shared/f"));
+        assertEquals("shared\n", shared.getContent());
+        assertEquals("alice's\n", one.getNodeByPath("/alice/f").getContent());
+        assertEquals(partitions, one.getPartitions().size());
+        assertTrue(one.getIndex().candidates("shared".getBytes(StandardCharsets.UTF_8)).contains(shared));
+    }
+
+    private void populate(FileSystem fs) {
+        fs.addUser("alice", "secret", "users");
+        fs.addUser("bob", "secret", "users");
+        fs.create("/alice/f", false, "alice", "users");
+        fs.setContent(fs.getNodeByPath("/alice/f"), "alice's\n");
+        fs.create("/bob/f", false, "bob", "users");
+        fs.setContent(fs.getNodeByPath("/bob/f"), "bob's\n");
+        fs.create("/shared", true, "root", "root");
+        fs.create("/shared/f", false, "root", "root");
+        fs.setContent(fs.getNodeByPath("/shared/f"), "shared\n");
+        fs.commit();
+        fs.checkpoint();
+    }
+
+    private FileSystem open(boolean preload) {
+        FileSystem fs = new FileSystem();
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        fs.setOut(quiet);
+        fs.setErr(quiet);
+        fs.getPartitions().setPreload(preload);
+        fs.open();
+        fs.login("root", "password");
+        opened.add(fs);
+        return fs;
+    }
+
+    private static String home(List<String> segments, String name) {
+        for (String segment : segments) {
+            if (segment.contains(name)) return segment;
+        }
+        throw new AssertionError(name + " not in " + segments);
+    }
+
+    private static List<String> segments() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of(FileSystem.PARTITION_DIR))) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+}
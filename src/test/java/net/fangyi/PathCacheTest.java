@@ -0,0 +1,92 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * 路径解析和 {@link PathCache} 的失效：删除之后不能再从缓存中拿到旧节点。没有打开日志，不读写文件。
+ */
+class PathCacheTest {
+    private FileSystem fs;
+
+    @BeforeEach
+    void setUp() {
+        fs = new FileSystem();
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        fs.setOut(quiet);
+        fs.setErr(quiet);
+        fs.login("root", "password");
+    }
+
+    @Test
+    void removedFileIsNotServedFromCache() {
+        fs.createNode("/d", true, "root", "root");
+        fs.createNode("/d/f", false, "root", "root");
+        FileSystemNode old = fs.getNodeByPath("/d/f");
+        assertSame(old, fs.getNodeByPath("/d/f"));
+
+        fs.remove("/d/f", false);
+        assertNull(fs.getNodeByPath("/d/f"));
+
+        fs.createNode("/d/f", false, "root", "root");
+        FileSystemNode created = fs.getNodeByPath("/d/f");
+        assertNotNull(created);
+        assertNotSame(old, created);
+    }
+
+    @Test
+    void removedDirectoryInvalidatesDescendants() {
+        fs.createNode("/d", true, "root", "root");
+        fs.createNode("/d/e", true, "root", "root");
+        fs.createNode("/d/e/f", false, "root", "root");
+        FileSystemNode old = fs.getNodeByPath("/d/e/f");
+        assertNotNull(fs.getNodeByPath("/d/e"));
+
+        fs.remove("/d", true);
+        assertNull(fs.getNodeByPath("/d/e/f"));
+        assertNull(fs.getNodeByPath("/d/e"));
+
+        fs.createNode("/d", true, "root", "root");
+        fs.createNode("/d/e", true, "root", "root");
+        fs.createNode("/d/e/f", false, "root", "root");
+        assertNotSame(old, fs.getNodeByPath("/d/e/f"));
+    }
+
+    @Test
+    void putDuringInvalidationIsWithdrawn() {
+        PathCache cache = new PathCache(16);
+        FileSystemNode node = new FileSystemNode("f", false, 0, 0, 0644, null);
+        long version = cache.version();
+        cache.invalidate("/f", false);
+        cache.put("/f", node, version);
+        assertNull(cache.get("/f"));
+
+        cache.put("/f", node, cache.version());
+        assertSame(node, cache.get("/f"));
+        cache.clear();
+        assertNull(cache.get("/f"));
+    }
+
+    @Test
+    void fileIsNotADirectoryInPaths() {
+        fs.createNode("/d", true, "root", "root");
+        fs.createNode("/d/f", false, "root", "root");
+        fs.changeDirectory("/d");
+
+        assertNull(fs.getNodeByPath("/d/f/.."));
+        assertNull(fs.getNodeByPath("/d/f/."));
+        assertNull(fs.getNodeByPath("/d/f/"));
+        assertNull(fs.getNodeByPath("/d/f/../f"));
+        assertNull(fs.getNodeByPath("f/.."));
+        assertSame(fs.getNodeByPath("/d/f"), fs.getNodeByPath("/d/../d/./f"));
+        assertSame(fs.getNodeByPath("/d"), fs.getNodeByPath("../d"));
+    }
+}
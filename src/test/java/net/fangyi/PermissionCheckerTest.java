@@ -0,0 +1,84 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * mode 位按属主、属组、其他人选择，祖先目录要求执行权限，缓存的结论在纪元推进后重新计算。
+ */
+class PermissionCheckerTest {
+    private static final int OWNER = 5;
+    private static final int MEMBER = 6;
+    private static final int OTHER = 8;
+    private static final int GROUP = 7;
+    private static final int OTHER_GROUP = 9;
+
+    private final PermissionChecker checker = new PermissionChecker();
+    private FileSystemNode directory;
+    private FileSystemNode file;
+
+    @BeforeEach
+    void setUp() {
+        FileSystemNode root = new FileSystemNode("/", true, 0, 0, 0755, null);
+        directory = new FileSystemNode("d", true, OWNER, GROUP, 0750, root);
+        root.addChild(directory);
+        file = new FileSystemNode("f", false, OWNER, GROUP, 0644, directory);
+        directory.addChild(file);
+    }
+
+    @Test
+    void modeBitsFollowOwnerGroupAndOthers() {
+        assertTrue(checker.check(file, OWNER, GROUP, PermissionChecker.READ | PermissionChecker.WRITE));
+        assertFalse(checker.check(file, OWNER, GROUP, PermissionChecker.EXECUTE));
+        assertTrue(checker.check(file, MEMBER, GROUP, PermissionChecker.READ));
+        assertFalse(checker.check(file, MEMBER, GROUP, PermissionChecker.WRITE));
+        assertFalse(checker.check(file, MEMBER, GROUP, PermissionChecker.READ | PermissionChecker.WRITE));
+        assertTrue(checker.check(file, 0, 0, PermissionChecker.EXECUTE));
+    }
+
+    @Test
+    void othersAreStoppedByTraversal() {
+        // f 对其他人可读，但 d 不允许其他人进入
+        assertTrue(PermissionChecker.modeAllows(file, OTHER, OTHER_GROUP, PermissionChecker.READ));
+        assertFalse(checker.canEnter(directory, OTHER, OTHER_GROUP));
+        assertFalse(checker.check(file, OTHER, OTHER_GROUP, PermissionChecker.READ));
+        assertTrue(checker.canEnter(directory, MEMBER, GROUP));
+    }
+
+    @Test
+    void cachedDecisionsLastUntilInvalidated() {
+        assertFalse(checker.canEnter(directory, OTHER, OTHER_GROUP));
+        directory.applyMode(0755);
+        assertFalse(checker.canEnter(directory, OTHER, OTHER_GROUP));
+
+        checker.invalidate();
+        assertTrue(checker.canEnter(directory, OTHER, OTHER_GROUP));
+        assertTrue(checker.check(file, OTHER, OTHER_GROUP, PermissionChecker.READ));
+    }
+
+    @Test
+    void chmodOnDirectoryInvalidatesDecisions() {
+        FileSystem fs = new FileSystem();
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        fs.setOut(quiet);
+        fs.setErr(quiet);
+        fs.login("root", "password");
+        fs.addUser("alice", "secret", "users");
+        fs.createNode("/d", true, "root", "root");
+        fs.createNode("/d/f", false, "root", "root");
+        fs.login("alice", "secret");
+        FileSystemNode f = fs.getNodeByPath("/d/f");
+        assertTrue(fs.checkPermissions(f, 'r'));
+
+        fs.login("root", "password");
+        fs.setPermissions("/d", "rwx------");
+        fs.login("alice", "secret");
+        assertFalse(fs.checkPermissions(f, 'r'));
+    }
+}
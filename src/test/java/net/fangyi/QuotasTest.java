@@ -0,0 +1,148 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用量随写入、复制和删除变化，超出限额的修改被拒绝且不改动原有内容。没有打开日志，不读写文件。
+ */
+class QuotasTest {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private FileSystem fs;
+    private SimpleShell shell;
+
+    @BeforeEach
+    void setUp() {
+        fs = new FileSystem();
+        PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8);
+        fs.setOut(out);
+        fs.setErr(out);
+        fs.login("root", "password");
+        shell = new SimpleShell(fs, new Scanner(""), out, out);
+        run("adduser alice secret");
+        run("quota alice 20 5");
+        run("su alice secret");
+    }
+
+    @Test
+    void overQuotaOverwriteKeepsOldContent() {
+        run("echo 0123456789 > /alice/f");
+        assertEquals("0123456789\n", content("/alice/f"));
+
+        output.reset();
+        run("echo 01234567890123456789 > /alice/f");
+        assertTrue(output().contains("Disk quota exceeded"), output());
+        assertEquals("0123456789\n", content("/alice/f"));
+
+        run("echo 0123456789 >> /alice/f");
+        assertTrue(output().contains("Disk quota exceeded"), output());
+        assertEquals("0123456789\n", content("/alice/f"));
+        assertEquals("11", account()[0]);
+    }
+
+    @Test
+    void overwriteWithinQuotaCountsTheNetChange() {
+        run("echo 0123456789 > /alice/f");
+        // 从 11 字节换成 20 字节：净增 9，总量正好到限额
+        output.reset();
+        run("echo 0123456789012345678 > /alice/f");
+        assertFalse(output().contains("Disk quota exceeded"), output());
+        assertEquals("0123456789012345678\n", content("/alice/f"));
+        assertEquals("20", account()[0]);
+
+        run("echo short > /alice/f");
+        assertEquals("6", account()[0]);
+    }
+
+    @Test
+    void usageFollowsCopyAndRemove() {
+        run("mkdir /alice/d");
+        run("echo 01234 > /alice/d/f");
+        run("cp -r /alice/d /alice/e");
+        assertEquals("12", account()[0]);
+        assertEquals("5", account()[1]);
+        assertEquals("12\t2\t3\t/alice", du("/alice"));
+
+        // 字节数还够，节点数已到限额
+        output.reset();
+        run("cp /alice/d/f /alice/g");
+        assertTrue(output().contains("Disk quota exceeded"), output());
+        assertNull(fs.getNodeByPath("/alice/g"));
+
+        run("rm -r /alice/e");
+        assertEquals("6", account()[0]);
+        assertEquals("3", account()[1]);
+        assertEquals("6\t1\t2\t/alice", du("/alice"));
+        run("cp /alice/d/f /alice/g");
+        assertEquals("12", account()[0]);
+        assertEquals("4", account()[1]);
+
+        run("rm /alice/g");
+        run("rm /alice/d/f");
+        assertEquals("0", account()[0]);
+        assertEquals("2", account()[1]);
+        assertEquals("0\t0\t2\t/alice", du("/alice"));
+    }
+
+    @Test
+    void filesBeyondTheMaximumSizeAreRejected() {
+        run("echo 0123456789 > /alice/f");
+        for (String command : List.of("truncate -s " + (FileContent.MAX_SIZE + 1) + " /alice/f",
+                "truncate -s " + Long.MAX_VALUE + " /alice/f",
+                "pwrite /alice/f " + (Long.MAX_VALUE - 1) + " xyz",
+                "pwrite /alice/f " + FileContent.MAX_SIZE + " x")) {
+            output.reset();
+            run(command);
+            assertTrue(output().contains("File too large"), command + ": " + output());
+            assertEquals("0123456789\n", content("/alice/f"));
+        }
+        assertEquals("11", account()[0]);
+    }
+
+    /**
+     * df 中 alice 一行的已用字节数和已用节点数。
+     */
+    private String[] account() {
+        output.reset();
+        run("df");
+        for (String line : output().split("\n")) {
+            if (line.startsWith("alice\t")) {
+                String[] fields = line.split("\t");
+                return new String[]{fields[1].split("/")[0], fields[2].split("/")[0]};
+            }
+        }
+        throw new AssertionError(output());
+    }
+
+    private String du(String path) {
+        output.reset();
+        run("du " + path);
+        return output().trim();
+    }
+
+    private String content(String path) {
+        return fs.getNodeByPath(path).getContent();
+    }
+
+    private void run(String line) {
+        List<String> tokens = new ArrayList<>(shell.split(line, ' '));
+        shell.executeCommand(tokens.getFirst(), tokens.subList(1, tokens.size()));
+        fs.commit();
+    }
+
+    private String output() {
+        return output.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,63 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 段文件按大小滚动，空闲过半的封存段交给压缩，close 删除所有段文件。
+ */
+class SegmentStoreTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void sparseSegmentsAreTakenAndCloseDeletesFiles() throws IOException {
+        SegmentStore store = new SegmentStore(dir, 100);
+        SegmentStore.Location[] first = store.write(List.of(bytes(40, 1), bytes(40, 2)));
+        SegmentStore.Location[] second = store.write(List.of(bytes(40, 3), bytes(40, 4)));
+        store.write(List.of(bytes(40, 5)));
+        assertEquals(3, segmentFiles());
+        assertEquals(200, store.diskBytes());
+        assertArrayEquals(bytes(40, 2), SegmentStore.read(first[1], 40));
+        assertArrayEquals(bytes(40, 3), SegmentStore.read(second[0], 40));
+
+        store.free(first[0], 40);
+        store.free(first[1], 40);
+        store.free(second[0], 40);
+        // 第二段还有一半有效，当前段不参与压缩
+        List<SegmentStore.Segment> sparse = store.takeSparse();
+        assertEquals(1, sparse.size());
+        assertSame(first[0].segment(), sparse.getFirst());
+        assertEquals(120, store.diskBytes());
+        assertEquals(List.of(), store.takeSparse());
+
+        store.close();
+        assertEquals(0, segmentFiles());
+        assertEquals(0, store.diskBytes());
+        assertThrows(IOException.class, () -> store.write(List.of(bytes(1, 6))));
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".seg")).count();
+        }
+    }
+
+    private static byte[] bytes(int length, int fill) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        return bytes;
+    }
+}
@@ -0,0 +1,52 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * 快照和权限缓存属于各自的 FileSystem：同一 JVM 中的另一个实例不受影响。没有打开日志，不读写文件。
+ */
+class TreeSnapshotTest {
+    @Test
+    void snapshotsPreserveOnlyTheirOwnTree() {
+        ByteArrayOutputStream listing = new ByteArrayOutputStream();
+        FileSystem one = FileSystemFixtures.open(listing);
+        FileSystem two = FileSystemFixtures.open(new ByteArrayOutputStream());
+        one.createNode("/f", false, "root", "root");
+        two.createNode("/f", false, "root", "root");
+
+        one.createSnapshot("s");
+        two.setContent(two.getNodeByPath("/f"), "other tree");
+        two.getNodeByPath("/root").setMode(0700);
+        one.listSnapshots();
+        assertEquals("0", preserved(listing));
+
+        one.setContent(one.getNodeByPath("/f"), "own tree");
+        listing.reset();
+        one.listSnapshots();
+        assertEquals("1", preserved(listing));
+    }
+
+    @Test
+    void permissionCachesAreSeparate() {
+        FileSystem one = FileSystemFixtures.open(new ByteArrayOutputStream());
+        FileSystem two = FileSystemFixtures.open(new ByteArrayOutputStream());
+
+        assertNotSame(one.getAccess(), two.getAccess());
+        assertNotSame(one.getRoot().context(), two.getRoot().context());
+        one.createNode("/d", true, "root", "root");
+        one.createNode("/d/f", false, "root", "root");
+        assertSame(one.getRoot().context(), one.getNodeByPath("/d/f").context());
+    }
+
+    private static String preserved(ByteArrayOutputStream listing) {
+        String line = listing.toString(StandardCharsets.UTF_8).trim();
+        return line.substring(line.lastIndexOf('\t') + 1);
+    }
+}
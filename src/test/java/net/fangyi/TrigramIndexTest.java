@@ -0,0 +1,155 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 经过创建、覆盖、追加、随机写、截断和删除之后，grep 的结果与逐个文件扫描一致；覆盖写入只补充三元组，重新索引后与内容一致。
+ * 没有打开日志，不读写文件。
+ */
+class TrigramIndexTest {
+    private static final String[] WORDS = {"alpha", "beta", "gamma", "delta", "needle", "haystack", "lorem", "ipsum"};
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final Random random = new Random(42);
+    private FileSystem fs;
+
+    @BeforeEach
+    void setUp() {
+        fs = FileSystemFixtures.open(output);
+    }
+
+    @Test
+    void grepMatchesFullScanAfterEdits() {
+        List<String> paths = new ArrayList<>();
+        for (int d = 0; d < 4; d++) {
+            fs.createNode("/d" + d, true, "root", "root");
+            for (int f = 0; f < 25; f++) {
+                String path = "/d" + d + "/f" + f;
+                fs.createNode(path, false, "root", "root");
+                fs.setContent(fs.getNodeByPath(path), text(3));
+                paths.add(path);
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            String path = paths.get(random.nextInt(paths.size()));
+            FileSystemNode node = fs.getNodeByPath(path);
+            switch (random.nextInt(5)) {
+                case 0 -> fs.setContent(node, text(2));
+                case 1 -> fs.append(node, bytes(text(1)));
+                case 2 -> fs.write(node, random.nextInt((int) node.getData().length() + 1), bytes(WORDS[random.nextInt(WORDS.length)]));
+                case 3 -> fs.truncate(node, random.nextInt((int) node.getData().length() + 1));
+                default -> {
+                    fs.remove(path, false);
+                    fs.createNode(path, false, "root", "root");
+                    fs.setContent(fs.getNodeByPath(path), text(1));
+                }
+            }
+        }
+
+        for (String pattern : List.of("needle", "a g", "lta\nga", "haystack needle", "mma", "zzz", "ps")) {
+            assertIndexCovers(pattern);
+            output.reset();
+            fs.grep(pattern, "/", true);
+            assertEquals(scan(pattern, "/"), output.toString(StandardCharsets.UTF_8), pattern);
+        }
+        output.reset();
+        fs.grep("needle", "/d1", false);
+        assertEquals(scan("needle", "/d1/"), output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void overwritesAddTrigramsUntilTheFileIsReindexed() {
+        fs.createNode("/f", false, "root", "root");
+        FileSystemNode node = fs.getNodeByPath("/f");
+        fs.setContent(node, "unique " + text(20000));
+        TrigramIndex index = fs.getIndex();
+
+        // 只索引写入的范围，被覆盖的 unique 暂时还在集合里
+        fs.write(node, 0, bytes("needle"));
+        assertTrue(index.candidates(bytes("needle")).contains(node));
+        assertTrue(index.candidates(bytes("unique")).contains(node));
+        fs.reindexStale();
+        assertArrayEquals(TrigramIndex.trigramsOf(bytes(node.getContent())), index.get(node));
+        assertFalse(index.candidates(bytes("unique")).contains(node));
+
+        fs.truncate(node, 10);
+        fs.reindexStale();
+        assertArrayEquals(TrigramIndex.trigramsOf(bytes(node.getContent())), index.get(node));
+        // 用 0 扩展时新的三元组是精确的，不需要重新索引
+        fs.truncate(node, 20);
+        assertArrayEquals(TrigramIndex.trigramsOf(bytes(node.getContent())), index.get(node));
+        assertTrue(index.drainStale().isEmpty());
+    }
+
+    @Test
+    void shortPatternsBypassTheIndex() {
+        assertNull(fs.getIndex().candidates(bytes("ab")));
+    }
+
+    private void assertIndexCovers(String pattern) {
+        Collection<FileSystemNode> candidates = fs.getIndex().candidates(bytes(pattern));
+        if (candidates == null) return;
+        for (FileSystemNode file : files()) {
+            if (file.getContent().contains(pattern)) {
+                assertTrue(candidates.contains(file), pattern + " in " + fs.getPath(file));
+            }
+        }
+    }
+
+    private String scan(String pattern, String prefix) {
+        Map<String, FileSystemNode> sorted = new TreeMap<>();
+        for (FileSystemNode file : files()) {
+            String path = fs.getPath(file);
+            if (path.startsWith(prefix)) sorted.put(path, file);
+        }
+        StringBuilder text = new StringBuilder();
+        sorted.forEach((path, file) -> {
+            for (String line : file.getContent().split("\n")) {
+                if (line.contains(pattern)) {
+                    text.append(path).append(':').append(line).append('\n');
+                }
+            }
+        });
+        return text.toString();
+    }
+
+    private List<FileSystemNode> files() {
+        List<FileSystemNode> files = new ArrayList<>();
+        for (FileSystemNode directory : fs.getRoot().getChildren()) {
+            for (FileSystemNode file : directory.getChildren()) {
+                if (!file.isDirectory()) files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private String text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            for (int w = 0; w < 6; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(w < 5 ? " " : "\n");
+            }
+        }
+        return text.toString();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
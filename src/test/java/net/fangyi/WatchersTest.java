@@ -0,0 +1,114 @@
+package net.fangyi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 订阅队列满时丢弃事件并在下一次 poll 时先给出 rescan；未取走的内容变化合并；多个发布方同时写入时不丢失也不重复。
+ */
+class WatchersTest {
+    @Test
+    void overflowDropsAndReportsRescan() {
+        Watchers watchers = new Watchers();
+        Watchers.Watch watch = watchers.watch("/d", true);
+        int extra = 10;
+        for (int i = 0; i < Watchers.CAPACITY + extra; i++) {
+            watchers.publish(Watchers.Type.CREATED, "/d/f" + i, false, 0644, "root");
+        }
+        assertEquals(extra, watch.dropped());
+
+        Watchers.Event first = watch.poll();
+        assertEquals(Watchers.Type.RESCAN, first.type());
+        assertEquals("/d", first.path());
+        for (int i = 0; i < Watchers.CAPACITY; i++) {
+            assertEquals("/d/f" + i, watch.poll().path());
+        }
+        assertNull(watch.poll());
+
+        // 腾出空间后恢复正常投递，不再重复报告 rescan
+        watchers.publish(Watchers.Type.REMOVED, "/d/f0", true, -1, "root");
+        assertEquals(Watchers.Type.REMOVED, watch.poll().type());
+        assertNull(watch.poll());
+        watch.close();
+        assertFalse(watchers.isActive());
+    }
+
+    @Test
+    void pendingContentChangesCoalesce() {
+        Watchers watchers = new Watchers();
+        Watchers.Watch watch = watchers.watch("/d", false);
+        for (int i = 0; i < 5; i++) {
+            watchers.publish(AuditLog.APPEND, "/d/f", null, -1, "root");
+        }
+        watchers.publish(AuditLog.APPEND, "/d/e/f", null, -1, "root");
+        assertEquals(4, watch.coalesced());
+        assertEquals(Watchers.Type.CONTENT_CHANGED, watch.poll().type());
+        assertNull(watch.poll());
+
+        watchers.publish(AuditLog.WRITE, "/d/f", null, -1, "root");
+        assertEquals("/d/f", watch.poll().path());
+        watchers.publish(AuditLog.REMOVE, "/", null, -1, "root");
+        assertTrue(watch.poll().subtree());
+    }
+
+    @Test
+    void concurrentPublishersLoseNothingUnreported() throws Exception {
+        Watchers watchers = new Watchers();
+        Watchers.Watch watch = watchers.watch("/", true);
+        int publishers = 4;
+        int perPublisher = 20000;
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(publishers);
+        long received = 0;
+        long rescans = 0;
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int p = 0; p < publishers; p++) {
+                String prefix = "/p" + p + "/";
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < perPublisher; i++) {
+                        watchers.publish(Watchers.Type.CREATED, prefix + i, false, 0644, "root");
+                    }
+                    return null;
+                }));
+            }
+            int[] next = new int[publishers];
+            while (true) {
+                boolean finished = done.get();
+                Watchers.Event event;
+                while ((event = watch.poll()) != null) {
+                    if (event.type() == Watchers.Type.RESCAN) {
+                        rescans++;
+                        continue;
+                    }
+                    received++;
+                    // 同一发布方的事件按顺序到达
+                    int publisher = event.path().charAt(2) - '0';
+                    int index = Integer.parseInt(event.path().substring(4));
+                    assertTrue(index >= next[publisher], event.path());
+                    next[publisher] = index + 1;
+                }
+                if (finished) break;
+                done.set(results.stream().allMatch(Future::isDone));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals((long) publishers * perPublisher, received + watch.dropped());
+        assertEquals(watch.dropped() > 0, rescans > 0);
+    }
+}